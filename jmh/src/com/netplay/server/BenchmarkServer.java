@@ -0,0 +1,28 @@
+package com.netplay.server;
+
+import com.netplay.shared.Protocol;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Server that is never started, the benchmarks drive its worker loop directly.
+ */
+final class BenchmarkServer extends Server {
+    @Override
+    public void onUserConnected(NetworkConnection connection) {
+    }
+
+    @Override
+    public void onUserDisconnected(NetworkConnection connection) {
+    }
+
+    /**
+     * Switch a connection to the current protocol version, as the client handshake would.
+     * The handshake replies stay queued on the connection.
+     */
+    static void handshake(NetworkConnection connection) throws ProtocolException {
+        connection.appendToMessageBuffer(
+            ByteBuffer.wrap(Protocol.handshake(Protocol.HANDSHAKE_HELLO, Protocol.CURRENT_VERSION)));
+        connection.processMessages();
+    }
+}
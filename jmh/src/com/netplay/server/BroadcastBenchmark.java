@@ -0,0 +1,105 @@
+package com.netplay.server;
+
+import com.netplay.shared.BenchmarkMessage;
+import com.netplay.shared.JsonSerializer;
+import com.netplay.shared.Network;
+import com.netplay.shared.WireMessage;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Broadcast fan-out as a worker loop runs it: serialize once, frame once per protocol
+ * version and queue a reference on every connection. The connections are real loopback
+ * sockets registered with a loop that is never started, so nothing is written. Each
+ * queue is capped at a few messages with {@link OverflowPolicy#DROP_OLDEST}, so every
+ * queued frame also releases an older one, as a completed write would.
+ *
+ * Every connection holds two sockets, the 10000 case needs an open file limit above 20000.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final int QUEUED_MESSAGES = 8;
+
+    @Param({"100", "1000", "10000"})
+    public int connections;
+
+    @Param({"64"})
+    public int textLength;
+
+    private EventLoop loop;
+    private ServerSocketChannel acceptor;
+    private SocketChannel[] clients;
+    private NetworkConnection[] accepted;
+    private BenchmarkMessage message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Network.setSerializer(new JsonSerializer());
+        Network.register(BenchmarkMessage.class);
+        BenchmarkServer server = new BenchmarkServer();
+        server.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        loop = new EventLoop(server, 0);
+        message = new BenchmarkMessage(1, textLength);
+
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), connections);
+        clients = new SocketChannel[connections];
+        accepted = new NetworkConnection[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = SocketChannel.open(acceptor.getLocalAddress());
+            SocketChannel channel = acceptor.accept();
+            channel.configureBlocking(false);
+            NetworkConnection connection = new NetworkConnection(i + 1, channel);
+            connection.setLoop(loop);
+            connection.setWriteQueueWatermarks(0, Long.MAX_VALUE, QUEUED_MESSAGES, QUEUED_MESSAGES);
+            channel.register(loop.getSelector(), SelectionKey.OP_READ, connection);
+            BenchmarkServer.handshake(connection);
+            accepted[i] = connection;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (int i = 0; i < connections; i++) {
+            accepted[i].disconnect();
+            accepted[i].releaseBuffers();
+            clients[i].close();
+        }
+        acceptor.close();
+        loop.getSelector().close();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        WireMessage wireMessage = Network.encode(message);
+        try {
+            loop.broadcast(wireMessage, (Predicate<String>) null);
+        } finally {
+            wireMessage.release();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.netplay.server;
+
+import com.netplay.shared.BenchmarkMessage;
+import com.netplay.shared.DispatchStrategy;
+import com.netplay.shared.JsonSerializer;
+import com.netplay.shared.Network;
+import com.netplay.shared.Protocol;
+import com.netplay.shared.WireMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Receive path of a server connection: one read's worth of frames is appended to the
+ * connection's buffer, decoded and dispatched to an inline handler. The connection has
+ * no socket, so only decoding, deserializing and dispatch are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessMessagesBenchmark {
+    @Param({"16", "256", "4096"})
+    public int textLength;
+
+    @Param({"1", "16", "128"})
+    public int messagesPerRead;
+
+    @Param({"1", "2"})
+    public int protocolVersion;
+
+    private NetworkConnection connection;
+    private ByteBuffer read;
+    private int handled;
+
+    @Setup
+    public void setup() throws IOException {
+        Network.setSerializer(new JsonSerializer());
+        Network.setDispatchStrategy(DispatchStrategy.inline());
+        Network.on(BenchmarkMessage.class, (message, sender) -> handled++);
+
+        EventLoop loop = new EventLoop(new BenchmarkServer(), 0);
+        connection = new NetworkConnection(1, null);
+        connection.setLoop(loop);
+        if (protocolVersion == Protocol.VERSION_2) {
+            BenchmarkServer.handshake(connection);
+        }
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < messagesPerRead; i++) {
+            WireMessage message = Network.encode(new BenchmarkMessage(i, textLength));
+            try {
+                frames.write(message.encode(protocolVersion));
+            } finally {
+                message.release();
+            }
+        }
+        read = ByteBuffer.wrap(frames.toByteArray());
+    }
+
+    @Benchmark
+    public int processMessages() throws ProtocolException {
+        connection.appendToMessageBuffer(read.duplicate());
+        connection.processMessages();
+        return handled;
+    }
+}
@@ -0,0 +1,137 @@
+package com.netplay.server;
+
+import com.netplay.shared.BenchmarkMessage;
+import com.netplay.shared.JsonSerializer;
+import com.netplay.shared.Network;
+import com.netplay.shared.WireMessage;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends from eight application threads at once through {@link Server#send}, which hands
+ * each message to the owning loop's task queue and wakes it at most once per iteration.
+ * The server is started on loopback with one connection per producer. Each batch ends
+ * with a task the producer waits for, so the loops keep up and the score is sustained
+ * sends per second rather than how fast an unbounded queue fills.
+ *
+ * The clients never read. Their queues are capped with {@link OverflowPolicy#DROP_OLDEST},
+ * so once the socket buffers are full every send also drops an older frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(SendBenchmark.PRODUCERS)
+public class SendBenchmark {
+    static final int PRODUCERS = 8;
+    static final int BATCH = 64;
+    private static final int QUEUED_MESSAGES = 8;
+
+    @Param({"1", "4"})
+    public int workerThreads;
+
+    @Param({"64"})
+    public int textLength;
+
+    private BenchmarkServer server;
+    private SocketChannel[] clients;
+    private final AtomicInteger nextProducer = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        Network.setSerializer(new JsonSerializer());
+        Network.register(BenchmarkMessage.class);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+
+        server = new BenchmarkServer();
+        server.setWorkerThreads(workerThreads);
+        server.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        server.setWriteQueueMessageWatermarks(QUEUED_MESSAGES, QUEUED_MESSAGES);
+        server.start(InetAddress.getLoopbackAddress().getHostAddress(), port);
+        while (!server.isRunning()) {
+            Thread.sleep(10);
+        }
+
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        clients = new SocketChannel[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            clients[i] = SocketChannel.open(address);
+        }
+        while (server.getConnectedCount() < PRODUCERS) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * One sending thread, with its own connection and message so producers only contend
+     * on the loops' queues.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        private String connectionId;
+        private EventLoop loop;
+        private WireMessage message;
+        private final Semaphore drained = new Semaphore(0);
+        private final Runnable marker = drained::release;
+
+        @Setup(Level.Trial)
+        public void setup(SendBenchmark benchmark) {
+            // Connection IDs are assigned from 1 in accept order
+            long id = benchmark.nextProducer.getAndIncrement() % PRODUCERS + 1;
+            NetworkConnection connection = benchmark.server.getConnection(id);
+            connectionId = connection.getId();
+            loop = connection.getLoop();
+            message = Network.encode(new BenchmarkMessage((int) id, benchmark.textLength));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            message.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void send(Producer producer) {
+        for (int i = 0; i < BATCH; i++) {
+            server.send(producer.connectionId, producer.message);
+        }
+        // Tasks run in order, so the marker runs once the batch has been queued on the socket
+        producer.loop.execute(producer.marker);
+        producer.drained.acquireUninterruptibly();
+    }
+}
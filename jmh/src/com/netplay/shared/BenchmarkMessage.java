@@ -0,0 +1,25 @@
+package com.netplay.shared;
+
+import java.util.Arrays;
+
+/**
+ * Message used by the benchmarks, a chat-like object with a text body of a chosen size.
+ */
+public class BenchmarkMessage {
+    public int id;
+    public long timestamp;
+    public String sender;
+    public String text;
+
+    public BenchmarkMessage() {
+    }
+
+    public BenchmarkMessage(int id, int textLength) {
+        char[] chars = new char[textLength];
+        Arrays.fill(chars, 'x');
+        this.id = id;
+        this.timestamp = 1_700_000_000_000L + id;
+        this.sender = "player-" + id;
+        this.text = new String(chars);
+    }
+}
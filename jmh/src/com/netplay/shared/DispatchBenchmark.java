@@ -0,0 +1,57 @@
+package com.netplay.shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handler lookup and inline dispatch, by type ID as version 2 frames do and by class
+ * name as version 1 frames do. The body is an empty object so deserializing it costs
+ * as little as possible next to the lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final String SENDER = "benchmark";
+
+    private ByteBuffer body;
+    private int typeId;
+    private String className;
+    private int handled;
+
+    @Setup
+    public void setup() {
+        Network.setSerializer(new JsonSerializer());
+        Network.setDispatchStrategy(DispatchStrategy.inline());
+        Network.on(BenchmarkMessage.class, (message, sender) -> handled++);
+        typeId = Network.getTypeRegistry().getId(BenchmarkMessage.class);
+        className = BenchmarkMessage.class.getSimpleName();
+        body = ByteBuffer.wrap("{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public int dispatchById() {
+        Network.dispatch(typeId, body.duplicate(), SENDER);
+        return handled;
+    }
+
+    @Benchmark
+    public int dispatchByName() {
+        Network.dispatch(className, body.duplicate(), SENDER);
+        return handled;
+    }
+}
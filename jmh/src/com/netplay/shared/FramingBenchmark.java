@@ -0,0 +1,67 @@
+package com.netplay.shared;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing and framing one message: the version 1 byte array path, the pooled
+ * version 2 path used by sends and broadcasts, and the JSON serializer on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    @Param({"16", "256", "4096"})
+    public int textLength;
+
+    private BenchmarkMessage message;
+    private JsonSerializer serializer;
+    private byte[] json;
+
+    @Setup
+    public void setup() {
+        serializer = new JsonSerializer();
+        Network.setSerializer(serializer);
+        Network.register(BenchmarkMessage.class);
+        message = new BenchmarkMessage(42, textLength);
+        json = serializer.serialize(message);
+    }
+
+    @Benchmark
+    public byte[] toWireFormat() {
+        return Network.toWireFormat(message);
+    }
+
+    @Benchmark
+    public int encodeVersion2() {
+        WireMessage wireMessage = Network.encode(message);
+        try {
+            return wireMessage.frame(Protocol.VERSION_2).length();
+        } finally {
+            wireMessage.release();
+        }
+    }
+
+    @Benchmark
+    public byte[] jsonSerialize() {
+        return serializer.serialize(message);
+    }
+
+    @Benchmark
+    public BenchmarkMessage jsonDeserialize() {
+        return serializer.deserialize(json, BenchmarkMessage.class);
+    }
+}
@@ -0,0 +1,138 @@
+package com.netplay.loadtest;
+
+import com.netplay.shared.Network;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * One selector thread running a share of the simulated clients.
+ * Opens its clients at its share of the connect rate, then multiplexes their sockets
+ * and wakes each client when its next message is due.
+ */
+final class LoadDriver implements Runnable {
+    private final int index;
+    private final LoadOptions options;
+    private final LoadStats stats;
+    private final SocketAddress address;
+    private final Selector selector;
+    private final int clientCount;
+    private final long connectIntervalNanos;
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final PriorityQueue<SimulatedClient> schedule =
+        new PriorityQueue<>(Comparator.comparingLong(client -> client.dueNanos));
+    private volatile boolean running;
+    private Thread thread;
+
+    LoadDriver(int index, LoadOptions options, LoadStats stats, SocketAddress address) throws IOException {
+        this.index = index;
+        this.options = options;
+        this.stats = stats;
+        this.address = address;
+        this.selector = Selector.open();
+        // Spread the clients and the connect rate evenly over the drivers
+        this.clientCount = options.connections / options.threads
+            + (index < options.connections % options.threads ? 1 : 0);
+        this.connectIntervalNanos = (long) (1e9 * options.threads / options.connectRate);
+    }
+
+    LoadOptions getOptions() {
+        return options;
+    }
+
+    LoadStats getStats() {
+        return stats;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, "netplay-load-" + index);
+        thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+    }
+
+    /**
+     * Wake a client once a time has passed. Driver thread only.
+     */
+    void schedule(SimulatedClient client, long dueNanos) {
+        client.dueNanos = dueNanos;
+        schedule.add(client);
+    }
+
+    @Override
+    public void run() {
+        long nextConnectNanos = System.nanoTime();
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                while (clients.size() < clientCount && now >= nextConnectNanos) {
+                    SimulatedClient client = new SimulatedClient(this,
+                        index + clients.size() * options.threads, Network.getBufferAllocator());
+                    clients.add(client);
+                    client.connect(selector, address, now);
+                    nextConnectNanos += connectIntervalNanos;
+                }
+                runDue(now);
+
+                long next = Long.MAX_VALUE;
+                if (clients.size() < clientCount) {
+                    next = nextConnectNanos;
+                }
+                if (!schedule.isEmpty()) {
+                    next = Math.min(next, schedule.peek().dueNanos);
+                }
+                long timeoutMillis = next == Long.MAX_VALUE ? 100 : (next - System.nanoTime()) / 1_000_000;
+                if (timeoutMillis > 0) {
+                    selector.select(timeoutMillis);
+                } else {
+                    selector.selectNow();
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        ((SimulatedClient) key.attachment()).handle(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Load driver " + index + " error: " + e.getMessage());
+        } finally {
+            for (SimulatedClient client : clients) {
+                client.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing load driver " + index + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void runDue(long now) {
+        SimulatedClient client;
+        while ((client = schedule.peek()) != null && client.dueNanos <= now) {
+            schedule.poll();
+            if (client.isClosed()) {
+                continue;
+            }
+            client.runDue(now);
+            if (!client.isClosed()) {
+                schedule.add(client);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.netplay.loadtest;
+
+import com.netplay.shared.Network;
+
+/**
+ * Messages exchanged by the simulated clients and the load test server.
+ * Every request carries the client's send time, echoed back so round trips are
+ * measured on the client's clock only.
+ */
+public final class LoadMessages {
+    private LoadMessages() {
+    }
+
+    /**
+     * Register every load test message type, before the server starts.
+     */
+    public static void register() {
+        Network.register(LoadLogin.class);
+        Network.register(LoadLoginReply.class);
+        Network.register(LoadChat.class);
+        Network.register(LoadState.class);
+        Network.register(LoadStateAck.class);
+    }
+
+    /** Sent once the handshake completes, joins the client to its chat room. */
+    public static class LoadLogin {
+        public String name;
+        public int room;
+        public long sentNanos;
+
+        public LoadLogin() {
+        }
+
+        public LoadLogin(String name, int room, long sentNanos) {
+            this.name = name;
+            this.room = room;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    public static class LoadLoginReply {
+        public long sentNanos;
+
+        public LoadLoginReply() {
+        }
+
+        public LoadLoginReply(long sentNanos) {
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    /** Broadcast to the sender's room, the sender times its own copy. */
+    public static class LoadChat {
+        public int from;
+        public String text;
+        public long sentNanos;
+
+        public LoadChat() {
+        }
+
+        public LoadChat(int from, String text, long sentNanos) {
+            this.from = from;
+            this.text = text;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    /** Periodic position update, acknowledged by the server. */
+    public static class LoadState {
+        public int sequence;
+        public float x;
+        public float y;
+        public long sentNanos;
+
+        public LoadState() {
+        }
+
+        public LoadState(int sequence, float x, float y, long sentNanos) {
+            this.sequence = sequence;
+            this.x = x;
+            this.y = y;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    public static class LoadStateAck {
+        public int sequence;
+        public long sentNanos;
+
+        public LoadStateAck() {
+        }
+
+        public LoadStateAck(int sequence, long sentNanos) {
+            this.sequence = sequence;
+            this.sentNanos = sentNanos;
+        }
+    }
+}
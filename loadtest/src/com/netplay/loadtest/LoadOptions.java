@@ -0,0 +1,99 @@
+package com.netplay.loadtest;
+
+/**
+ * Load test settings, parsed from {@code --name value} arguments.
+ */
+final class LoadOptions {
+    String host;
+    int port = 9090;
+    int connections = 1000;
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    int connectRate = 500;
+    int durationSeconds = 30;
+    int warmupSeconds = 5;
+    double stateRate = 10;
+    int chatIntervalMillis = 5000;
+    int roomSize = 20;
+    int serverWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    String chatText = "The quick brown fox jumps over the lazy dog";
+
+    static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + name);
+            }
+            String value = args[++i];
+            switch (name) {
+                case "--host":
+                    options.host = value;
+                    break;
+                case "--port":
+                    options.port = Integer.parseInt(value);
+                    break;
+                case "--connections":
+                    options.connections = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "--connect-rate":
+                    options.connectRate = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    options.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    options.warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--state-rate":
+                    options.stateRate = Double.parseDouble(value);
+                    break;
+                case "--chat-interval":
+                    options.chatIntervalMillis = Integer.parseInt(value);
+                    break;
+                case "--room-size":
+                    options.roomSize = Integer.parseInt(value);
+                    break;
+                case "--server-workers":
+                    options.serverWorkers = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + name);
+            }
+        }
+        if (options.connections < 1 || options.threads < 1 || options.connectRate < 1
+                || !(options.stateRate > 0) || options.roomSize < 1 || options.durationSeconds < 1) {
+            throw new IllegalArgumentException("Counts and rates must be positive");
+        }
+        return options;
+    }
+
+    /**
+     * Check if the load test runs its own server in this JVM.
+     * @return true unless a host was given
+     */
+    boolean isEmbedded() {
+        return host == null;
+    }
+
+    long stateIntervalNanos() {
+        return (long) (1e9 / stateRate);
+    }
+
+    static String usage() {
+        return "Options:\n"
+            + "  --host <host>            server to load, default: start one in this JVM on localhost\n"
+            + "  --port <port>            server port (9090)\n"
+            + "  --connections <n>        simulated clients (1000)\n"
+            + "  --threads <n>            client selector threads (half the cores)\n"
+            + "  --connect-rate <n>       new connections per second (500)\n"
+            + "  --duration <seconds>     measured run time after every client connected (30)\n"
+            + "  --warmup <seconds>       run time before round trips are measured (5)\n"
+            + "  --state-rate <hz>        state updates per client per second (10)\n"
+            + "  --chat-interval <ms>     mean time between chat messages per client, 0 for none (5000)\n"
+            + "  --room-size <n>          clients per chat room (20)\n"
+            + "  --server-workers <n>     worker loops of the embedded server (half the cores)";
+    }
+}
@@ -0,0 +1,55 @@
+package com.netplay.loadtest;
+
+import com.netplay.shared.LatencyHistogram;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by every load driver. Round trips are in nanoseconds.
+ */
+final class LoadStats {
+    final LongAdder connectsStarted = new LongAdder();
+    final LongAdder connectsEstablished = new LongAdder();
+    final LongAdder connectsFailed = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder messagesSent = new LongAdder();
+    final LongAdder messagesReceived = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+
+    /** From starting the TCP connect to the login reply. */
+    final LatencyHistogram setup = new LatencyHistogram();
+    final LatencyHistogram login = new LatencyHistogram();
+    final LatencyHistogram chat = new LatencyHistogram();
+    final LatencyHistogram state = new LatencyHistogram();
+
+    volatile long firstEstablishedNanos;
+    volatile long lastEstablishedNanos;
+
+    void recordEstablished(long now, long setupNanos) {
+        connectsEstablished.increment();
+        setup.record(setupNanos);
+        if (firstEstablishedNanos == 0) {
+            firstEstablishedNanos = now;
+        }
+        lastEstablishedNanos = now;
+    }
+
+    /**
+     * Get the rate connections were set up, from the first to the last one.
+     * @return connections per second
+     */
+    double getSetupRate() {
+        long established = connectsEstablished.sum();
+        double seconds = (lastEstablishedNanos - firstEstablishedNanos) / 1e9;
+        return established < 2 || seconds <= 0 ? established : (established - 1) / seconds;
+    }
+
+    /**
+     * Clear the chat and state round trips once the warmup is over. Logins all happen
+     * during setup and are kept.
+     */
+    void resetLatencies() {
+        chat.reset();
+        state.reset();
+    }
+}
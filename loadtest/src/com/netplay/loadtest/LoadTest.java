@@ -0,0 +1,144 @@
+package com.netplay.loadtest;
+
+import com.netplay.shared.JsonSerializer;
+import com.netplay.shared.LatencyHistogram;
+import com.netplay.shared.Network;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless load generator: thousands of simulated clients on a few selector threads
+ * against a netplay server, by default one started in this JVM.
+ *
+ * Clients connect at a fixed rate, log in and join a chat room, then send state updates
+ * at a fixed rate and chat at random. Once every client has connected and the warmup
+ * has passed, throughput and round-trip latencies are measured for the run duration.
+ * Every client needs a socket, and an embedded server another, so raise the open file
+ * limit to well above the connection count (twice that when embedded).
+ */
+public final class LoadTest {
+    private static final long SETUP_GRACE_NANOS = 30_000_000_000L;
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--help")) {
+            System.out.println(LoadOptions.usage());
+            return;
+        }
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadOptions.usage());
+            System.exit(1);
+            return;
+        }
+
+        Network.setSerializer(new JsonSerializer());
+        LoadMessages.register();
+
+        LoadTestServer server = null;
+        String host = options.host;
+        if (options.isEmbedded()) {
+            host = "localhost";
+            server = new LoadTestServer();
+            server.setWorkerThreads(options.serverWorkers);
+            server.registerHandlers();
+            server.start(host, options.port);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!server.isRunning() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (!server.isRunning()) {
+                System.err.println("Embedded server did not start");
+                System.exit(1);
+            }
+        }
+
+        System.out.println("Load test: " + options.connections + " clients on " + options.threads
+            + " threads against " + host + ":" + options.port + ", " + options.stateRate + " state/s, chat every "
+            + options.chatIntervalMillis + "ms, rooms of " + options.roomSize);
+
+        LoadStats stats = new LoadStats();
+        List<LoadDriver> drivers = new ArrayList<>();
+        try {
+            InetSocketAddress address = new InetSocketAddress(host, options.port);
+            for (int i = 0; i < options.threads; i++) {
+                LoadDriver driver = new LoadDriver(i, options, stats, address);
+                drivers.add(driver);
+                driver.start();
+            }
+
+            long start = System.nanoTime();
+            long setupDeadline = start + (long) (1e9 * options.connections / options.connectRate) + SETUP_GRACE_NANOS;
+            while (stats.connectsEstablished.sum() + stats.connectsFailed.sum() < options.connections
+                    && System.nanoTime() < setupDeadline) {
+                Thread.sleep(1000);
+                printProgress("setup", start, stats);
+            }
+            for (int i = 0; i < options.warmupSeconds; i++) {
+                Thread.sleep(1000);
+                printProgress("warmup", start, stats);
+            }
+
+            stats.resetLatencies();
+            long sent = stats.messagesSent.sum();
+            long received = stats.messagesReceived.sum();
+            long bytesSent = stats.bytesSent.sum();
+            long bytesReceived = stats.bytesReceived.sum();
+            long measureStart = System.nanoTime();
+            for (int i = 0; i < options.durationSeconds; i++) {
+                Thread.sleep(1000);
+                printProgress("run", start, stats);
+            }
+            double seconds = (System.nanoTime() - measureStart) / 1e9;
+
+            System.out.println();
+            System.out.println("Connections: " + stats.connectsEstablished.sum() + " of " + options.connections
+                + " established, " + stats.connectsFailed.sum() + " failed, " + stats.disconnects.sum() + " dropped");
+            System.out.println("Setup: " + String.format("%.0f", stats.getSetupRate()) + " connections/s");
+            System.out.println("  connect to login  " + format(stats.setup));
+            System.out.println("  login round trip  " + format(stats.login));
+            System.out.println("Throughput: sent " + rate(stats.messagesSent.sum() - sent, seconds) + " msg/s, "
+                + rate((stats.bytesSent.sum() - bytesSent) / 1024, seconds) + " KB/s; received "
+                + rate(stats.messagesReceived.sum() - received, seconds) + " msg/s, "
+                + rate((stats.bytesReceived.sum() - bytesReceived) / 1024, seconds) + " KB/s");
+            System.out.println("Round trips during the run:");
+            System.out.println("  state  " + format(stats.state));
+            System.out.println("  chat   " + format(stats.chat));
+            if (server != null) {
+                System.out.println("Server: " + server.getStats());
+            }
+        } finally {
+            for (LoadDriver driver : drivers) {
+                driver.stop();
+            }
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    private static void printProgress(String phase, long start, LoadStats stats) {
+        System.out.println(String.format("[%s %3ds] connected=%d failed=%d sent=%d received=%d",
+            phase, (System.nanoTime() - start) / 1_000_000_000L, stats.connectsEstablished.sum(),
+            stats.connectsFailed.sum(), stats.messagesSent.sum(), stats.messagesReceived.sum()));
+    }
+
+    private static String rate(long count, double seconds) {
+        return String.format("%.0f", seconds <= 0 ? 0 : count / seconds);
+    }
+
+    private static String format(LatencyHistogram histogram) {
+        return String.format("n=%d p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+            histogram.getCount(),
+            histogram.getPercentileNanos(50) / 1e6,
+            histogram.getPercentileNanos(99) / 1e6,
+            histogram.getPercentileNanos(99.9) / 1e6,
+            histogram.getMaxNanos() / 1e6);
+    }
+}
@@ -0,0 +1,49 @@
+package com.netplay.loadtest;
+
+import com.netplay.loadtest.LoadMessages.LoadChat;
+import com.netplay.loadtest.LoadMessages.LoadLogin;
+import com.netplay.loadtest.LoadMessages.LoadLoginReply;
+import com.netplay.loadtest.LoadMessages.LoadState;
+import com.netplay.loadtest.LoadMessages.LoadStateAck;
+import com.netplay.server.NetworkConnection;
+import com.netplay.server.Server;
+import com.netplay.shared.Network;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server side of the load test: logins join a chat room, chat is broadcast to the room
+ * and state updates are acknowledged.
+ */
+public class LoadTestServer extends Server {
+    private final Map<String, String> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * Register the server handlers. Call once, before starting.
+     */
+    public void registerHandlers() {
+        Network.on(LoadLogin.class, (login, sender) -> {
+            String room = "room-" + login.room;
+            rooms.put(sender, room);
+            joinGroup(room, sender);
+            Network.send(sender, new LoadLoginReply(login.sentNanos));
+        });
+        Network.on(LoadChat.class, (chat, sender) -> {
+            String room = rooms.get(sender);
+            if (room != null) {
+                Network.broadcastToGroup(room, chat);
+            }
+        });
+        Network.on(LoadState.class, (state, sender) ->
+            Network.send(sender, new LoadStateAck(state.sequence, state.sentNanos)));
+    }
+
+    @Override
+    public void onUserConnected(NetworkConnection connection) {
+    }
+
+    @Override
+    public void onUserDisconnected(NetworkConnection connection) {
+        rooms.remove(connection.getId());
+    }
+}
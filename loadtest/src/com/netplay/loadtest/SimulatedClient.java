@@ -0,0 +1,310 @@
+package com.netplay.loadtest;
+
+import com.netplay.loadtest.LoadMessages.LoadChat;
+import com.netplay.loadtest.LoadMessages.LoadLogin;
+import com.netplay.loadtest.LoadMessages.LoadLoginReply;
+import com.netplay.loadtest.LoadMessages.LoadState;
+import com.netplay.loadtest.LoadMessages.LoadStateAck;
+import com.netplay.shared.BufferAllocator;
+import com.netplay.shared.FrameDecoder;
+import com.netplay.shared.Network;
+import com.netplay.shared.Protocol;
+import com.netplay.shared.Serializer;
+import com.netplay.shared.TypeRegistry;
+import com.netplay.shared.WireMessage;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One simulated player: a non-blocking socket speaking the netplay protocol directly,
+ * so thousands can share a few selector threads instead of a Client each.
+ * Connects, handshakes, logs in, then sends state updates at a fixed rate and chat at
+ * random intervals. Only touched by its driver's thread.
+ */
+final class SimulatedClient {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int CONNECTING = 0;
+    private static final int HANDSHAKING = 1;
+    private static final int LOGGING_IN = 2;
+    private static final int ACTIVE = 3;
+    private static final int CLOSED = 4;
+
+    private final LoadDriver driver;
+    private final LoadOptions options;
+    private final LoadStats stats;
+    private final int index;
+    private final FrameDecoder decoder;
+    private final FrameDecoder.Listener listener = this::onFrame;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer out = ByteBuffer.allocate(1024);
+    private int state = CONNECTING;
+    private int version = Protocol.VERSION_1;
+    private String[] serverTypeNames = new String[0];
+    private int[] serverTypeIds = new int[0];
+
+    private long connectStartedNanos;
+    private long nextStateNanos;
+    private long nextChatNanos;
+    private int stateSequence;
+    private float x;
+    private float y;
+
+    // Position in the driver's schedule
+    long dueNanos;
+
+    SimulatedClient(LoadDriver driver, int index, BufferAllocator allocator) {
+        this.driver = driver;
+        this.options = driver.getOptions();
+        this.stats = driver.getStats();
+        this.index = index;
+        this.decoder = new FrameDecoder(allocator, READ_BUFFER_SIZE);
+    }
+
+    void connect(Selector selector, SocketAddress address, long now) {
+        connectStartedNanos = now;
+        stats.connectsStarted.increment();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (channel.connect(address)) {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+                onConnected();
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    boolean isClosed() {
+        return state == CLOSED;
+    }
+
+    void handle(SelectionKey selected) {
+        try {
+            if (selected.isConnectable()) {
+                if (!channel.finishConnect()) {
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                onConnected();
+            }
+            if (selected.isValid() && selected.isReadable()) {
+                int bytesRead = decoder.readFrom(channel);
+                if (bytesRead < 0) {
+                    fail("closed by the server");
+                    return;
+                }
+                stats.bytesReceived.add(bytesRead);
+                decoder.decode(listener);
+            }
+            if (selected.isValid() && selected.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Send whatever is due, called by the driver once {@link #dueNanos} has passed.
+     */
+    void runDue(long now) {
+        try {
+            if (now >= nextStateNanos) {
+                x += ThreadLocalRandom.current().nextFloat() - 0.5f;
+                y += ThreadLocalRandom.current().nextFloat() - 0.5f;
+                send(new LoadState(++stateSequence, x, y, now));
+                nextStateNanos = Math.max(nextStateNanos + options.stateIntervalNanos(), now);
+            }
+            if (options.chatIntervalMillis > 0 && now >= nextChatNanos) {
+                send(new LoadChat(index, options.chatText, now));
+                nextChatNanos = now + randomChatDelay();
+            }
+            flush();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        dueNanos = nextDue();
+    }
+
+    private long nextDue() {
+        return Math.min(nextStateNanos, options.chatIntervalMillis > 0 ? nextChatNanos : Long.MAX_VALUE);
+    }
+
+    private void onConnected() throws IOException {
+        state = HANDSHAKING;
+        ByteBuffer hello = ByteBuffer.wrap(Protocol.handshake(Protocol.HANDSHAKE_HELLO, Protocol.CURRENT_VERSION));
+        ensureCapacity(hello.remaining());
+        out.put(hello);
+        flush();
+    }
+
+    private void onHandshakeComplete() throws IOException {
+        state = LOGGING_IN;
+        send(new LoadLogin("player-" + index, index / options.roomSize, System.nanoTime()));
+        flush();
+    }
+
+    private void onFrame(int typeId, String typeName, int flags, ByteBuffer body) throws ProtocolException {
+        if (typeId == Protocol.TYPE_NAMED && Protocol.isControl(typeName)) {
+            handleControlFrame(typeName, body);
+            return;
+        }
+        String name = typeId == Protocol.TYPE_NAMED ? typeName
+            : typeId < serverTypeNames.length ? serverTypeNames[typeId] : null;
+        if (name == null) {
+            throw new ProtocolException("Unknown type ID: " + typeId);
+        }
+        if ((flags & Protocol.FLAG_COMPRESSED) == 0) {
+            onMessage(name, body);
+            return;
+        }
+        ByteBuffer decompressed = Network.decompress(body);
+        try {
+            onMessage(name, decompressed);
+        } finally {
+            Network.getBufferAllocator().release(decompressed);
+        }
+    }
+
+    private void onMessage(String name, ByteBuffer body) {
+        stats.messagesReceived.increment();
+        Serializer serializer = Network.getSerializer();
+        long now = System.nanoTime();
+        if (LoadStateAck.class.getSimpleName().equals(name)) {
+            stats.state.record(now - serializer.deserialize(body, LoadStateAck.class).sentNanos);
+        } else if (LoadChat.class.getSimpleName().equals(name)) {
+            LoadChat chat = serializer.deserialize(body, LoadChat.class);
+            if (chat.from == index) {
+                stats.chat.record(now - chat.sentNanos);
+            }
+        } else if (LoadLoginReply.class.getSimpleName().equals(name) && state == LOGGING_IN) {
+            stats.login.record(now - serializer.deserialize(body, LoadLoginReply.class).sentNanos);
+            stats.recordEstablished(now, now - connectStartedNanos);
+            state = ACTIVE;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            nextStateNanos = now + (long) (random.nextDouble() * options.stateIntervalNanos());
+            nextChatNanos = now + randomChatDelay();
+            driver.schedule(this, nextDue());
+        }
+    }
+
+    private void handleControlFrame(String name, ByteBuffer body) throws ProtocolException {
+        if (Protocol.HANDSHAKE_ACK.equals(name) && state == HANDSHAKING) {
+            version = Protocol.parseVersion(body);
+            decoder.setVersion(version);
+            if (version < Protocol.VERSION_2) {
+                completeHandshake();
+            }
+        } else if (Protocol.HANDSHAKE_TYPES.equals(name) && state == HANDSHAKING) {
+            setTypeTable(TypeRegistry.decodeTable(body));
+            completeHandshake();
+        }
+        // UDP offers and anything else are not simulated
+    }
+
+    private void completeHandshake() throws ProtocolException {
+        try {
+            onHandshakeComplete();
+        } catch (IOException e) {
+            throw new ProtocolException("Login failed: " + e.getMessage());
+        }
+    }
+
+    private void setTypeTable(String[] names) {
+        TypeRegistry registry = Network.getTypeRegistry();
+        int[] server = new int[registry.size()];
+        for (int id = 1; id < names.length; id++) {
+            int localId = registry.getId(names[id]);
+            if (localId != Protocol.TYPE_NAMED && localId < server.length) {
+                server[localId] = id;
+            }
+        }
+        serverTypeNames = names;
+        serverTypeIds = server;
+    }
+
+    private void send(Object message) {
+        WireMessage wireMessage = Network.encode(message);
+        try {
+            int typeId = wireMessage.getTypeId();
+            int serverTypeId = typeId < serverTypeIds.length ? serverTypeIds[typeId] : Protocol.TYPE_NAMED;
+            ByteBuffer frame = wireMessage.frame(version, serverTypeId).view();
+            ensureCapacity(frame.remaining());
+            out.put(frame);
+        } finally {
+            wireMessage.release();
+        }
+        stats.messagesSent.increment();
+    }
+
+    private void flush() throws IOException {
+        if (out.position() == 0) {
+            return;
+        }
+        out.flip();
+        stats.bytesSent.add(channel.write(out));
+        out.compact();
+        if (out.position() > 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (out.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+    }
+
+    private long randomChatDelay() {
+        // Exponential gaps, so chat arrives as a Poisson process per room
+        double mean = options.chatIntervalMillis * 1_000_000.0;
+        return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * mean);
+    }
+
+    private void fail(String reason) {
+        if (state < ACTIVE) {
+            stats.connectsFailed.increment();
+            if (stats.connectsFailed.sum() <= 10) {
+                System.err.println("Simulated client " + index + " failed to connect: " + reason);
+            }
+        }
+        close();
+    }
+
+    void close() {
+        if (state == CLOSED) {
+            return;
+        }
+        if (state == ACTIVE) {
+            stats.disconnects.increment();
+        }
+        state = CLOSED;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        decoder.release();
+    }
+}
@@ -0,0 +1,441 @@
+package com.netplay.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a binary {@code MessageCodec} for every class annotated with {@code @NetMessage}.
+ * The codec for {@code Foo} is {@code FooCodec} in the same package, nested classes are
+ * flattened with an underscore, so {@code Outer.Inner} gets {@code Outer_InnerCodec}.
+ *
+ * Works on names only and has no dependency on the netplay runtime, so it can run as a
+ * plain annotation processor in any build.
+ */
+@SupportedAnnotationTypes(NetMessageProcessor.ANNOTATION)
+public class NetMessageProcessor extends AbstractProcessor {
+    static final String ANNOTATION = "com.netplay.shared.NetMessage";
+
+    private static final String RUNTIME_PACKAGE = "com.netplay.shared";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@NetMessage can only be applied to classes");
+                    continue;
+                }
+                try {
+                    generate((TypeElement) element);
+                } catch (IOException e) {
+                    error(element, "Could not write codec: " + e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        if (!checkInstantiable(type)) {
+            return;
+        }
+
+        List<FieldCode> fields = new ArrayList<>();
+        boolean valid = true;
+        for (VariableElement field : serializedFields(type)) {
+            FieldCode code = fieldCode(type, field, fields.size());
+            if (code == null) {
+                valid = false;
+            } else {
+                fields.add(code);
+            }
+        }
+        if (!valid) {
+            return;
+        }
+
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String codecName = codecSimpleName(type);
+        String typeName = type.getQualifiedName().toString();
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import ").append(RUNTIME_PACKAGE).append(".BinaryReader;\n");
+        source.append("import ").append(RUNTIME_PACKAGE).append(".BinaryWriter;\n");
+        source.append("import ").append(RUNTIME_PACKAGE).append(".MessageCodec;\n\n");
+        source.append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n");
+        source.append("public final class ").append(codecName).append(" implements MessageCodec<")
+            .append(typeName).append("> {\n");
+        source.append("    public static final ").append(codecName).append(" INSTANCE = new ")
+            .append(codecName).append("();\n");
+        for (FieldCode field : fields) {
+            if (field.constants != null) {
+                source.append(field.constants);
+            }
+        }
+        source.append("\n");
+
+        source.append("    @Override\n");
+        source.append("    public Class<").append(typeName).append("> type() {\n");
+        source.append("        return ").append(typeName).append(".class;\n");
+        source.append("    }\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public void encode(").append(typeName).append(" message, BinaryWriter out) {\n");
+        for (FieldCode field : fields) {
+            source.append(field.encode);
+        }
+        source.append("    }\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public ").append(typeName).append(" decode(BinaryReader in) {\n");
+        source.append("        ").append(typeName).append(" message = new ").append(typeName).append("();\n");
+        for (FieldCode field : fields) {
+            source.append(field.decode);
+        }
+        source.append("        return message;\n");
+        source.append("    }\n");
+        source.append("}\n");
+
+        String qualifiedName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+        try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    private boolean checkInstantiable(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(type, "@NetMessage classes cannot be abstract");
+            return false;
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+            error(type, "@NetMessage nested classes must be static");
+            return false;
+        }
+        if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+            error(type, "@NetMessage classes must be top level or static nested classes");
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        error(type, "@NetMessage classes need a non-private no-arg constructor");
+        return false;
+    }
+
+    /**
+     * Collect the encoded fields, superclass fields first.
+     */
+    private List<VariableElement> serializedFields(TypeElement type) {
+        List<VariableElement> fields = new ArrayList<>();
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            TypeElement parent = (TypeElement) ((DeclaredType) superclass).asElement();
+            if (!parent.getQualifiedName().contentEquals("java.lang.Object")) {
+                fields.addAll(serializedFields(parent));
+            }
+        }
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (!modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.TRANSIENT)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private FieldCode fieldCode(TypeElement type, VariableElement field, int index) {
+        String name = field.getSimpleName().toString();
+        TypeMirror fieldType = field.asType();
+        String local = "v" + index;
+
+        if (field.getModifiers().contains(Modifier.FINAL)) {
+            error(field, "Final field " + name + " cannot be decoded, make it non-final or transient");
+            return null;
+        }
+
+        String getter;
+        String setterPrefix;
+        String setterSuffix;
+        if (isDirectlyAccessible(type, field)) {
+            getter = "message." + name;
+            setterPrefix = "message." + name + " = ";
+            setterSuffix = "";
+        } else {
+            String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            String getterName = findMethod(type, fieldType, "get" + capitalized, 0);
+            if (getterName == null && fieldType.getKind() == TypeKind.BOOLEAN) {
+                getterName = findMethod(type, fieldType, "is" + capitalized, 0);
+            }
+            String setterName = findMethod(type, fieldType, "set" + capitalized, 1);
+            if (getterName == null || setterName == null) {
+                error(field, "Field " + name + " is not accessible, add a getter and setter or make it non-private");
+                return null;
+            }
+            getter = "message." + getterName + "()";
+            setterPrefix = "message." + setterName + "(";
+            setterSuffix = ")";
+        }
+
+        FieldCode code = new FieldCode();
+        String typeName = sourceName(fieldType);
+        String write;
+        String read;
+        switch (fieldType.getKind()) {
+            case BOOLEAN:
+            case BYTE:
+            case SHORT:
+            case CHAR:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                write = "out." + primitiveWriter(fieldType.getKind()) + "(" + local + ");";
+                read = "in." + primitiveReader(fieldType.getKind()) + "()";
+                break;
+            case ARRAY:
+                if (((ArrayType) fieldType).getComponentType().getKind() != TypeKind.BYTE) {
+                    error(field, "Unsupported array type " + typeName + ", only byte[] is supported");
+                    return null;
+                }
+                write = "out.writeBytes(" + local + ");";
+                read = "in.readBytes()";
+                break;
+            case DECLARED:
+                TypeElement element = (TypeElement) ((DeclaredType) fieldType).asElement();
+                String qualified = element.getQualifiedName().toString();
+                TypeKind unboxed = unboxedKind(qualified);
+                if (qualified.equals("java.lang.String")) {
+                    write = "out.writeString(" + local + ");";
+                    read = "in.readString()";
+                } else if (unboxed != null) {
+                    write = "out.writeBoolean(" + local + " != null);\n"
+                        + "            if (" + local + " != null) {\n"
+                        + "                out." + primitiveWriter(unboxed) + "(" + local + ");\n"
+                        + "            }";
+                    read = "in.readBoolean() ? " + qualified + ".valueOf(in." + primitiveReader(unboxed) + "()) : null";
+                } else if (element.getKind() == ElementKind.ENUM) {
+                    String constants = "VALUES_" + index;
+                    code.constants = "    private static final " + qualified + "[] " + constants + " = "
+                        + qualified + ".values();\n";
+                    write = "out.writeVarInt(" + local + " == null ? 0 : " + local + ".ordinal() + 1);";
+                    read = "decode" + index + "(in.readVarInt())";
+                    code.constants += "\n    private static " + qualified + " decode" + index + "(int ordinal) {\n"
+                        + "        return ordinal == 0 ? null : " + constants + "[ordinal - 1];\n"
+                        + "    }\n";
+                } else if (hasAnnotation(element)) {
+                    String codec = qualifiedCodecName(element);
+                    write = "out.writeBoolean(" + local + " != null);\n"
+                        + "            if (" + local + " != null) {\n"
+                        + "                " + codec + ".INSTANCE.encode(" + local + ", out);\n"
+                        + "            }";
+                    read = "in.readBoolean() ? " + codec + ".INSTANCE.decode(in) : null";
+                } else {
+                    error(field, "Unsupported field type " + typeName
+                        + ", use primitives, wrappers, String, enums, byte[] or @NetMessage classes");
+                    return null;
+                }
+                break;
+            default:
+                error(field, "Unsupported field type " + typeName);
+                return null;
+        }
+
+        code.encode = "        {\n"
+            + "            " + typeName + " " + local + " = " + getter + ";\n"
+            + "            " + write + "\n"
+            + "        }\n";
+        code.decode = "        " + setterPrefix + read + setterSuffix + ";\n";
+        return code;
+    }
+
+    /**
+     * Get the name to declare a field's type with, without any type annotations.
+     */
+    private static String sourceName(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return type.getKind().name().toLowerCase();
+        }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return sourceName(((ArrayType) type).getComponentType()) + "[]";
+        }
+        if (type.getKind() == TypeKind.DECLARED) {
+            return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private boolean isDirectlyAccessible(TypeElement type, VariableElement field) {
+        Set<Modifier> modifiers = field.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        if (modifiers.contains(Modifier.PUBLIC)) {
+            return true;
+        }
+        // Package-private and protected fields are visible to the codec in the same package
+        return packageOf(field).equals(packageOf(type));
+    }
+
+    /**
+     * Find a non-private accessor in the type or its superclasses.
+     * @return the method name, or null if there is none
+     */
+    private String findMethod(TypeElement type, TypeMirror fieldType, String name, int parameters) {
+        for (TypeElement current = type; current != null; current = superclassOf(current)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(current.getEnclosedElements())) {
+                if (!method.getSimpleName().contentEquals(name)
+                        || method.getParameters().size() != parameters
+                        || method.getModifiers().contains(Modifier.PRIVATE)
+                        || method.getModifiers().contains(Modifier.STATIC)) {
+                    continue;
+                }
+                TypeMirror accessorType = parameters == 0
+                    ? method.getReturnType()
+                    : method.getParameters().get(0).asType();
+                if (processingEnv.getTypeUtils().isSameType(accessorType, fieldType)) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    private TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        return (TypeElement) ((DeclaredType) superclass).asElement();
+    }
+
+    private boolean hasAnnotation(TypeElement element) {
+        return element.getAnnotationMirrors().stream()
+            .anyMatch(mirror -> ((TypeElement) mirror.getAnnotationType().asElement())
+                .getQualifiedName().contentEquals(ANNOTATION));
+    }
+
+    private String codecSimpleName(TypeElement type) {
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String simpleName = packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1);
+        return simpleName.replace('$', '_') + "Codec";
+    }
+
+    private String qualifiedCodecName(TypeElement type) {
+        String packageName = packageOf(type).getQualifiedName().toString();
+        return packageName.isEmpty() ? codecSimpleName(type) : packageName + "." + codecSimpleName(type);
+    }
+
+    private PackageElement packageOf(Element element) {
+        return processingEnv.getElementUtils().getPackageOf(element);
+    }
+
+    private static TypeKind unboxedKind(String qualifiedName) {
+        switch (qualifiedName) {
+            case "java.lang.Boolean":
+                return TypeKind.BOOLEAN;
+            case "java.lang.Byte":
+                return TypeKind.BYTE;
+            case "java.lang.Short":
+                return TypeKind.SHORT;
+            case "java.lang.Character":
+                return TypeKind.CHAR;
+            case "java.lang.Integer":
+                return TypeKind.INT;
+            case "java.lang.Long":
+                return TypeKind.LONG;
+            case "java.lang.Float":
+                return TypeKind.FLOAT;
+            case "java.lang.Double":
+                return TypeKind.DOUBLE;
+            default:
+                return null;
+        }
+    }
+
+    private static String primitiveWriter(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return "writeBoolean";
+            case BYTE:
+                return "writeByte";
+            case SHORT:
+                return "writeShort";
+            case CHAR:
+                return "writeChar";
+            case INT:
+                return "writeInt";
+            case LONG:
+                return "writeLong";
+            case FLOAT:
+                return "writeFloat";
+            default:
+                return "writeDouble";
+        }
+    }
+
+    private static String primitiveReader(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return "readBoolean";
+            case BYTE:
+                return "readByte";
+            case SHORT:
+                return "readShort";
+            case CHAR:
+                return "readChar";
+            case INT:
+                return "readInt";
+            case LONG:
+                return "readLong";
+            case FLOAT:
+                return "readFloat";
+            default:
+                return "readDouble";
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    /**
+     * Generated source fragments for one field.
+     */
+    private static final class FieldCode {
+        private String constants;
+        private String encode;
+        private String decode;
+    }
+}
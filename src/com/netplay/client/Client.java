@@ -1,21 +1,53 @@
 package com.netplay.client;
 
+import com.netplay.shared.DeliveryMode;
+import com.netplay.shared.DispatchStrategy;
+import com.netplay.shared.FrameDecoder;
 import com.netplay.shared.Network;
+import com.netplay.shared.Protocol;
+import com.netplay.shared.SharedFrame;
+import com.netplay.shared.TimerWheel;
+import com.netplay.shared.TypeRegistry;
+import com.netplay.shared.UdpSession;
+import com.netplay.shared.WireMessage;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * TCP client for connecting to a netplay server.
+ * Sends never touch the socket: messages are queued and written by the selector thread,
+ * so the calling thread never blocks and partial writes are resumed when the socket
+ * becomes writable again.
+ *
+ * With UDP enabled the client also opens the UDP channel the server offers during the
+ * handshake, see {@link #send(Object, DeliveryMode)}.
+ *
+ * The selector thread also runs a timer wheel for {@link #schedule(long, TimeUnit, Runnable)}
+ * and the idle timeouts, see {@link #setReadIdleTimeout(long)}.
  */
 public abstract class Client {
     private static final int BUFFER_SIZE = 8192;
+    private static final long HANDSHAKE_TIMEOUT_MS = 2000;
+    private static final int MAX_WRITE_BATCH = 64;
+    private static final int MAX_DATAGRAMS_PER_READ = 256;
+    private static final long UDP_HELLO_INTERVAL_MS = 250;
+    private static final int UDP_HELLO_ATTEMPTS = 20;
+    private static final String SERVER_SENDER = "SERVER";
 
     private static Client instance;
 
@@ -26,15 +58,64 @@ public abstract class Client {
     private SocketChannel socketChannel;
     private Selector selector;
     private Thread readerThread;
-    private ByteBuffer readBuffer;
 
-    // Buffer for accumulating partial messages
-    private StringBuilder messageBuffer;
+    // Protocol negotiation, messages sent while handshaking are held until it completes
+    private int maxProtocolVersion = Protocol.CURRENT_VERSION;
+    private volatile int protocolVersion = Protocol.VERSION_1;
+    private volatile boolean handshaking;
+    private int negotiatedVersion;
+    private long handshakeDeadline;
+    private final Object sendLock = new Object();
+    private final List<WireMessage> pendingMessages = new ArrayList<>();
+
+    // Server type IDs, sent after the ack. Translated to local IDs for dispatch and back for sends
+    private String[] serverTypeNames = new String[1];
+    private int[] localTypeIds = new int[1];
+    private int[] serverTypeIds = new int[0];
+
+    // Outbound frames, queued in send order and written by the selector thread
+    private final Queue<SharedFrame> writeQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean autoFlush = true;
+    private boolean writesClosed;
+    private final Object writeLock = new Object();
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_WRITE_BATCH];
+    private final SharedFrame[] batchFrames = new SharedFrame[MAX_WRITE_BATCH];
+    private int batchStart;
+    private int batchEnd;
+
+    // Reads pause while handlers on another thread catch up, see DispatchStrategy#isSaturated
+    private volatile boolean readPaused;
+    private final AtomicBoolean readResumeRequested = new AtomicBoolean();
+
+    // UDP channel, opened on the selector thread once the server offers a session
+    private boolean udpEnabled;
+    private int maxDatagramSize = UdpSession.DEFAULT_MAX_DATAGRAM_SIZE;
+    private DatagramChannel udpChannel;
+    private UdpSession udpSession;
+    private volatile boolean udpReady;
+    private int udpHelloAttempts;
+    private long udpHelloDeadline;
+    private ByteBuffer udpReceiveBuffer;
+    private final Queue<Datagram> udpQueue = new ConcurrentLinkedQueue<>();
+
+    // Timers for the current connection, run by the selector thread
+    private volatile TimerWheel timers;
+    private long readIdleTimeoutMillis;
+    private long writeIdleTimeoutMillis;
+    private long lastReadNanos;
+    private long lastWriteNanos;
+
+    private final StateReplica stateReplica = new StateReplica(StateReplica.DEFAULT_HISTORY_SIZE);
+
+    // Accumulates partial messages
+    private final FrameDecoder decoder;
+    private final FrameDecoder.Listener frameListener;
 
     public Client() {
         instance = this;
-        this.readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-        this.messageBuffer = new StringBuilder();
+        this.decoder = new FrameDecoder(Network.getBufferAllocator(), BUFFER_SIZE);
+        this.frameListener = this::dispatchFrame;
     }
 
     /**
@@ -60,6 +141,19 @@ public abstract class Client {
             socketChannel.connect(new InetSocketAddress(host, port));
             socketChannel.register(selector, SelectionKey.OP_CONNECT);
 
+            protocolVersion = Protocol.VERSION_1;
+            negotiatedVersion = Protocol.VERSION_1;
+            decoder.setVersion(Protocol.VERSION_1);
+            setTypeTable(new String[1]);
+            stateReplica.reset();
+            synchronized (sendLock) {
+                writesClosed = false;
+            }
+            flushRequested.set(false);
+            readPaused = false;
+            readResumeRequested.set(false);
+            // Tasks scheduled for a previous connection are dropped with its wheel
+            timers = new TimerWheel();
             connected = true;
 
             readerThread = new Thread(this::readMessages);
@@ -74,6 +168,14 @@ public abstract class Client {
      * Disconnect from the server.
      */
     public final void disconnect() {
+        if (connected && socketChannel != null && socketChannel.isConnected()) {
+            // Give queued messages one last non-blocking write, whatever remains is dropped
+            try {
+                processWrites();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
         connected = false;
 
         if (readerThread != null) {
@@ -96,16 +198,180 @@ public abstract class Client {
 
     /**
      * Send a message to the server.
+     * The message is queued and written by the selector thread, this never blocks.
+     * With auto-flush off it stays queued until the next {@link #flush()}.
      * @param message the message object to send
      */
     public final void send(Object message) {
         if (connected && socketChannel != null && socketChannel.isConnected()) {
-            try {
-                byte[] wireData = Network.toWireFormat(message);
-                socketChannel.write(ByteBuffer.wrap(wireData));
-            } catch (IOException e) {
-                System.err.println("Error sending message: " + e.getMessage());
-                connected = false;
+            WireMessage wireMessage = Network.encode(message);
+            synchronized (sendLock) {
+                if (handshaking) {
+                    pendingMessages.add(wireMessage);
+                    return;
+                }
+                try {
+                    enqueue(frame(wireMessage).retain());
+                } finally {
+                    wireMessage.release();
+                }
+            }
+            if (autoFlush) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Send a message to the server with a delivery mode.
+     * Datagram modes go over UDP once the channel is open, and over TCP like
+     * {@link #send(Object)} before that, when UDP is disabled or unavailable, and for
+     * messages too large for the channel. Follows the same flushing rules.
+     * @param message the message object to send
+     * @param mode the delivery mode
+     */
+    public final void send(Object message, DeliveryMode mode) {
+        if (!mode.isDatagram() || !udpReady) {
+            send(message);
+            return;
+        }
+        if (connected && socketChannel != null && socketChannel.isConnected()) {
+            WireMessage wireMessage = Network.encode(message);
+            synchronized (sendLock) {
+                try {
+                    if (writesClosed) {
+                        return;
+                    }
+                    udpQueue.offer(new Datagram(frame(wireMessage).retain(), mode));
+                } finally {
+                    wireMessage.release();
+                }
+            }
+            if (autoFlush) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Run a task on the selector thread after a delay.
+     * Tasks should not block, since the selector thread reads and writes the socket too.
+     * Tasks still pending when the connection closes never run.
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @param task the task
+     * @return a handle that can cancel the task
+     * @throws IllegalStateException if the client is not connected
+     */
+    public final TimerWheel.Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        TimerWheel wheel = timers;
+        if (!connected || wheel == null) {
+            throw new IllegalStateException("Client is not connected");
+        }
+        TimerWheel.Timeout timeout = wheel.schedule(delay, unit, task);
+        Selector currentSelector = selector;
+        if (currentSelector != null && Thread.currentThread() != readerThread) {
+            currentSelector.wakeup();
+        }
+        return timeout;
+    }
+
+    /**
+     * Write all queued messages.
+     * The selector thread does the writing, so this returns immediately. Everything queued
+     * by the time it runs goes out in one gathering write.
+     */
+    public final void flush() {
+        if (flushRequested.compareAndSet(false, true) && Thread.currentThread() != readerThread) {
+            Selector currentSelector = selector;
+            if (currentSelector != null) {
+                currentSelector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Queue a frame for the selector thread.
+     * Must be called holding the send lock.
+     */
+    private void enqueue(SharedFrame frame) {
+        if (writesClosed) {
+            frame.release();
+            return;
+        }
+        writeQueue.offer(frame);
+    }
+
+    /**
+     * Write as much of the queue as the socket accepts.
+     * Anything left over is written when the socket becomes writable again.
+     */
+    private void processWrites() throws IOException {
+        synchronized (writeLock) {
+            if (!socketChannel.isConnected()) {
+                return;
+            }
+
+            boolean drained;
+            do {
+                // Move the unwritten tail of the previous batch to the front
+                int pending = batchEnd - batchStart;
+                if (batchStart > 0) {
+                    System.arraycopy(batch, batchStart, batch, 0, pending);
+                    System.arraycopy(batchFrames, batchStart, batchFrames, 0, pending);
+                    Arrays.fill(batch, pending, batchEnd, null);
+                    Arrays.fill(batchFrames, pending, batchEnd, null);
+                    batchStart = 0;
+                    batchEnd = pending;
+                }
+                while (batchEnd < batch.length) {
+                    SharedFrame next = writeQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batchFrames[batchEnd] = next;
+                    batch[batchEnd++] = next.view();
+                }
+                if (batchEnd == 0) {
+                    break;
+                }
+
+                if (socketChannel.write(batch, 0, batchEnd) > 0) {
+                    lastWriteNanos = System.nanoTime();
+                }
+
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batchFrames[batchStart].release();
+                    batchFrames[batchStart] = null;
+                    batch[batchStart++] = null;
+                }
+                drained = batchStart == batchEnd;
+            } while (drained && !writeQueue.isEmpty());
+
+            updateInterestOps();
+        }
+    }
+
+    private void updateInterestOps() {
+        SelectionKey key = socketChannel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            int ops = readPaused ? 0 : SelectionKey.OP_READ;
+            key.interestOps(hasPendingWrites() ? ops | SelectionKey.OP_WRITE : ops);
+        }
+    }
+
+    private void releaseWrites() {
+        synchronized (writeLock) {
+            for (int i = batchStart; i < batchEnd; i++) {
+                batchFrames[i].release();
+                batchFrames[i] = null;
+                batch[i] = null;
+            }
+            batchStart = 0;
+            batchEnd = 0;
+            SharedFrame frame;
+            while ((frame = writeQueue.poll()) != null) {
+                frame.release();
             }
         }
     }
@@ -113,7 +379,33 @@ public abstract class Client {
     private void readMessages() {
         try {
             while (connected) {
-                selector.select();
+                if (flushRequested.getAndSet(false)) {
+                    processDatagrams();
+                    processWrites();
+                }
+                if (readResumeRequested.getAndSet(false)) {
+                    readPaused = false;
+                    updateInterestOps();
+                }
+                long timeout = 0;
+                if (handshaking) {
+                    long remaining = handshakeDeadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        // Server predates the handshake, stay on version 1
+                        completeHandshake(negotiatedVersion);
+                        continue;
+                    }
+                    timeout = remaining;
+                }
+                long udpTimeout = pollUdp();
+                if (udpTimeout > 0 && (timeout == 0 || udpTimeout < timeout)) {
+                    timeout = udpTimeout;
+                }
+                long timerDelay = timers.nextDelayMillis(System.nanoTime());
+                if (timerDelay > 0 && (timeout == 0 || timerDelay < timeout)) {
+                    timeout = timerDelay;
+                }
+                selector.select(timeout);
 
                 Set<SelectionKey> selectedKeys = selector.selectedKeys();
                 Iterator<SelectionKey> iterator = selectedKeys.iterator();
@@ -122,16 +414,42 @@ public abstract class Client {
                     SelectionKey key = iterator.next();
                     iterator.remove();
 
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.channel() == udpChannel) {
+                        readDatagrams();
+                        continue;
+                    }
                     if (key.isConnectable()) {
                         onConnectedToServer();
-                    } else if (key.isReadable()) {
+                        continue;
+                    }
+                    if (key.isReadable()) {
                         readFromServer();
                     }
+                    if (connected && key.isValid() && key.isWritable()) {
+                        processWrites();
+                    }
+                }
+                if (connected) {
+                    timers.advance(System.nanoTime());
                 }
             }
         } catch (IOException e) {
             connected = false;
             onDisconnected();
+        } finally {
+            decoder.release();
+            synchronized (sendLock) {
+                writesClosed = true;
+                for (WireMessage message : pendingMessages) {
+                    message.release();
+                }
+                pendingMessages.clear();
+            }
+            closeUdp(null);
+            releaseWrites();
         }
     }
 
@@ -141,6 +459,24 @@ public abstract class Client {
                 return;
             }
             socketChannel.register(selector, SelectionKey.OP_READ);
+            lastReadNanos = System.nanoTime();
+            lastWriteNanos = lastReadNanos;
+            if (readIdleTimeoutMillis > 0 || writeIdleTimeoutMillis > 0) {
+                scheduleIdleCheck(idleCheckDelay(TimeUnit.MILLISECONDS.toNanos(readIdleTimeoutMillis),
+                    TimeUnit.MILLISECONDS.toNanos(writeIdleTimeoutMillis)));
+            }
+
+            if (maxProtocolVersion > Protocol.VERSION_1) {
+                // onConnected fires once the server answers or the handshake times out
+                handshaking = true;
+                handshakeDeadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+                synchronized (sendLock) {
+                    enqueue(SharedFrame.copyOf(Protocol.handshake(Protocol.HANDSHAKE_HELLO, maxProtocolVersion),
+                        Network.getBufferAllocator()));
+                }
+                processWrites();
+                return;
+            }
             onConnected();
         } catch (IOException e) {
             connected = false;
@@ -164,8 +500,7 @@ public abstract class Client {
     public abstract void onDisconnected();
 
     private void readFromServer() throws IOException {
-        readBuffer.clear();
-        int bytesRead = socketChannel.read(readBuffer);
+        int bytesRead = decoder.readFrom(socketChannel);
 
         if (bytesRead == -1) {
             connected = false;
@@ -174,49 +509,390 @@ public abstract class Client {
         }
 
         if (bytesRead > 0) {
-            readBuffer.flip();
-            String received = StandardCharsets.UTF_8.decode(readBuffer).toString();
-            messageBuffer.append(received);
-
+            lastReadNanos = System.nanoTime();
             // Process complete messages (wire format: ClassName\nJSON\n)
-            processMessageBuffer();
+            decoder.decode(frameListener);
+
+            DispatchStrategy dispatch = Network.getDispatchStrategy();
+            if (dispatch.isSaturated(SERVER_SENDER)) {
+                // Read again once the handlers have caught up
+                readPaused = true;
+                updateInterestOps();
+                dispatch.onDrained(SERVER_SENDER, () -> {
+                    readResumeRequested.set(true);
+                    Selector currentSelector = selector;
+                    if (currentSelector != null) {
+                        currentSelector.wakeup();
+                    }
+                });
+            }
         }
     }
 
-    private void processMessageBuffer() {
-        String buffer = messageBuffer.toString();
+    private void scheduleIdleCheck(long delayNanos) {
+        timers.schedule(delayNanos, TimeUnit.NANOSECONDS, this::checkIdle);
+    }
 
-        // Each complete message is: ClassName\nJSON\n
-        // So we need at least two newlines for a complete message
-        while (true) {
-            int firstNewline = buffer.indexOf('\n');
-            if (firstNewline == -1) {
-                break; // No complete line yet
+    /**
+     * Drop the connection if the server has been silent for the read idle timeout and ping
+     * it if nothing was written for the write idle timeout, then re-arm for whichever
+     * comes first.
+     */
+    private void checkIdle() {
+        if (!connected) {
+            return;
+        }
+        long now = System.nanoTime();
+        long readIdleNanos = TimeUnit.MILLISECONDS.toNanos(readIdleTimeoutMillis);
+        long writeIdleNanos = TimeUnit.MILLISECONDS.toNanos(writeIdleTimeoutMillis);
+        long readDelay = 0;
+        if (readIdleNanos > 0) {
+            long idle = now - lastReadNanos;
+            if (idle >= readIdleNanos) {
+                System.err.println("Server timed out, nothing received for " + readIdleTimeoutMillis + "ms");
+                connected = false;
+                try {
+                    socketChannel.close();
+                } catch (IOException e) {
+                    // Disconnecting anyway
+                }
+                onDisconnected();
+                return;
             }
+            readDelay = readIdleNanos - idle;
+        }
+        long writeDelay = 0;
+        if (writeIdleNanos > 0) {
+            long idle = now - lastWriteNanos;
+            if (idle < writeIdleNanos) {
+                writeDelay = writeIdleNanos - idle;
+            } else {
+                // Version 1 servers do not know control frames
+                if (!handshaking && protocolVersion >= Protocol.VERSION_2 && !hasPendingWrites()) {
+                    sendControl(Protocol.PING);
+                }
+                writeDelay = writeIdleNanos;
+            }
+        }
+        scheduleIdleCheck(idleCheckDelay(readDelay, writeDelay));
+    }
 
-            int secondNewline = buffer.indexOf('\n', firstNewline + 1);
-            if (secondNewline == -1) {
-                break; // No complete message yet
+    private static long idleCheckDelay(long readDelay, long writeDelay) {
+        if (readDelay == 0) {
+            return writeDelay;
+        }
+        return writeDelay == 0 ? readDelay : Math.min(readDelay, writeDelay);
+    }
+
+    private void sendControl(String name) {
+        WireMessage message = new WireMessage(name, new byte[0]);
+        synchronized (sendLock) {
+            try {
+                enqueue(message.frame(protocolVersion, Protocol.TYPE_NAMED).retain());
+            } finally {
+                message.release();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Open the UDP channel offered by the server and start sending hellos.
+     */
+    private void openUdp(ByteBuffer body) throws ProtocolException {
+        int udpPort = Protocol.readVarInt(body);
+        if (body.remaining() != Long.BYTES) {
+            throw new ProtocolException("Malformed UDP session offer");
+        }
+        long token = body.getLong();
+        if (!udpEnabled) {
+            return;
+        }
+
+        closeUdp(null);
+        try {
+            InetSocketAddress server = new InetSocketAddress(
+                ((InetSocketAddress) socketChannel.getRemoteAddress()).getAddress(), udpPort);
+            udpChannel = DatagramChannel.open();
+            udpChannel.configureBlocking(false);
+            udpChannel.connect(server);
+            udpChannel.register(selector, SelectionKey.OP_READ);
+            udpSession = new UdpSession(token, udpChannel, Network.getBufferAllocator(), maxDatagramSize);
+            udpSession.setRemoteAddress(server);
+            if (udpReceiveBuffer == null) {
+                udpReceiveBuffer = ByteBuffer.allocateDirect(UdpSession.MAX_RECEIVE_SIZE);
             }
+            udpHelloAttempts = 0;
+            udpHelloDeadline = 0;
+        } catch (IOException e) {
+            closeUdp("Could not open UDP channel, using TCP only: " + e.getMessage());
+        }
+    }
 
-            // Extract class name and JSON body
-            String className = buffer.substring(0, firstNewline);
-            String jsonBody = buffer.substring(firstNewline + 1, secondNewline);
+    /**
+     * Send hellos until the server answers, then resend overdue reliable datagrams.
+     * @return the select timeout until this is next due, 0 if nothing is
+     */
+    private long pollUdp() throws IOException {
+        if (udpSession == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            if (!udpReady) {
+                if (now >= udpHelloDeadline) {
+                    if (udpHelloAttempts++ == UDP_HELLO_ATTEMPTS) {
+                        closeUdp("No answer over UDP, using TCP only");
+                        return 0;
+                    }
+                    udpSession.sendControl(UdpSession.HELLO);
+                    udpHelloDeadline = now + UDP_HELLO_INTERVAL_MS;
+                }
+                return udpHelloDeadline - now;
+            }
+            long next = udpSession.poll(now);
+            if (!udpSession.isOpen()) {
+                closeUdp("UDP session timed out, using TCP only");
+                return 0;
+            }
+            return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+        } catch (IOException e) {
+            closeUdp("UDP channel failed, using TCP only: " + e.getMessage());
+            return 0;
+        }
+    }
 
-            // Dispatch to Network
+    private void readDatagrams() {
+        long now = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < MAX_DATAGRAMS_PER_READ && udpSession != null; i++) {
+                udpReceiveBuffer.clear();
+                if (udpChannel.receive(udpReceiveBuffer) == null) {
+                    break;
+                }
+                udpReceiveBuffer.flip();
+                if (udpReceiveBuffer.remaining() < UdpSession.HEADER_LENGTH
+                        || udpReceiveBuffer.getLong() != udpSession.getToken()) {
+                    continue;
+                }
+                int kind = udpReceiveBuffer.get();
+                if (kind == UdpSession.HELLO_ACK) {
+                    udpReady = true;
+                    continue;
+                }
+                try {
+                    udpSession.receive(kind, udpReceiveBuffer, now, frameListener);
+                } catch (ProtocolException e) {
+                    System.err.println("Invalid datagram from server: " + e.getMessage());
+                }
+            }
+            if (udpSession != null) {
+                udpSession.flushAcks();
+            }
+        } catch (IOException e) {
+            closeUdp("UDP channel failed, using TCP only: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send the queued datagram messages, or move them to the TCP queue if UDP is unusable.
+     */
+    private void processDatagrams() {
+        long now = System.currentTimeMillis();
+        boolean streamed = false;
+        Datagram datagram;
+        while ((datagram = udpQueue.poll()) != null) {
             try {
-                byte[] jsonBytes = jsonBody.getBytes(StandardCharsets.UTF_8);
-                Network.dispatch(className, jsonBytes, "SERVER");
-            } catch (Exception e) {
-                System.err.println("Error handling message: " + e.getMessage());
+                if (udpSession != null && udpSession.isOpen() && udpSession.fits(datagram.frame.length())) {
+                    udpSession.send(datagram.frame.view(), datagram.mode, now);
+                    continue;
+                }
+                synchronized (sendLock) {
+                    enqueue(datagram.frame.retain());
+                }
+                streamed = true;
+            } catch (IOException e) {
+                closeUdp("UDP channel failed, using TCP only: " + e.getMessage());
+            } finally {
+                datagram.frame.release();
             }
+        }
+        if (streamed) {
+            flush();
+        }
+    }
 
-            // Remove processed message from buffer
-            buffer = buffer.substring(secondNewline + 1);
+    /**
+     * Close the UDP channel, later datagram sends go over TCP.
+     * @param reason logged if not null
+     */
+    private void closeUdp(String reason) {
+        udpReady = false;
+        if (udpSession != null) {
+            udpSession.close();
+            udpSession = null;
         }
+        if (udpChannel != null) {
+            try {
+                udpChannel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            udpChannel = null;
+        }
+        if (reason != null) {
+            System.err.println(reason);
+        }
+        processDatagrams();
+    }
 
-        // Store remaining partial data
-        messageBuffer = new StringBuilder(buffer);
+    private void dispatchFrame(int typeId, String className, int flags, ByteBuffer body) throws ProtocolException {
+        if (typeId == Protocol.TYPE_NAMED && Protocol.isControl(className)) {
+            if ((flags & Protocol.FLAG_COMPRESSED) == 0) {
+                handleControlFrame(className, body);
+                return;
+            }
+            ByteBuffer decompressed = Network.decompress(body);
+            try {
+                handleControlFrame(className, decompressed);
+            } finally {
+                Network.getBufferAllocator().release(decompressed);
+            }
+            return;
+        }
+        try {
+            if (typeId == Protocol.TYPE_NAMED) {
+                Network.dispatch(Protocol.TYPE_NAMED, className, flags, body, SERVER_SENDER);
+            } else if (typeId < localTypeIds.length && localTypeIds[typeId] != Protocol.TYPE_NAMED) {
+                Network.dispatch(localTypeIds[typeId], null, flags, body, SERVER_SENDER);
+            } else if (typeId < serverTypeNames.length) {
+                // Handler registered after the handshake, fall back to the name
+                Network.dispatch(Protocol.TYPE_NAMED, serverTypeNames[typeId], flags, body, SERVER_SENDER);
+            } else {
+                throw new ProtocolException("Unknown type ID: " + typeId);
+            }
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (Exception e) {
+            System.err.println("Error handling message: " + e.getMessage());
+        }
+    }
+
+    private void handleControlFrame(String name, ByteBuffer body) throws ProtocolException {
+        if (Protocol.STATE.equals(name)) {
+            applyState(body);
+            return;
+        }
+        if (Protocol.UDP_SESSION.equals(name)) {
+            openUdp(body);
+            return;
+        }
+        if (Protocol.PING.equals(name)) {
+            sendControl(Protocol.PONG);
+            return;
+        }
+        if (Protocol.PONG.equals(name)) {
+            // The read itself refreshed the idle time
+            return;
+        }
+        if (Protocol.HANDSHAKE_TYPES.equals(name)) {
+            if (!handshaking || negotiatedVersion < Protocol.VERSION_2) {
+                throw new ProtocolException("Unexpected type table");
+            }
+            setTypeTable(TypeRegistry.decodeTable(body));
+            completeHandshake(negotiatedVersion);
+            return;
+        }
+        if (!Protocol.HANDSHAKE_ACK.equals(name)) {
+            System.err.println("Unknown control frame: " + name);
+            return;
+        }
+        if (!handshaking || negotiatedVersion != Protocol.VERSION_1) {
+            throw new ProtocolException("Unexpected handshake");
+        }
+
+        int version = Protocol.parseVersion(body);
+        if (version < Protocol.VERSION_1 || version > maxProtocolVersion) {
+            throw new ProtocolException("Unsupported protocol version: " + version);
+        }
+        negotiatedVersion = version;
+        decoder.setVersion(version);
+        if (version < Protocol.VERSION_2) {
+            completeHandshake(version);
+        }
+        // Otherwise the server follows up with its type table
+    }
+
+    private void applyState(ByteBuffer body) throws ProtocolException {
+        int acknowledged;
+        try {
+            acknowledged = stateReplica.apply(body);
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (Exception e) {
+            // Thrown by the listener, the snapshot itself was applied
+            System.err.println("Error handling state update: " + e.getMessage());
+            acknowledged = stateReplica.getSequence();
+        }
+
+        byte[] ack = new byte[Protocol.varIntSize(acknowledged)];
+        Protocol.writeVarInt(ByteBuffer.wrap(ack), acknowledged);
+        WireMessage message = new WireMessage(Protocol.STATE_ACK, ack);
+        synchronized (sendLock) {
+            try {
+                enqueue(message.frame(protocolVersion, Protocol.TYPE_NAMED).retain());
+            } finally {
+                message.release();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Map the server's type IDs onto local ones.
+     * Local types without a server ID are sent by name.
+     */
+    private void setTypeTable(String[] names) {
+        TypeRegistry registry = Network.getTypeRegistry();
+        int[] local = new int[names.length];
+        int[] server = new int[registry.size()];
+        for (int id = 1; id < names.length; id++) {
+            int localId = registry.getId(names[id]);
+            local[id] = localId;
+            if (localId != Protocol.TYPE_NAMED && localId < server.length) {
+                server[localId] = id;
+            }
+        }
+        synchronized (sendLock) {
+            serverTypeNames = names;
+            localTypeIds = local;
+            serverTypeIds = server;
+        }
+    }
+
+    /**
+     * Get the frame for an outgoing message, using the server's type ID when it has one.
+     * Must be called holding the send lock.
+     */
+    private SharedFrame frame(WireMessage message) {
+        int typeId = message.getTypeId();
+        int serverTypeId = typeId < serverTypeIds.length ? serverTypeIds[typeId] : Protocol.TYPE_NAMED;
+        return message.frame(protocolVersion, serverTypeId);
+    }
+
+    private void completeHandshake(int version) {
+        decoder.setVersion(version);
+        synchronized (sendLock) {
+            protocolVersion = version;
+            handshaking = false;
+            for (WireMessage message : pendingMessages) {
+                enqueue(frame(message).retain());
+                message.release();
+            }
+            pendingMessages.clear();
+        }
+        flush();
+        onConnected();
     }
 
     /**
@@ -227,6 +903,42 @@ public abstract class Client {
         return connected && socketChannel != null && socketChannel.isConnected();
     }
 
+    /**
+     * Get the entity states replicated from the server's StateSync.
+     * @return the state replica
+     */
+    public final StateReplica getStateReplica() {
+        return stateReplica;
+    }
+
+    /**
+     * Check if there are sent messages the socket has not accepted yet.
+     * @return true if writes are pending
+     */
+    public final boolean hasPendingWrites() {
+        synchronized (writeLock) {
+            return batchStart < batchEnd || !writeQueue.isEmpty();
+        }
+    }
+
+    /**
+     * Check if sends are flushed automatically.
+     * @return true if auto-flush is on
+     */
+    public final boolean isAutoFlush() {
+        return autoFlush;
+    }
+
+    /**
+     * Set whether each send is flushed automatically, on by default.
+     * Turn it off to queue sends until {@link #flush()}, typically called once per game
+     * frame so all of the frame's messages leave in a single write.
+     * @param autoFlush true to flush on every send
+     */
+    public final void setAutoFlush(boolean autoFlush) {
+        this.autoFlush = autoFlush;
+    }
+
     public final String getHost() {
         return host;
     }
@@ -251,6 +963,110 @@ public abstract class Client {
         this.host = host;
     }
 
+    /**
+     * Get the wire protocol version negotiated with the server.
+     * @return the protocol version
+     */
+    public final int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Set the highest wire protocol version to offer during the connect handshake.
+     * Version 1 skips the handshake entirely.
+     * @param maxProtocolVersion the highest version to offer
+     */
+    public final void setMaxProtocolVersion(int maxProtocolVersion) {
+        if (isConnected()) {
+            System.err.println("Cannot set the protocol version whilst it is running.");
+            return;
+        }
+        if (maxProtocolVersion < Protocol.VERSION_1 || maxProtocolVersion > Protocol.CURRENT_VERSION) {
+            throw new IllegalArgumentException("Unsupported protocol version: " + maxProtocolVersion);
+        }
+        this.maxProtocolVersion = maxProtocolVersion;
+    }
+
+    /**
+     * Check if datagram delivery modes currently go over UDP.
+     * @return true once the server answered over the UDP channel
+     */
+    public final boolean isUdpConnected() {
+        return udpReady;
+    }
+
+    /**
+     * Enable the UDP channel. It opens after the handshake if the server offers one.
+     * @param udpEnabled true to accept the server's UDP session
+     */
+    public final void setUdpEnabled(boolean udpEnabled) {
+        if (isConnected()) {
+            System.err.println("Cannot set the UDP channel whilst it is running.");
+            return;
+        }
+        this.udpEnabled = udpEnabled;
+    }
+
+    /**
+     * Disconnect if the server sends nothing for this long, which catches a server or
+     * network path that vanished without closing the socket. Servers with a write idle
+     * timeout send heartbeats, so use a longer read timeout than their heartbeat interval.
+     * @param timeoutMillis the timeout in milliseconds, or 0 to never time out
+     */
+    public final void setReadIdleTimeout(long timeoutMillis) {
+        if (isConnected()) {
+            System.err.println("Cannot set the read idle timeout whilst it is running.");
+            return;
+        }
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        }
+        this.readIdleTimeoutMillis = timeoutMillis;
+    }
+
+    public final long getReadIdleTimeout() {
+        return readIdleTimeoutMillis;
+    }
+
+    /**
+     * Send a heartbeat ping to a version 2 server when nothing has been written for this
+     * long. The server answers with a pong, which counts as a read.
+     * @param timeoutMillis the timeout in milliseconds, or 0 to send no heartbeats
+     */
+    public final void setWriteIdleTimeout(long timeoutMillis) {
+        if (isConnected()) {
+            System.err.println("Cannot set the write idle timeout whilst it is running.");
+            return;
+        }
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        }
+        this.writeIdleTimeoutMillis = timeoutMillis;
+    }
+
+    public final long getWriteIdleTimeout() {
+        return writeIdleTimeoutMillis;
+    }
+
+    public final boolean isUdpEnabled() {
+        return udpEnabled;
+    }
+
+    /**
+     * Set the largest datagram the client sends, larger messages are fragmented.
+     * @param maxDatagramSize the datagram size in bytes, below the path MTU
+     */
+    public final void setMaxDatagramSize(int maxDatagramSize) {
+        if (isConnected()) {
+            System.err.println("Cannot set the datagram size whilst it is running.");
+            return;
+        }
+        if (maxDatagramSize < UdpSession.MIN_DATAGRAM_SIZE || maxDatagramSize > UdpSession.MAX_RECEIVE_SIZE) {
+            throw new IllegalArgumentException("Invalid datagram size: " + maxDatagramSize);
+        }
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
     public final void setPort(int port) {
         if (isConnected()) {
             System.err.println("Cannot set the server port whilst it is running.");
@@ -258,4 +1074,17 @@ public abstract class Client {
         }
         this.port = port;
     }
+
+    /**
+     * A frame queued for the UDP channel.
+     */
+    private static final class Datagram {
+        final SharedFrame frame;
+        final DeliveryMode mode;
+
+        Datagram(SharedFrame frame, DeliveryMode mode) {
+            this.frame = frame;
+            this.mode = mode;
+        }
+    }
 }
@@ -0,0 +1,197 @@
+package com.netplay.client;
+
+import com.netplay.shared.BinaryReader;
+import com.netplay.shared.Network;
+import com.netplay.shared.Serializer;
+import com.netplay.shared.StateDelta;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client-side copy of the entity states replicated by the server's StateSync.
+ * Snapshots are applied on the client's selector thread and acknowledged automatically.
+ * The most recent snapshots are kept in a ring as baselines for the deltas that follow,
+ * if a delta refers to one no longer held the client asks for a full snapshot.
+ *
+ * Reading is safe from any thread, each snapshot replaces the visible state at once.
+ */
+public final class StateReplica {
+    public static final int DEFAULT_HISTORY_SIZE = 32;
+
+    private static final int FULL = 0;
+    private static final int DELTA = 1;
+
+    /**
+     * Notified after each snapshot is applied, on the client's selector thread.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Handle an applied snapshot.
+         * @param replica the replica, already holding the new state
+         * @param changed IDs of entities added or changed
+         * @param removed IDs of entities removed
+         */
+        void onStateUpdated(StateReplica replica, Set<String> changed, Set<String> removed);
+    }
+
+    private final Snapshot[] history;
+    private volatile Map<String, byte[]> entities = Collections.emptyMap();
+    private volatile int sequence;
+    private volatile Listener listener;
+
+    StateReplica(int historySize) {
+        this.history = new Snapshot[historySize];
+    }
+
+    /**
+     * Deserialize an entity's current state.
+     * @param entityId the entity ID
+     * @param type the state class
+     * @param <T> the state type
+     * @return the state, or null if the entity does not exist
+     */
+    public <T> T get(String entityId, Class<T> type) {
+        byte[] data = entities.get(entityId);
+        if (data == null) {
+            return null;
+        }
+        Serializer serializer = Network.getSerializer();
+        if (serializer == null) {
+            throw new IllegalStateException("Serializer not set. Call Network.setSerializer() first.");
+        }
+        return serializer.deserialize(data, type);
+    }
+
+    public boolean contains(String entityId) {
+        return entities.containsKey(entityId);
+    }
+
+    public Set<String> getEntityIds() {
+        return Collections.unmodifiableSet(entities.keySet());
+    }
+
+    /**
+     * Get the sequence number of the last applied snapshot.
+     * @return the sequence, 0 before the first snapshot
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Apply a snapshot from the server.
+     * @param body the snapshot, in the format written by StateSync
+     * @return the sequence to acknowledge, 0 to ask for a full snapshot
+     * @throws ProtocolException if the snapshot is malformed
+     */
+    synchronized int apply(ByteBuffer body) throws ProtocolException {
+        Map<String, byte[]> next;
+        int snapshotSequence;
+        try {
+            BinaryReader in = new BinaryReader(body);
+            snapshotSequence = in.readVarInt();
+            int baselineSequence = in.readVarInt();
+            if (snapshotSequence <= 0) {
+                throw new ProtocolException("Invalid state sequence: " + snapshotSequence);
+            }
+
+            Map<String, byte[]> base;
+            if (baselineSequence == 0) {
+                base = Collections.emptyMap();
+                next = new HashMap<>();
+            } else {
+                Snapshot baseline = history[baselineSequence % history.length];
+                if (baseline == null || baseline.sequence != baselineSequence) {
+                    // Lost the baseline, ask for a full snapshot
+                    return 0;
+                }
+                base = baseline.entities;
+                next = new HashMap<>(base);
+            }
+
+            int removedCount = in.readVarInt();
+            for (int i = 0; i < removedCount; i++) {
+                next.remove(in.readString());
+            }
+
+            int entryCount = in.readVarInt();
+            for (int i = 0; i < entryCount; i++) {
+                String id = in.readString();
+                int kind = in.readByte();
+                byte[] data;
+                if (kind == FULL) {
+                    data = in.readBytes();
+                } else if (kind == DELTA) {
+                    byte[] previous = base.get(id);
+                    if (previous == null) {
+                        throw new ProtocolException("State delta for unknown entity: " + id);
+                    }
+                    data = StateDelta.apply(previous, in);
+                } else {
+                    throw new ProtocolException("Unknown state entry kind: " + kind);
+                }
+                if (id == null || data == null) {
+                    throw new ProtocolException("Missing state entry");
+                }
+                next.put(id, data);
+            }
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed state snapshot: " + e.getMessage());
+        }
+
+        // The baseline can be older than the visible state, so compare against the latter
+        Map<String, byte[]> previous = entities;
+        Set<String> changed = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        for (Map.Entry<String, byte[]> entry : next.entrySet()) {
+            byte[] old = previous.get(entry.getKey());
+            if (old != entry.getValue() && (old == null || !Arrays.equals(old, entry.getValue()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String id : previous.keySet()) {
+            if (!next.containsKey(id)) {
+                removed.add(id);
+            }
+        }
+        history[snapshotSequence % history.length] = new Snapshot(snapshotSequence, next);
+        entities = next;
+        sequence = snapshotSequence;
+
+        Listener current = listener;
+        if (current != null) {
+            current.onStateUpdated(this, changed, removed);
+        }
+        return snapshotSequence;
+    }
+
+    /**
+     * Forget all state, for a new connection.
+     */
+    synchronized void reset() {
+        Arrays.fill(history, null);
+        entities = Collections.emptyMap();
+        sequence = 0;
+    }
+
+    private static final class Snapshot {
+        final int sequence;
+        final Map<String, byte[]> entities;
+
+        Snapshot(int sequence, Map<String, byte[]> entities) {
+            this.sequence = sequence;
+            this.entities = entities;
+        }
+    }
+}
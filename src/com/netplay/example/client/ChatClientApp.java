@@ -1,7 +1,7 @@
 package com.netplay.example.client;
 
+import com.netplay.example.shared.messages.MessageCodecs;
 import com.netplay.example.shared.messages.NetworkMessageChat;
-import com.netplay.shared.JsonSerializer;
 import com.netplay.shared.Network;
 import java.util.Scanner;
 
@@ -19,13 +19,15 @@ public class ChatClientApp {
             }
 
             // Configure the network
-            Network.setSerializer(new JsonSerializer());
+            Network.setSerializer(MessageCodecs.createSerializer());
 
             // Register message handlers
             ClientMessageHandlers.register();
 
             MyClient client = new MyClient();
             client.setUsername(username);
+            // The server pings every 10 seconds, so 30 seconds of silence means it is gone
+            client.setReadIdleTimeout(30000);
 
             System.out.print("Enter server host (or press Enter for localhost): ");
             String host = scanner.nextLine().trim();
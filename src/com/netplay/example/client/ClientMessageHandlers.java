@@ -1,12 +1,16 @@
 package com.netplay.example.client;
 
 import com.netplay.example.shared.messages.NetworkMessageChat;
+import com.netplay.example.shared.messages.NetworkMessageLogin;
 import com.netplay.example.shared.messages.NetworkMessageNotification;
 import com.netplay.shared.Network;
 
 public class ClientMessageHandlers {
 
     public static void register() {
+        // Sent but not handled here, registered so it goes out by type ID
+        Network.register(NetworkMessageLogin.class);
+
         Network.on(NetworkMessageChat.class, (chatMessage, senderId) -> {
             System.out.println(chatMessage.getSender() + ": " + chatMessage.getMessage());
         });
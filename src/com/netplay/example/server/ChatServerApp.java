@@ -1,6 +1,6 @@
 package com.netplay.example.server;
 
-import com.netplay.shared.JsonSerializer;
+import com.netplay.example.shared.messages.MessageCodecs;
 import com.netplay.shared.Network;
 import java.util.Scanner;
 
@@ -40,13 +40,16 @@ public class ChatServerApp {
             }
 
             // Configure the network
-            Network.setSerializer(new JsonSerializer());
+            Network.setSerializer(MessageCodecs.createSerializer());
 
             // Register message handlers
             ServerMessageHandlers.register();
 
             MyServer server = new MyServer();
             server.setMaxConnections(maxConnections);
+            // Ping quiet clients every 10 seconds, drop those silent for 30
+            server.setWriteIdleTimeout(10000);
+            server.setReadIdleTimeout(30000);
 
             System.out.println("Starting chat server on " + host + ":" + port + " (max " + maxConnections + " connections)");
             server.start(host, port);
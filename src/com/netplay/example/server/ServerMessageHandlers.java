@@ -4,10 +4,14 @@ import com.netplay.example.shared.messages.NetworkMessageChat;
 import com.netplay.example.shared.messages.NetworkMessageLogin;
 import com.netplay.example.shared.messages.NetworkMessageNotification;
 import com.netplay.shared.Network;
+import java.util.concurrent.TimeUnit;
 
 public class ServerMessageHandlers {
 
     public static void register() {
+        // Sent but not handled here, registered so it goes out by type ID
+        Network.register(NetworkMessageNotification.class);
+
         Network.on(NetworkMessageLogin.class, (loginMessage, senderId) -> {
             String username = loginMessage.getUsername();
 
@@ -16,14 +20,9 @@ public class ServerMessageHandlers {
                     username + " is already logged in. Kicking...");
                 Network.send(senderId, notification);
 
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    MyServer.getInstance().kick(senderId);
-                }).start();
+                // Give the notification time to go out before the connection closes
+                MyServer.getInstance().schedule(senderId, 100, TimeUnit.MILLISECONDS,
+                    () -> MyServer.getInstance().kick(senderId));
                 return;
             }
 
@@ -0,0 +1,17 @@
+package com.netplay.example.shared.messages;
+
+import com.netplay.shared.BinarySerializer;
+
+public class MessageCodecs {
+
+    /**
+     * Create a serializer with the generated codec of every example message.
+     * @return the serializer
+     */
+    public static BinarySerializer createSerializer() {
+        return new BinarySerializer()
+            .register(NetworkMessageChatCodec.INSTANCE)
+            .register(NetworkMessageLoginCodec.INSTANCE)
+            .register(NetworkMessageNotificationCodec.INSTANCE);
+    }
+}
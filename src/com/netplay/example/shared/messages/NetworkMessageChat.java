@@ -1,5 +1,8 @@
 package com.netplay.example.shared.messages;
 
+import com.netplay.shared.NetMessage;
+
+@NetMessage
 public class NetworkMessageChat {
     private String sender;
     private String message;
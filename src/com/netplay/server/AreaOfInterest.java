@@ -0,0 +1,281 @@
+package com.netplay.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spatial index of connection positions for area-of-interest broadcasts.
+ *
+ * Positions live in a uniform grid of square cells. Moving within a cell only updates the
+ * position, moving to another cell swaps the entry out of one cell array and into the
+ * next, so updates cost the same however many connections are indexed. A query only
+ * visits the cells its circle overlaps, so its cost follows the number of nearby
+ * connections rather than the total.
+ *
+ * Choose a cell size around the typical query radius: much smaller means many cells
+ * per query, much larger means many distance checks against connections out of range.
+ * Thread-safe, queries run concurrently and updates take a short exclusive lock.
+ */
+public final class AreaOfInterest {
+    public static final double DEFAULT_CELL_SIZE = 64;
+
+    private static final NetworkConnection[] NONE = new NetworkConnection[0];
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Cell> cells = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private double cellSize = DEFAULT_CELL_SIZE;
+
+    AreaOfInterest() {
+    }
+
+    /**
+     * Set the grid cell size. Only allowed while no positions are indexed.
+     * @param cellSize the cell edge length, in the same units as positions
+     */
+    public void setCellSize(double cellSize) {
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        lock.writeLock().lock();
+        try {
+            if (!entries.isEmpty()) {
+                throw new IllegalStateException("Cannot change the cell size while positions are indexed");
+            }
+            this.cellSize = cellSize;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public double getCellSize() {
+        lock.readLock().lock();
+        try {
+            return cellSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Set or move a connection's position. Disconnected connections are removed automatically.
+     * @param connection the connection
+     * @param x the x coordinate
+     * @param y the y coordinate
+     */
+    void update(NetworkConnection connection, double x, double y) {
+        if (Double.isNaN(x) || Double.isNaN(y)) {
+            throw new IllegalArgumentException("Position must be a number");
+        }
+        lock.writeLock().lock();
+        try {
+            long key = cellKey(x, y);
+            Entry entry = entries.get(connection.getId());
+            if (entry == null) {
+                entry = new Entry(connection);
+                entries.put(connection.getId(), entry);
+                cell(key).add(entry);
+            } else if (entry.cell.key != key) {
+                removeFromCell(entry);
+                cell(key).add(entry);
+            }
+            entry.x = x;
+            entry.y = y;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a connection's position.
+     * @param connectionId the connection ID
+     * @return false if it had none
+     */
+    public boolean remove(String connectionId) {
+        lock.writeLock().lock();
+        try {
+            Entry entry = entries.remove(connectionId);
+            if (entry == null) {
+                return false;
+            }
+            removeFromCell(entry);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(String connectionId) {
+        lock.readLock().lock();
+        try {
+            return entries.containsKey(connectionId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of indexed connections.
+     * @return the count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the IDs of the connected connections within a radius of a point.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param radius the radius, inclusive
+     * @return the connection IDs
+     * @throws IllegalArgumentException if the radius is negative or not finite
+     */
+    public List<String> getConnectionsNear(double x, double y, double radius) {
+        NetworkConnection[] found = near(x, y, radius);
+        List<String> ids = new ArrayList<>(found.length);
+        for (NetworkConnection connection : found) {
+            ids.add(connection.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Find the connected connections within a radius of a point.
+     */
+    NetworkConnection[] near(double x, double y, double radius) {
+        if (!(radius >= 0) || radius == Double.POSITIVE_INFINITY) {
+            throw new IllegalArgumentException("Radius must be finite and not negative: " + radius);
+        }
+        lock.readLock().lock();
+        try {
+            if (entries.isEmpty()) {
+                return NONE;
+            }
+            long minX = cellIndex(x - radius);
+            long maxX = cellIndex(x + radius);
+            long minY = cellIndex(y - radius);
+            long maxY = cellIndex(y + radius);
+            double radiusSquared = radius * radius;
+            List<NetworkConnection> found = new ArrayList<>();
+
+            // Large radius relative to the cell size: walking the occupied cells is cheaper.
+            // Counted as a double, the clamped range can span more cells than a long holds
+            if ((double) (maxX - minX + 1) * (maxY - minY + 1) > cells.size()) {
+                for (Cell cell : cells.values()) {
+                    long cellX = cell.key >> 32;
+                    long cellY = (int) cell.key;
+                    if (cellX >= minX && cellX <= maxX && cellY >= minY && cellY <= maxY) {
+                        cell.collect(x, y, radiusSquared, found);
+                    }
+                }
+            } else {
+                for (long cellX = minX; cellX <= maxX; cellX++) {
+                    for (long cellY = minY; cellY <= maxY; cellY++) {
+                        Cell cell = cells.get(key(cellX, cellY));
+                        if (cell != null) {
+                            cell.collect(x, y, radiusSquared, found);
+                        }
+                    }
+                }
+            }
+            return found.toArray(NONE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Cell cell(long key) {
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell(key);
+            cells.put(key, cell);
+        }
+        return cell;
+    }
+
+    private void removeFromCell(Entry entry) {
+        Cell cell = entry.cell;
+        cell.remove(entry);
+        if (cell.size == 0) {
+            cells.remove(cell.key);
+        }
+    }
+
+    private long cellKey(double x, double y) {
+        return key(cellIndex(x), cellIndex(y));
+    }
+
+    /**
+     * Cell coordinate, clamped to the int range so keys pack into a long.
+     */
+    private long cellIndex(double coordinate) {
+        double index = Math.floor(coordinate / cellSize);
+        return (long) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, index));
+    }
+
+    private static long key(long cellX, long cellY) {
+        return (cellX << 32) | (cellY & 0xFFFFFFFFL);
+    }
+
+    private static final class Entry {
+        final NetworkConnection connection;
+        double x;
+        double y;
+        Cell cell;
+        int index;
+
+        Entry(NetworkConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * The entries in one grid cell, removed by swapping in the last one.
+     */
+    private static final class Cell {
+        final long key;
+        Entry[] entries = new Entry[4];
+        int size;
+
+        Cell(long key) {
+            this.key = key;
+        }
+
+        void add(Entry entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entry.cell = this;
+            entry.index = size;
+            entries[size++] = entry;
+        }
+
+        void remove(Entry entry) {
+            Entry last = entries[--size];
+            entries[entry.index] = last;
+            last.index = entry.index;
+            entries[size] = null;
+            entry.cell = null;
+        }
+
+        void collect(double x, double y, double radiusSquared, List<NetworkConnection> found) {
+            for (int i = 0; i < size; i++) {
+                Entry entry = entries[i];
+                double dx = entry.x - x;
+                double dy = entry.y - y;
+                if (dx * dx + dy * dy <= radiusSquared && entry.connection.isConnected()) {
+                    found.add(entry.connection);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.netplay.server;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Connections by numeric ID, in an open-addressing table with linear probing.
+ * Keys are primitive longs, so lookups neither box nor hash a String.
+ *
+ * Lookups and iteration are lock-free and may run on any thread, updates are
+ * serialized by a lock. A slot's value is published before its key and cleared before
+ * its key is retired. Removed slots are reused, so a reader that matched a key may then
+ * read the value of a connection put in its place; lookups check the value's own ID.
+ * IDs must be positive and match the connection's numeric ID, 0 marks a free slot and
+ * -1 a removed one.
+ */
+final class ConnectionMap {
+    private static final long FREE = 0;
+    private static final long REMOVED = -1;
+    private static final int MIN_CAPACITY = 64;
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private volatile int size;
+    // Live and removed slots, both lengthen probes until the next rehash
+    private int used;
+
+    private final Collection<NetworkConnection> values = new AbstractCollection<NetworkConnection>() {
+        @Override
+        public Iterator<NetworkConnection> iterator() {
+            return new ValueIterator(table);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    };
+
+    NetworkConnection get(long id) {
+        if (id <= 0) {
+            return null;
+        }
+        Table current = table;
+        int mask = current.mask;
+        for (int slot = current.slotOf(id); ; slot = (slot + 1) & mask) {
+            long key = current.keys.get(slot);
+            if (key == id) {
+                NetworkConnection connection = current.values.get(slot);
+                // Removed since the key was read, and maybe replaced by another connection
+                return connection != null && connection.getNumericId() == id ? connection : null;
+            }
+            if (key == FREE) {
+                return null;
+            }
+        }
+    }
+
+    boolean containsKey(long id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Add a connection under an ID that is not in use.
+     */
+    synchronized void put(long id, NetworkConnection connection) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("Connection IDs must be positive: " + id);
+        }
+        if (connection.getNumericId() != id) {
+            throw new IllegalArgumentException("Connection " + connection.getId() + " put under ID " + id);
+        }
+        if ((used + 1) * 2 > table.keys.length()) {
+            rehash();
+        }
+        Table current = table;
+        int mask = current.mask;
+        int slot = current.slotOf(id);
+        while (current.keys.get(slot) > 0) {
+            if (current.keys.get(slot) == id) {
+                throw new IllegalStateException("Connection ID in use: " + id);
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (current.keys.get(slot) == FREE) {
+            used++;
+        }
+        current.values.set(slot, connection);
+        current.keys.set(slot, id);
+        size++;
+    }
+
+    /**
+     * Remove a connection if it is still mapped to its ID.
+     * @return false if another thread removed it first
+     */
+    synchronized boolean remove(long id, NetworkConnection connection) {
+        Table current = table;
+        int mask = current.mask;
+        for (int slot = current.slotOf(id); ; slot = (slot + 1) & mask) {
+            long key = current.keys.get(slot);
+            if (key == id) {
+                if (current.values.get(slot) != connection) {
+                    return false;
+                }
+                current.values.set(slot, null);
+                current.keys.set(slot, REMOVED);
+                size--;
+                return true;
+            }
+            if (key == FREE) {
+                return false;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+        used = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get a live view of the connections. Iteration is weakly consistent, like a
+     * concurrent map's, and never throws on concurrent updates.
+     * @return the connections
+     */
+    Collection<NetworkConnection> values() {
+        return values;
+    }
+
+    /**
+     * Copy the live entries into a table sized for them, dropping removed slots.
+     * Readers still holding the old table see it as it was when the copy started.
+     */
+    private void rehash() {
+        Table old = table;
+        int capacity = MIN_CAPACITY;
+        while (capacity < (size + 1) * 4) {
+            capacity <<= 1;
+        }
+        Table next = new Table(capacity);
+        for (int i = 0; i < old.keys.length(); i++) {
+            long key = old.keys.get(i);
+            if (key > 0) {
+                int slot = next.slotOf(key);
+                while (next.keys.get(slot) != FREE) {
+                    slot = (slot + 1) & next.mask;
+                }
+                next.values.set(slot, old.values.get(i));
+                next.keys.set(slot, key);
+            }
+        }
+        used = size;
+        table = next;
+    }
+
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<NetworkConnection> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        int slotOf(long id) {
+            // IDs are sequential, mix them so neighbours do not cluster
+            long hash = id * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    private static final class ValueIterator implements Iterator<NetworkConnection> {
+        private final Table table;
+        private int slot;
+        private NetworkConnection next;
+
+        ValueIterator(Table table) {
+            this.table = table;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && slot < table.values.length()) {
+                next = table.values.get(slot++);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public NetworkConnection next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            NetworkConnection current = next;
+            advance();
+            return current;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.netplay.server;
+
+/**
+ * Why a connection was closed, counted in {@link ServerStats}.
+ */
+public enum DisconnectReason {
+    /** The client closed the connection. */
+    CLOSED_BY_PEER,
+
+    /** Reading or writing the socket failed. */
+    IO_ERROR,
+
+    /** The client sent an invalid frame. */
+    PROTOCOL_ERROR,
+
+    /** The write queue overflowed under {@link OverflowPolicy#DISCONNECT}. */
+    SLOW_CONSUMER,
+
+    /** Nothing was received within the read idle timeout, see {@link Server#setReadIdleTimeout(long)}. */
+    IDLE_TIMEOUT,
+
+    /** The client sent faster than its inbound rate limit under {@link RateLimitAction#DISCONNECT}. */
+    RATE_LIMITED,
+
+    /** Kicked by the server application. */
+    KICKED,
+
+    /** The server stopped. */
+    SERVER_STOPPED
+}
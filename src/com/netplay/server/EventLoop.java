@@ -0,0 +1,676 @@
+package com.netplay.server;
+
+import com.netplay.shared.DispatchStrategy;
+import com.netplay.shared.Network;
+import com.netplay.shared.Protocol;
+import com.netplay.shared.SharedFrame;
+import com.netplay.shared.TimerWheel;
+import com.netplay.shared.WireMessage;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Worker selector loop for the server.
+ * Each connection is pinned to a single loop for its whole lifetime, so reads,
+ * writes and handler dispatch for that connection always happen on the same thread.
+ *
+ * Other threads never touch the selector or selection keys. They submit tasks to the
+ * loop's queue and the selector is woken at most once per loop iteration, no matter how
+ * many tasks arrive while the loop is busy.
+ *
+ * With a tick rate set, writes are deferred: sends queue without waking the selector and
+ * connections are only written when the tick scheduler calls {@link #flushTick()}.
+ *
+ * Each loop drives a {@link TimerWheel} from its select timeout. It runs scheduled tasks
+ * and one idle check per connection, which re-arms itself for the remaining idle time
+ * instead of being rescheduled on every read or write.
+ *
+ * Input is bounded per connection and pass: one read of at most the read budget in bytes,
+ * then at most the read budget in messages dispatched. Connections with messages left over
+ * stop reading and finish on the following passes, so a flooding client cannot hold up the
+ * rest of the loop. Connections over their inbound rate limit are throttled or disconnected
+ * according to the server's {@link RateLimitAction}. Connections whose handlers have fallen
+ * behind under the {@link DispatchStrategy} stop reading until those handlers catch up.
+ */
+final class EventLoop implements Runnable {
+    private static final int MAX_TASKS_PER_ITERATION = 4096;
+
+    private final Server server;
+    private final int index;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final boolean deferWrites;
+    private final long readIdleNanos;
+    private final long writeIdleNanos;
+    private final RateLimitAction rateLimitAction;
+    // Connections with messages left over from the previous pass, loop thread only
+    private final ArrayDeque<NetworkConnection> backlog = new ArrayDeque<>();
+    private final TimerWheel timers = new TimerWheel();
+    // Connections with frames queued since the last tick flush, loop thread only
+    private final Set<NetworkConnection> unflushed = new LinkedHashSet<>();
+    private volatile boolean running;
+    private Thread thread;
+    private UdpTransport udp;
+
+    EventLoop(Server server, int index) throws IOException {
+        this.server = server;
+        this.index = index;
+        this.selector = Selector.open();
+        this.deferWrites = server.getTickRate() > 0;
+        this.readIdleNanos = TimeUnit.MILLISECONDS.toNanos(server.getReadIdleTimeout());
+        this.writeIdleNanos = TimeUnit.MILLISECONDS.toNanos(server.getWriteIdleTimeout());
+        this.rateLimitAction = server.getRateLimitAction();
+    }
+
+    Server getServer() {
+        return server;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, "netplay-worker-" + index);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Check if the calling thread is this loop's thread.
+     * @return true on the loop thread
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread.
+     * Tasks run in submission order, so work submitted for a connection from one thread
+     * is applied to that connection in the same order. Only the first task submitted
+     * while the loop is busy wakes the selector.
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Run a task that only queues outgoing frames.
+     * With deferred writes the selector is not woken, the task runs by the next tick flush
+     * at the latest.
+     * @param task the task to run
+     */
+    void executeWrite(Runnable task) {
+        if (deferWrites) {
+            tasks.offer(task);
+        } else {
+            execute(task);
+        }
+    }
+
+    /**
+     * Run a task on the loop thread after a delay. Safe from any thread.
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @param task the task
+     * @return a handle that can cancel the task
+     */
+    TimerWheel.Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        TimerWheel.Timeout timeout = timers.schedule(delay, unit, task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return timeout;
+    }
+
+    /**
+     * Ask the loop to write everything queued since the last tick. Called by the tick scheduler.
+     */
+    void flushTick() {
+        execute(this::flushUnflushed);
+    }
+
+    /**
+     * Queue a frame on a connection pinned to this loop and register write interest.
+     * Must be called on the loop thread.
+     * @param connection the connection
+     * @param frame the frame, already retained for the connection
+     */
+    void write(NetworkConnection connection, SharedFrame frame) {
+        offer(connection, connection.getChannel().keyFor(selector), frame);
+    }
+
+    /**
+     * Queue a message on every connection pinned to this loop.
+     * The message is framed once per protocol version, and once more for version 2
+     * clients that connected before its type was registered. Each recipient gets a
+     * reference to the same frame. Must be called on the loop thread.
+     * @param message the message
+     * @param excluded connection IDs to skip, or null
+     */
+    void broadcast(WireMessage message, Predicate<String> excluded) {
+        BroadcastFrames frames = new BroadcastFrames(message);
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof NetworkConnection)) {
+                continue;
+            }
+            NetworkConnection connection = (NetworkConnection) key.attachment();
+            if (!connection.isConnected() || (excluded != null && excluded.test(connection.getId()))) {
+                continue;
+            }
+            SharedFrame frame = frames.frameFor(connection);
+            if (frame != null) {
+                offer(connection, key, frame.retain());
+            }
+        }
+    }
+
+    /**
+     * Queue a message on the members of a group that are pinned to this loop,
+     * sharing frames like {@link #broadcast(WireMessage, Predicate)}. Must be called on the loop thread.
+     * @param message the message
+     * @param members the group's members, on any loop
+     */
+    void broadcast(WireMessage message, NetworkConnection[] members) {
+        BroadcastFrames frames = null;
+        for (NetworkConnection connection : members) {
+            if (connection.getLoop() != this || !connection.isConnected()) {
+                continue;
+            }
+            SelectionKey key = connection.getChannel().keyFor(selector);
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+            if (frames == null) {
+                frames = new BroadcastFrames(message);
+            }
+            SharedFrame frame = frames.frameFor(connection);
+            if (frame != null) {
+                offer(connection, key, frame.retain());
+            }
+        }
+    }
+
+    /**
+     * Queue a frame subject to the write queue watermarks and overflow policy.
+     */
+    private void offer(NetworkConnection connection, SelectionKey key, SharedFrame frame) {
+        if (connection.wouldOverflow(frame.length()) && !handleOverflow(connection, frame)) {
+            return;
+        }
+
+        connection.queueFrame(frame);
+        if (deferWrites) {
+            unflushed.add(connection);
+        } else if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        if (connection.updateWritability()) {
+            server.onWritabilityChanged(connection, connection.isWritable());
+        }
+    }
+
+    /**
+     * Apply the overflow policy to a frame that does not fit.
+     * @return true if the frame should still be queued
+     */
+    private boolean handleOverflow(NetworkConnection connection, SharedFrame frame) {
+        switch (server.getOverflowPolicy()) {
+            case DROP_OLDEST:
+                while (connection.wouldOverflow(frame.length()) && connection.dropOldest()) {
+                    // Keep dropping until the new frame fits or only in-flight data is left
+                }
+                if (!connection.wouldOverflow(frame.length())) {
+                    return true;
+                }
+                break;
+            case DISCONNECT:
+                System.err.println("Write queue full, disconnecting slow connection: " + connection.getId());
+                frame.release();
+                server.disconnectUser(connection, DisconnectReason.SLOW_CONSUMER);
+                return false;
+            default:
+                break;
+        }
+
+        frame.release();
+        connection.recordDropped();
+        return false;
+    }
+
+    /**
+     * Register the UDP transport's channel with this loop, which then handles every UDP session.
+     * @param udp the transport
+     * @param channel its bound datagram channel
+     */
+    void attach(UdpTransport udp, DatagramChannel channel) {
+        execute(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, udp);
+                this.udp = udp;
+            } catch (ClosedChannelException e) {
+                System.err.println("UDP channel closed before it was registered");
+            }
+        });
+    }
+
+    /**
+     * Hand an accepted connection to this loop.
+     * The channel is registered with the selector on the loop thread.
+     * @param connection the accepted connection
+     */
+    void register(NetworkConnection connection) {
+        connectionCount.incrementAndGet();
+        execute(() -> registerConnection(connection));
+    }
+
+    /**
+     * Called by the server once a connection pinned to this loop has been removed.
+     * Its buffers are returned to the allocator on the loop thread, since the loop
+     * may still be reading into them when the close comes from another thread.
+     * @param connection the removed connection
+     */
+    void deregister(NetworkConnection connection) {
+        connectionCount.decrementAndGet();
+        if (inEventLoop()) {
+            release(connection);
+        } else {
+            execute(() -> release(connection));
+        }
+    }
+
+    private void release(NetworkConnection connection) {
+        TimerWheel.Timeout idleTimeout = connection.getIdleTimeout();
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+            connection.setIdleTimeout(null);
+        }
+        TimerWheel.Timeout resumeTimeout = connection.getResumeTimeout();
+        if (resumeTimeout != null) {
+            resumeTimeout.cancel();
+            connection.setResumeTimeout(null);
+        }
+        connection.releaseBuffers();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                // Resends and timers are due even while tasks keep the loop busy
+                long timeout = udp == null ? 0 : udp.poll();
+                long timerDelay = timers.nextDelayMillis(System.nanoTime());
+                if (timerDelay > 0 && (timeout == 0 || timerDelay < timeout)) {
+                    timeout = timerDelay;
+                }
+                if (tasks.isEmpty() && backlog.isEmpty()) {
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
+                }
+                // Tasks submitted from here on need a fresh wakeup
+                wakeupPending.set(false);
+                long iterationStart = System.nanoTime();
+                runBacklog();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iterator = selectedKeys.iterator();
+
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (key.attachment() == udp) {
+                        if (key.isValid() && key.isReadable()) {
+                            udp.read();
+                        }
+                        continue;
+                    }
+                    NetworkConnection connection = (NetworkConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            readFromClient(key, connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            writeToClient(key, connection);
+                        }
+                    } catch (ProtocolException e) {
+                        if (running) {
+                            System.err.println("Protocol error from " + connection.getId() + ": " + e.getMessage());
+                            server.disconnectUser(connection, DisconnectReason.PROTOCOL_ERROR);
+                            key.cancel();
+                        }
+                    } catch (IOException e) {
+                        if (running) {
+                            server.disconnectUser(connection, DisconnectReason.IO_ERROR);
+                            key.cancel();
+                        }
+                    }
+                }
+
+                timers.advance(System.nanoTime());
+                runTasks(MAX_TASKS_PER_ITERATION);
+                server.getStats().recordLoopIteration(System.nanoTime() - iterationStart);
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Worker " + index + " error: " + e.getMessage());
+            }
+        } finally {
+            // Run leftover work so queued messages release their frames
+            runTasks(Integer.MAX_VALUE);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing worker " + index + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Run queued tasks, bounded so a flood of submissions cannot starve socket I/O.
+     * Anything left over runs on the next iteration without blocking in select.
+     */
+    private void runTasks(int maxTasks) {
+        Runnable task;
+        for (int i = 0; i < maxTasks && (task = tasks.poll()) != null; i++) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Error running task on worker " + index + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void registerConnection(NetworkConnection connection) {
+        if (!running) {
+            connection.releaseBuffers();
+            return;
+        }
+        try {
+            SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+            if (connection.hasPendingWrites()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (ClosedChannelException e) {
+            server.disconnectUser(connection, DisconnectReason.IO_ERROR);
+            return;
+        }
+        if (readIdleNanos > 0 || writeIdleNanos > 0) {
+            scheduleIdleCheck(connection, idleCheckDelay(readIdleNanos, writeIdleNanos));
+        }
+        server.onUserConnected(connection);
+    }
+
+    private void scheduleIdleCheck(NetworkConnection connection, long delayNanos) {
+        connection.setIdleTimeout(timers.schedule(delayNanos, TimeUnit.NANOSECONDS, () -> checkIdle(connection)));
+    }
+
+    /**
+     * Close the connection if it has been silent for the read idle timeout and ping it if
+     * nothing was written to it for the write idle timeout, then re-arm for whichever
+     * comes first. Reads and writes only record their time, so a busy connection costs
+     * one timer per timeout period. Connections this loop stopped reading are not closed
+     * for it, their read idle time restarts when reading resumes.
+     */
+    private void checkIdle(NetworkConnection connection) {
+        connection.setIdleTimeout(null);
+        if (!connection.isConnected()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long readDelay = 0;
+        if (readIdleNanos > 0 && connection.isReadPaused()) {
+            readDelay = readIdleNanos;
+        } else if (readIdleNanos > 0) {
+            long idle = now - connection.getLastReadNanos();
+            if (idle >= readIdleNanos) {
+                server.disconnectUser(connection, DisconnectReason.IDLE_TIMEOUT);
+                return;
+            }
+            readDelay = readIdleNanos - idle;
+        }
+        long writeDelay = 0;
+        if (writeIdleNanos > 0) {
+            long idle = now - connection.getLastWriteNanos();
+            if (idle < writeIdleNanos) {
+                writeDelay = writeIdleNanos - idle;
+            } else {
+                // Version 1 clients do not know control frames, they only get the read timeout
+                if (connection.getProtocolVersion() >= Protocol.VERSION_2 && !connection.hasPendingWrites()) {
+                    write(connection, connection.controlFrame(Protocol.PING));
+                }
+                writeDelay = writeIdleNanos;
+            }
+        }
+        scheduleIdleCheck(connection, idleCheckDelay(readDelay, writeDelay));
+    }
+
+    private static long idleCheckDelay(long readDelay, long writeDelay) {
+        if (readDelay == 0) {
+            return writeDelay;
+        }
+        return writeDelay == 0 ? readDelay : Math.min(readDelay, writeDelay);
+    }
+
+    private void readFromClient(SelectionKey key, NetworkConnection connection) throws IOException {
+        int bytesRead = connection.read();
+
+        if (bytesRead == -1) {
+            server.disconnectUser(connection, DisconnectReason.CLOSED_BY_PEER);
+            return;
+        }
+
+        if (bytesRead > 0) {
+            processInput(key, connection);
+        }
+    }
+
+    /**
+     * Dispatch buffered messages up to the read budget and what the inbound rate limit
+     * allows, then decide whether to keep reading.
+     */
+    private void processInput(SelectionKey key, NetworkConnection connection) throws ProtocolException {
+        long now = System.nanoTime();
+        int budget = connection.getReadBudgetMessages();
+        // The limit caps the pass up front, so nothing past it is dispatched
+        boolean overByteLimit = connection.isOverByteLimit(now);
+        int allowance = overByteLimit ? 0 : connection.getInboundAllowance(budget, now);
+        int processed = allowance > 0 ? connection.processMessages(allowance) : 0;
+        if (!connection.isConnected() || !key.isValid()) {
+            return;
+        }
+
+        // Handshake replies are queued on this thread while reading
+        if (connection.hasPendingWrites()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        DispatchStrategy dispatch = Network.getDispatchStrategy();
+        if (dispatch.isSaturated(connection.getId())) {
+            // Read again once the handlers have caught up, without blocking this loop
+            pauseReading(key, connection);
+            dispatch.onDrained(connection.getId(), () -> execute(() -> resumeInput(connection)));
+            return;
+        }
+
+        if (overByteLimit || (processed == allowance && allowance < budget && connection.hasBufferedMessage())) {
+            limitInput(key, connection, now);
+            return;
+        }
+        if (processed == budget) {
+            // More may be buffered, dispatch it on the next pass before reading again
+            if (!connection.isBacklogged()) {
+                connection.setBacklogged(true);
+                backlog.add(connection);
+            }
+            pauseReading(key, connection);
+            return;
+        }
+        if ((key.interestOps() & SelectionKey.OP_READ) == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        connection.setReadPaused(false);
+    }
+
+    /**
+     * Apply the rate limit action to a connection that sent more than its limit allows.
+     * Throttled connections stop reading, and their buffered messages wait with them,
+     * until the limit allows at least one more message.
+     */
+    private void limitInput(SelectionKey key, NetworkConnection connection, long now) {
+        if (rateLimitAction == RateLimitAction.DISCONNECT) {
+            server.disconnectUser(connection, DisconnectReason.RATE_LIMITED);
+            return;
+        }
+        pauseReading(key, connection);
+        // One pending resume per connection, however often the limit is hit meanwhile
+        if (connection.getResumeTimeout() == null) {
+            server.getStats().recordThrottled();
+            connection.setResumeTimeout(timers.schedule(connection.nanosUntilWithinInboundLimit(now),
+                TimeUnit.NANOSECONDS, () -> {
+                    connection.setResumeTimeout(null);
+                    resumeInput(connection);
+                }));
+        }
+    }
+
+    private static void pauseReading(SelectionKey key, NetworkConnection connection) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        connection.setReadPaused(true);
+    }
+
+    /**
+     * Continue with the connections that had messages left over on the previous pass.
+     * Runs before the selected keys, so each connection gets one budget per pass.
+     */
+    private void runBacklog() {
+        for (int i = backlog.size(); i > 0; i--) {
+            NetworkConnection connection = backlog.poll();
+            connection.setBacklogged(false);
+            resumeInput(connection);
+        }
+    }
+
+    private void resumeInput(NetworkConnection connection) {
+        SelectionKey key = connection.getChannel().keyFor(selector);
+        if (!connection.isConnected() || key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            processInput(key, connection);
+        } catch (ProtocolException e) {
+            System.err.println("Protocol error from " + connection.getId() + ": " + e.getMessage());
+            server.disconnectUser(connection, DisconnectReason.PROTOCOL_ERROR);
+        }
+    }
+
+    /**
+     * Write every connection that queued frames since the last tick, in one go each.
+     * Whatever the socket does not take is finished on writable events as usual.
+     */
+    private void flushUnflushed() {
+        for (NetworkConnection connection : unflushed) {
+            SelectionKey key = connection.getChannel().keyFor(selector);
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+            writeToClient(key, connection);
+            if (key.isValid() && connection.hasPendingWrites()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+        unflushed.clear();
+    }
+
+    private void writeToClient(SelectionKey key, NetworkConnection connection) {
+        try {
+            boolean hasMoreWrites = connection.processWrites();
+            if (!hasMoreWrites) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (connection.updateWritability()) {
+                server.onWritabilityChanged(connection, connection.isWritable());
+            }
+        } catch (IOException e) {
+            server.disconnectUser(connection, DisconnectReason.IO_ERROR);
+        }
+    }
+
+    /**
+     * The frames of one broadcast, built on first use for each protocol version and type ID.
+     */
+    private static final class BroadcastFrames {
+        private final WireMessage message;
+        private SharedFrame version1;
+        private SharedFrame version2Named;
+        private SharedFrame version2;
+        private boolean skipVersion1;
+
+        BroadcastFrames(WireMessage message) {
+            this.message = message;
+        }
+
+        /**
+         * @return the frame for the connection, or null if it cannot receive the message
+         */
+        SharedFrame frameFor(NetworkConnection connection) {
+            if (connection.getProtocolVersion() >= Protocol.VERSION_2) {
+                int typeId = connection.wireTypeId(message);
+                if (typeId == Protocol.TYPE_NAMED) {
+                    if (version2Named == null) {
+                        version2Named = message.frame(Protocol.VERSION_2, Protocol.TYPE_NAMED);
+                    }
+                    return version2Named;
+                }
+                if (version2 == null) {
+                    version2 = message.frame(Protocol.VERSION_2, typeId);
+                }
+                return version2;
+            }
+            if (skipVersion1) {
+                return null;
+            }
+            if (version1 == null) {
+                try {
+                    version1 = message.frame(Protocol.VERSION_1);
+                } catch (IllegalStateException e) {
+                    // Binary body, still deliver to the version 2 recipients
+                    System.err.println("Cannot broadcast to version 1 clients: " + e.getMessage());
+                    skipVersion1 = true;
+                    return null;
+                }
+            }
+            return version1;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.netplay.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A named set of connections for targeted broadcasts, such as a match or a chat room.
+ * Created and joined through the {@link Server}, messages are sent to it with
+ * {@link com.netplay.shared.Network#broadcastToGroup}.
+ *
+ * Membership is a copy-on-write array: joining and leaving copy it, which is rare, and a
+ * broadcast loops over the current array without locking or touching other connections.
+ */
+public final class Group {
+    private static final NetworkConnection[] EMPTY = new NetworkConnection[0];
+
+    private final String id;
+    private volatile NetworkConnection[] members = EMPTY;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile long statsSince = System.nanoTime();
+
+    Group(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Add a connection.
+     * @param connection the connection
+     * @return false if it was already a member
+     */
+    synchronized boolean add(NetworkConnection connection) {
+        NetworkConnection[] current = members;
+        for (NetworkConnection member : current) {
+            if (member == connection) {
+                return false;
+            }
+        }
+        NetworkConnection[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = connection;
+        members = next;
+        return true;
+    }
+
+    /**
+     * Remove a connection.
+     * @param connection the connection
+     * @return false if it was not a member
+     */
+    synchronized boolean remove(NetworkConnection connection) {
+        NetworkConnection[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != connection) {
+                continue;
+            }
+            if (current.length == 1) {
+                members = EMPTY;
+                return true;
+            }
+            NetworkConnection[] next = new NetworkConnection[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            members = next;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove every member.
+     * @return the members there were
+     */
+    synchronized NetworkConnection[] clear() {
+        NetworkConnection[] current = members;
+        members = EMPTY;
+        return current;
+    }
+
+    /**
+     * Get the current members. The array is never modified, callers must not modify it either.
+     * @return the members
+     */
+    NetworkConnection[] members() {
+        return members;
+    }
+
+    void recordBroadcast(int recipients, int bodyLength) {
+        messages.increment();
+        deliveries.add(recipients);
+        bytes.add((long) recipients * bodyLength);
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public boolean contains(String connectionId) {
+        for (NetworkConnection member : members) {
+            if (member.getId().equals(connectionId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<String> getMemberIds() {
+        NetworkConnection[] current = members;
+        List<String> ids = new ArrayList<>(current.length);
+        for (NetworkConnection member : current) {
+            ids.add(member.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Get the number of messages broadcast to this group.
+     * @return the count
+     */
+    public long getMessageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * Get the number of copies delivered, one per member per message.
+     * @return the count
+     */
+    public long getDeliveryCount() {
+        return deliveries.sum();
+    }
+
+    /**
+     * Get the body bytes delivered, summed over every recipient, before framing and compression.
+     * @return the byte count
+     */
+    public long getDeliveredBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Get the average broadcast rate since the group was created or its stats were reset.
+     * @return messages per second
+     */
+    public double getMessageRate() {
+        double seconds = (System.nanoTime() - statsSince) / 1e9;
+        return seconds <= 0 ? 0 : getMessageCount() / seconds;
+    }
+
+    /**
+     * Clear the counters and restart the rate measurement.
+     */
+    public void resetStats() {
+        messages.reset();
+        deliveries.reset();
+        bytes.reset();
+        statsSince = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return id + ": members=" + size()
+            + ", messages=" + getMessageCount()
+            + ", deliveries=" + getDeliveryCount()
+            + ", bytes=" + getDeliveredBytes()
+            + ", rate=" + String.format("%.1f", getMessageRate()) + "/s";
+    }
+}
@@ -1,49 +1,138 @@
 package com.netplay.server;
 
+import com.netplay.shared.BufferAllocator;
+import com.netplay.shared.FrameDecoder;
 import com.netplay.shared.Network;
+import com.netplay.shared.Protocol;
+import com.netplay.shared.SharedFrame;
+import com.netplay.shared.TimerWheel;
+import com.netplay.shared.TypeRegistry;
+import com.netplay.shared.WireMessage;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Represents a single connected client on the server.
  */
 public class NetworkConnection {
     private static final int READ_BUFFER_SIZE = 8192;
+    static final int DEFAULT_WRITE_BATCH_MESSAGES = 64;
+    static final int DEFAULT_WRITE_BATCH_BYTES = 256 * 1024;
+    static final long DEFAULT_LOW_WATERMARK_BYTES = 4L * 1024 * 1024;
+    static final long DEFAULT_HIGH_WATERMARK_BYTES = 16L * 1024 * 1024;
+    static final int DEFAULT_LOW_WATERMARK_MESSAGES = 16 * 1024;
+    static final int DEFAULT_HIGH_WATERMARK_MESSAGES = 64 * 1024;
+    static final int DEFAULT_READ_BUDGET_MESSAGES = 64;
+    static final int DEFAULT_READ_BUDGET_BYTES = 64 * 1024;
 
+    private final long numericId;
     private final String id;
     private final SocketChannel channel;
-    private final ByteBuffer readBuffer;
-    private final Queue<ByteBuffer> writeQueue;
-    private ByteBuffer currentWriteBuffer;
-    private boolean connected;
+    private final BufferAllocator allocator;
+    private final Queue<SharedFrame> writeQueue;
 
-    // Buffer for accumulating partial messages
-    private final StringBuilder messageBuffer;
+    // Gathering write batch, entries [batchStart, batchEnd) are not fully written yet
+    private ByteBuffer[] batch;
+    private SharedFrame[] batchFrames;
+    private int batchStart;
+    private int batchEnd;
+    private int maxWriteBatchMessages = DEFAULT_WRITE_BATCH_MESSAGES;
+    private int maxWriteBatchBytes = DEFAULT_WRITE_BATCH_BYTES;
+    private volatile boolean connected;
+    private volatile boolean released;
 
-    public NetworkConnection(String id, SocketChannel channel) {
-        this.id = id;
+    // Write queue depth, counted from queueing until the frame is fully written
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private volatile DisconnectReason disconnectReason;
+    // Inbound limits and input state, worker thread only
+    private int readBudgetMessages = DEFAULT_READ_BUDGET_MESSAGES;
+    private int readBudgetBytes = DEFAULT_READ_BUDGET_BYTES;
+    // Also charged by the UDP loop, set before the connection is registered
+    private TokenBucket messageBucket;
+    private TokenBucket byteBucket;
+    private boolean backlogged;
+    private boolean readPaused;
+    private TimerWheel.Timeout resumeTimeout;
+    // Idle tracking, worker thread only
+    private long lastReadNanos;
+    private long lastWriteNanos;
+    private TimerWheel.Timeout idleTimeout;
+    private long lowWatermarkBytes = DEFAULT_LOW_WATERMARK_BYTES;
+    private long highWatermarkBytes = DEFAULT_HIGH_WATERMARK_BYTES;
+    private int lowWatermarkMessages = DEFAULT_LOW_WATERMARK_MESSAGES;
+    private int highWatermarkMessages = DEFAULT_HIGH_WATERMARK_MESSAGES;
+    private volatile boolean writable = true;
+    private final Object writableMonitor = new Object();
+    private volatile int writableWaiters;
+    private EventLoop loop;
+    private final Set<Group> groups = ConcurrentHashMap.newKeySet();
+
+    // Guards the protocol switch so no frame is encoded with a stale version
+    private final Object writeLock = new Object();
+    private volatile int protocolVersion = Protocol.VERSION_1;
+    // Type IDs below this were sent to the client in the handshake
+    private volatile int typeLimit = 1;
+
+    // Accumulates partial messages
+    private final FrameDecoder decoder;
+    private final FrameDecoder.Listener frameListener;
+
+    public NetworkConnection(long id, SocketChannel channel) {
+        this.numericId = id;
+        this.id = Long.toString(id);
         this.channel = channel;
-        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.allocator = Network.getBufferAllocator();
         this.writeQueue = new ConcurrentLinkedQueue<>();
-        this.currentWriteBuffer = null;
         this.connected = true;
-        this.messageBuffer = new StringBuilder();
+        this.decoder = new FrameDecoder(allocator, READ_BUFFER_SIZE);
+        this.frameListener = this::dispatchFrame;
+        this.lastReadNanos = System.nanoTime();
+        this.lastWriteNanos = lastReadNanos;
     }
 
+    /**
+     * Get the connection ID as used by the message API, the decimal form of {@link #getNumericId()}.
+     * @return the ID
+     */
     public String getId() {
         return id;
     }
 
+    /**
+     * Get the connection ID, allocated in increasing order by the server.
+     * @return the ID, always positive
+     */
+    public long getNumericId() {
+        return numericId;
+    }
+
     public boolean isConnected() {
         return connected && channel.isConnected();
     }
 
     public void disconnect() {
         connected = false;
+        if (writableWaiters > 0) {
+            synchronized (writableMonitor) {
+                writableMonitor.notifyAll();
+            }
+        }
         try {
             if (channel != null && channel.isOpen()) {
                 channel.close();
@@ -57,8 +146,351 @@ public class NetworkConnection {
         return channel;
     }
 
-    public ByteBuffer getReadBuffer() {
-        return readBuffer;
+    /**
+     * Read available data from the channel into the message buffer.
+     * Must only be called from the connection's worker thread.
+     * @return the number of bytes read, or -1 at end of stream
+     * @throws IOException if the read fails
+     */
+    public int read() throws IOException {
+        int bytesRead = decoder.readFrom(channel, readBudgetBytes);
+        if (bytesRead > 0) {
+            bytesIn.add(bytesRead);
+            lastReadNanos = System.nanoTime();
+            if (byteBucket != null) {
+                byteBucket.consume(bytesRead, lastReadNanos);
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Get the wire protocol version negotiated with this connection.
+     * @return the protocol version
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Get the type ID to write for a message on this connection.
+     * @param message the message
+     * @return the type ID, or {@link Protocol#TYPE_NAMED} if the client does not know the type
+     */
+    int wireTypeId(WireMessage message) {
+        int typeId = message.getTypeId();
+        return typeId < typeLimit ? typeId : Protocol.TYPE_NAMED;
+    }
+
+    /**
+     * Get the shared frame for a message in this connection's protocol version.
+     * @param message the message
+     * @return the frame, valid while the message is referenced
+     */
+    SharedFrame frameFor(WireMessage message) {
+        return message.frame(protocolVersion, wireTypeId(message));
+    }
+
+    /**
+     * Get the worker loop this connection is pinned to.
+     * @return the owning loop
+     */
+    EventLoop getLoop() {
+        return loop;
+    }
+
+    void setLoop(EventLoop loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Get the groups this connection is a member of, kept so they can be left on disconnect.
+     * @return the live set of groups
+     */
+    Set<Group> getGroups() {
+        return groups;
+    }
+
+    void setWriteBatchLimits(int maxMessages, int maxBytes) {
+        this.maxWriteBatchMessages = maxMessages;
+        this.maxWriteBatchBytes = maxBytes;
+    }
+
+    void setReadBudget(int maxMessages, int maxBytes) {
+        this.readBudgetMessages = maxMessages;
+        this.readBudgetBytes = maxBytes;
+    }
+
+    int getReadBudgetMessages() {
+        return readBudgetMessages;
+    }
+
+    /**
+     * Limit the inbound rate, with bursts of up to one second's worth.
+     * @param messagesPerSecond the message rate, or 0 for no limit
+     * @param bytesPerSecond the byte rate, or 0 for no limit
+     */
+    void setInboundRateLimit(int messagesPerSecond, int bytesPerSecond) {
+        long now = System.nanoTime();
+        this.messageBucket = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messagesPerSecond, now) : null;
+        this.byteBucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond, now) : null;
+    }
+
+    /**
+     * Check if the connection has read more bytes than its inbound rate limit allows.
+     * Bytes are charged as they are read, so the debt is paid back before dispatching more.
+     * @param now the current {@link System#nanoTime()}
+     * @return true while over the limit
+     */
+    boolean isOverByteLimit(long now) {
+        return byteBucket != null && byteBucket.isOverdrawn(now);
+    }
+
+    /**
+     * Get how many messages may be dispatched now without exceeding the inbound rate limit.
+     * @param max the most messages wanted
+     * @param now the current {@link System#nanoTime()}
+     * @return the number of messages, at most max
+     */
+    int getInboundAllowance(int max, long now) {
+        return messageBucket == null ? max : (int) Math.min(max, messageBucket.available(now));
+    }
+
+    /**
+     * Get how long until the connection may dispatch again under its inbound rate limit.
+     * @param now the current {@link System#nanoTime()}
+     * @return the delay in nanoseconds
+     */
+    long nanosUntilWithinInboundLimit(long now) {
+        long messages = messageBucket == null ? 0 : messageBucket.nanosUntilAvailable(1, now);
+        long bytes = byteBucket == null ? 0 : byteBucket.nanosUntilAvailable(0, now);
+        return Math.max(messages, bytes);
+    }
+
+    /**
+     * Charge a received datagram's bytes to the inbound rate limit if it allows one more
+     * message. The message itself is charged once it is complete and dispatched.
+     * Called on the UDP loop.
+     * @param bytes the size of the datagram
+     * @param now the current {@link System#nanoTime()}
+     * @return true if the datagram was charged, false if it is over the limit
+     */
+    boolean tryAdmitDatagram(int bytes, long now) {
+        if (getInboundAllowance(1, now) == 0 || isOverByteLimit(now)) {
+            return false;
+        }
+        if (byteBucket != null) {
+            byteBucket.consume(bytes, now);
+        }
+        return true;
+    }
+
+    /**
+     * Check if a complete message is buffered and waiting to be processed.
+     * @return true if the next {@link #processMessages(int)} would process one
+     * @throws ProtocolException if the client sent an oversized frame
+     */
+    boolean hasBufferedMessage() throws ProtocolException {
+        return decoder.hasFrame();
+    }
+
+    boolean isBacklogged() {
+        return backlogged;
+    }
+
+    void setBacklogged(boolean backlogged) {
+        this.backlogged = backlogged;
+    }
+
+    boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /**
+     * Record that the worker has paused or resumed reading. Resuming restarts the read
+     * idle time, since the connection could not be heard from while paused.
+     * @param readPaused true if OP_READ was cleared
+     */
+    void setReadPaused(boolean readPaused) {
+        if (this.readPaused && !readPaused) {
+            lastReadNanos = System.nanoTime();
+        }
+        this.readPaused = readPaused;
+    }
+
+    TimerWheel.Timeout getResumeTimeout() {
+        return resumeTimeout;
+    }
+
+    void setResumeTimeout(TimerWheel.Timeout resumeTimeout) {
+        this.resumeTimeout = resumeTimeout;
+    }
+
+    void setWriteQueueWatermarks(long lowBytes, long highBytes, int lowMessages, int highMessages) {
+        this.lowWatermarkBytes = lowBytes;
+        this.highWatermarkBytes = highBytes;
+        this.lowWatermarkMessages = lowMessages;
+        this.highWatermarkMessages = highMessages;
+    }
+
+    /**
+     * Get the number of bytes queued and not yet fully written.
+     * @return the queued byte count
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Get the number of messages queued and not yet fully written.
+     * @return the queued message count
+     */
+    public int getQueuedMessages() {
+        return queuedMessages.get();
+    }
+
+    /**
+     * Get the number of messages discarded by the overflow policy.
+     * @return the dropped message count
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    /**
+     * Get the number of bytes read from the socket.
+     * @return the byte count
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Get the number of bytes written to the socket.
+     * @return the byte count
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Get the number of frames received, control frames included.
+     * @return the frame count
+     */
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    /**
+     * Get the number of frames fully written, control frames included.
+     * @return the frame count
+     */
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    /**
+     * Get why the connection was closed.
+     * @return the reason, or null while connected
+     */
+    public DisconnectReason getDisconnectReason() {
+        return disconnectReason;
+    }
+
+    void setDisconnectReason(DisconnectReason reason) {
+        this.disconnectReason = reason;
+    }
+
+    /**
+     * Check if the write queue is below its high watermark.
+     * Turns false once the queue reaches the high watermark and back to true once it
+     * drains to the low watermark.
+     * @return true if the connection accepts more messages without overflowing
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Check if queueing another frame would take the write queue past its high watermark.
+     * @param length the frame length
+     * @return true if the frame does not fit
+     */
+    boolean wouldOverflow(int length) {
+        return queuedBytes.get() + length > highWatermarkBytes || queuedMessages.get() >= highWatermarkMessages;
+    }
+
+    /**
+     * Re-evaluate writability against the watermarks.
+     * Called on the worker thread after queueing or writing.
+     * @return true if writability changed
+     */
+    boolean updateWritability() {
+        if (writable) {
+            if (queuedBytes.get() >= highWatermarkBytes || queuedMessages.get() >= highWatermarkMessages) {
+                writable = false;
+                return true;
+            }
+        } else if (queuedBytes.get() <= lowWatermarkBytes && queuedMessages.get() <= lowWatermarkMessages) {
+            writable = true;
+            if (writableWaiters > 0) {
+                synchronized (writableMonitor) {
+                    writableMonitor.notifyAll();
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Wait until the connection becomes writable.
+     * @param timeoutMillis the longest time to wait
+     * @return true if writable, false on timeout, interrupt or disconnect
+     */
+    boolean awaitWritable(long timeoutMillis) {
+        if (writable) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (writableMonitor) {
+            writableWaiters++;
+            try {
+                while (!writable && connected) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    writableMonitor.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                writableWaiters--;
+            }
+        }
+        return writable;
+    }
+
+    /**
+     * Discard the oldest queued frame that has not started writing yet.
+     * @return true if a frame was discarded
+     */
+    boolean dropOldest() {
+        SharedFrame frame = writeQueue.poll();
+        if (frame == null) {
+            return false;
+        }
+        queuedBytes.addAndGet(-frame.length());
+        queuedMessages.decrementAndGet();
+        frame.release();
+        recordDropped();
+        return true;
+    }
+
+    void recordDropped() {
+        droppedMessages.increment();
     }
 
     /**
@@ -66,79 +498,329 @@ public class NetworkConnection {
      * @param buffer the buffer containing received data
      */
     public void appendToMessageBuffer(ByteBuffer buffer) {
-        String received = StandardCharsets.UTF_8.decode(buffer).toString();
-        messageBuffer.append(received);
+        decoder.append(buffer);
     }
 
     /**
      * Process complete messages from the message buffer.
-     * Wire format: ClassName\nJSON\n
+     * @throws ProtocolException if the client sent an invalid frame
      */
-    public void processMessages() {
-        String buffer = messageBuffer.toString();
+    public void processMessages() throws ProtocolException {
+        decoder.decode(frameListener);
+    }
 
-        while (true) {
-            int firstNewline = buffer.indexOf('\n');
-            if (firstNewline == -1) {
-                break; // No complete line yet
+    /**
+     * Process up to a number of complete messages, leaving the rest buffered.
+     * Must only be called from the connection's worker thread.
+     * @param maxMessages the most messages to process
+     * @return the number of messages processed
+     * @throws ProtocolException if the client sent an invalid frame
+     */
+    int processMessages(int maxMessages) throws ProtocolException {
+        int processed = decoder.decode(frameListener, maxMessages);
+        if (messageBucket != null && processed > 0) {
+            messageBucket.consume(processed, System.nanoTime());
+        }
+        return processed;
+    }
+
+    private void dispatchFrame(int typeId, String className, int flags, ByteBuffer body) throws ProtocolException {
+        messagesIn.increment();
+        if (typeId == Protocol.TYPE_NAMED && Protocol.isControl(className)) {
+            if ((flags & Protocol.FLAG_COMPRESSED) == 0) {
+                handleControlFrame(className, body);
+                return;
+            }
+            ByteBuffer decompressed = Network.decompress(body);
+            try {
+                handleControlFrame(className, decompressed);
+            } finally {
+                Network.getBufferAllocator().release(decompressed);
             }
+            return;
+        }
+        try {
+            Network.dispatch(typeId, className, flags, body, id);
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (Exception e) {
+            System.err.println("Error handling message from " + id + ": " + e.getMessage());
+        }
+    }
 
-            int secondNewline = buffer.indexOf('\n', firstNewline + 1);
-            if (secondNewline == -1) {
-                break; // No complete message yet
+    /**
+     * Dispatch a message that arrived over UDP.
+     * Called on the loop that reads the datagram channel. Messages are dispatched on this
+     * connection's own loop, like its TCP messages, so handlers for one sender never run
+     * on two threads at once. Bodies for another loop are copied, since the receive
+     * buffer is reused.
+     * @throws ProtocolException if the body cannot be decompressed
+     */
+    void dispatchDatagram(int typeId, String className, int flags, ByteBuffer body) throws ProtocolException {
+        if (messageBucket != null) {
+            messageBucket.consume(1, System.nanoTime());
+        }
+        if (loop.inEventLoop()) {
+            dispatchDatagramNow(typeId, className, flags, body);
+            return;
+        }
+        ByteBuffer copy = allocator.allocate(body.remaining());
+        copy.put(body).flip();
+        loop.execute(() -> {
+            try {
+                if (connected) {
+                    dispatchDatagramNow(typeId, className, flags, copy);
+                }
+            } catch (ProtocolException e) {
+                System.err.println("Invalid datagram from " + id + ": " + e.getMessage());
+            } finally {
+                allocator.release(copy);
             }
+        });
+    }
 
-            // Extract class name and JSON body
-            String className = buffer.substring(0, firstNewline);
-            String jsonBody = buffer.substring(firstNewline + 1, secondNewline);
+    private void dispatchDatagramNow(int typeId, String className, int flags, ByteBuffer body)
+            throws ProtocolException {
+        try {
+            Network.dispatch(typeId, className, flags, body, id);
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (Exception e) {
+            System.err.println("Error handling message from " + id + ": " + e.getMessage());
+        }
+    }
 
-            // Dispatch to Network
-            try {
-                byte[] jsonBytes = jsonBody.getBytes(StandardCharsets.UTF_8);
-                Network.dispatch(className, jsonBytes, id);
-            } catch (Exception e) {
-                System.err.println("Error handling message from " + id + ": " + e.getMessage());
+    private void handleControlFrame(String name, ByteBuffer body) throws ProtocolException {
+        if (Protocol.STATE_ACK.equals(name)) {
+            loop.getServer().getStateSync().acknowledge(id, Protocol.readVarInt(body));
+            return;
+        }
+        if (Protocol.PING.equals(name)) {
+            // Queued on the worker thread, the read path registers write interest
+            synchronized (writeLock) {
+                enqueue(controlFrame(Protocol.PONG));
+            }
+            return;
+        }
+        if (Protocol.PONG.equals(name)) {
+            // The read itself refreshed the idle time
+            return;
+        }
+        if (!Protocol.HANDSHAKE_HELLO.equals(name)) {
+            System.err.println("Unknown control frame from " + id + ": " + name);
+            return;
+        }
+        if (protocolVersion != Protocol.VERSION_1) {
+            throw new ProtocolException("Duplicate handshake");
+        }
+
+        int version = Math.min(Protocol.parseVersion(body), Protocol.CURRENT_VERSION);
+        if (version < Protocol.VERSION_1) {
+            throw new ProtocolException("Unsupported protocol version: " + version);
+        }
+
+        // The ack is the last version 1 frame, everything queued after it uses the new version
+        synchronized (writeLock) {
+            enqueue(SharedFrame.copyOf(Protocol.handshake(Protocol.HANDSHAKE_ACK, version), allocator));
+            if (version >= Protocol.VERSION_2) {
+                // Tell the client our type IDs before any frame uses them
+                TypeRegistry registry = Network.getTypeRegistry();
+                int limit = registry.size();
+                WireMessage types = new WireMessage(Protocol.HANDSHAKE_TYPES, registry.encodeTable(limit));
+                try {
+                    enqueue(types.frame(version).retain());
+                } finally {
+                    types.release();
+                }
+                typeLimit = limit;
+
+                UdpTransport udp = loop.getServer().getUdpTransport();
+                if (udp != null) {
+                    WireMessage session = new WireMessage(Protocol.UDP_SESSION, udp.offer(this));
+                    try {
+                        enqueue(session.frame(version).retain());
+                    } finally {
+                        session.release();
+                    }
+                }
             }
+            protocolVersion = version;
+        }
+        decoder.setVersion(version);
+    }
 
-            // Remove processed message from buffer
-            buffer = buffer.substring(secondNewline + 1);
+    /**
+     * Build an empty control frame for this connection's protocol version.
+     * @param name the control frame name
+     * @return the frame, retained for the caller
+     */
+    SharedFrame controlFrame(String name) {
+        WireMessage message = new WireMessage(name, new byte[0]);
+        try {
+            return message.frame(protocolVersion, Protocol.TYPE_NAMED).retain();
+        } finally {
+            message.release();
         }
+    }
+
+    /**
+     * Get when data was last read from the socket, as a {@link System#nanoTime()} value.
+     * Starts at the time the connection was accepted. Worker thread only.
+     * @return the time of the last read
+     */
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    /**
+     * Get when data was last written to the socket, as a {@link System#nanoTime()} value.
+     * Starts at the time the connection was accepted. Worker thread only.
+     * @return the time of the last write
+     */
+    long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    TimerWheel.Timeout getIdleTimeout() {
+        return idleTimeout;
+    }
 
-        // Store remaining partial data
-        messageBuffer.setLength(0);
-        messageBuffer.append(buffer);
+    void setIdleTimeout(TimerWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
     }
 
     /**
      * Queue a message to be sent.
-     * @param data the raw bytes to send
+     * @param data the raw bytes to send, already framed for the connection protocol version
      */
     public void queueMessage(byte[] data) {
-        writeQueue.offer(ByteBuffer.wrap(data));
+        enqueue(SharedFrame.copyOf(data, allocator));
+        releaseIfClosed();
+    }
+
+    /**
+     * Queue a message to be sent, framed for the connection protocol version.
+     * The frame is shared with every other recipient on the same version.
+     * @param message the serialized message
+     */
+    public void queueMessage(WireMessage message) {
+        synchronized (writeLock) {
+            enqueue(frameFor(message).retain());
+        }
+        releaseIfClosed();
+    }
+
+    /**
+     * Queue a frame that is already encoded for this connection's protocol version.
+     * Only called on the worker thread, where the version cannot change underneath.
+     * @param frame the frame, retained by the caller on behalf of this connection
+     */
+    void queueFrame(SharedFrame frame) {
+        enqueue(frame);
+        releaseIfClosed();
+    }
+
+    private void enqueue(SharedFrame frame) {
+        queuedBytes.addAndGet(frame.length());
+        queuedMessages.incrementAndGet();
+        writeQueue.offer(frame);
+    }
+
+    /**
+     * Return all buffers held by this connection to the allocator.
+     * Called on the worker thread once the connection is closed.
+     */
+    void releaseBuffers() {
+        released = true;
+        decoder.release();
+        for (int i = batchStart; i < batchEnd; i++) {
+            batchFrames[i].release();
+            batchFrames[i] = null;
+            batch[i] = null;
+        }
+        batchStart = 0;
+        batchEnd = 0;
+        drainWriteQueue();
+    }
+
+    private void releaseIfClosed() {
+        // A message raced with the close, the worker may already have drained the queue
+        if (released) {
+            drainWriteQueue();
+        }
+    }
+
+    private void drainWriteQueue() {
+        SharedFrame frame;
+        while ((frame = writeQueue.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Check if there are queued messages waiting to be written.
+     * @return true if writes are pending
+     */
+    public boolean hasPendingWrites() {
+        return batchStart < batchEnd || !writeQueue.isEmpty();
     }
 
     /**
      * Process queued writes.
+     * Queued messages are gathered into a single write, bounded by the batch message and
+     * byte limits so one busy connection cannot starve the rest of its worker loop.
+     * Anything the socket does not accept is kept for the next writable event.
      * @return true if there are more writes pending
      */
     public boolean processWrites() throws IOException {
-        // Get next message if we don't have one in progress
-        if (currentWriteBuffer == null || !currentWriteBuffer.hasRemaining()) {
-            currentWriteBuffer = writeQueue.poll();
-            if (currentWriteBuffer == null) {
-                return false;
-            }
+        if (batch == null) {
+            batch = new ByteBuffer[maxWriteBatchMessages];
+            batchFrames = new SharedFrame[maxWriteBatchMessages];
+        }
+
+        // Move the unwritten tail of the previous batch to the front
+        int pending = batchEnd - batchStart;
+        if (batchStart > 0) {
+            System.arraycopy(batch, batchStart, batch, 0, pending);
+            System.arraycopy(batchFrames, batchStart, batchFrames, 0, pending);
+            Arrays.fill(batch, pending, batchEnd, null);
+            Arrays.fill(batchFrames, pending, batchEnd, null);
+            batchStart = 0;
+            batchEnd = pending;
         }
 
-        // Write directly from the message buffer (no size limit)
-        channel.write(currentWriteBuffer);
+        long bytes = 0;
+        for (int i = 0; i < batchEnd; i++) {
+            bytes += batch[i].remaining();
+        }
+        while (batchEnd < batch.length && bytes < maxWriteBatchBytes) {
+            SharedFrame next = writeQueue.poll();
+            if (next == null) {
+                break;
+            }
+            batchFrames[batchEnd] = next;
+            batch[batchEnd++] = next.view();
+            bytes += next.length();
+        }
+        if (batchEnd == 0) {
+            return false;
+        }
 
-        if (!currentWriteBuffer.hasRemaining()) {
-            currentWriteBuffer = null;
-            return !writeQueue.isEmpty();
+        long written = channel.write(batch, 0, batchEnd);
+        if (written > 0) {
+            bytesOut.add(written);
+            lastWriteNanos = System.nanoTime();
         }
 
-        return true;
+        while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+            queuedBytes.addAndGet(-batchFrames[batchStart].length());
+            queuedMessages.decrementAndGet();
+            messagesOut.increment();
+            batchFrames[batchStart].release();
+            batchFrames[batchStart] = null;
+            batch[batchStart++] = null;
+        }
+        return hasPendingWrites();
     }
 
     public String getRemoteAddress() {
@@ -0,0 +1,22 @@
+package com.netplay.server;
+
+/**
+ * What to do with a message for a connection whose write queue is at its high watermark.
+ */
+public enum OverflowPolicy {
+    /** Discard the new message. */
+    DROP_NEWEST,
+
+    /** Discard the oldest queued messages until the new one fits. */
+    DROP_OLDEST,
+
+    /** Disconnect the slow connection. */
+    DISCONNECT,
+
+    /**
+     * Make the sending thread wait for the connection to drain below its low watermark,
+     * up to a timeout, then discard the message. Sends from worker threads and broadcasts
+     * cannot wait and are discarded straight away.
+     */
+    BLOCK_PRODUCER
+}
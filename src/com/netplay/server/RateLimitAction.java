@@ -0,0 +1,17 @@
+package com.netplay.server;
+
+/**
+ * What to do with a connection that sends faster than its inbound rate limit,
+ * see {@link Server#setInboundRateLimit(int, int)}.
+ */
+public enum RateLimitAction {
+    /**
+     * Stop reading from the connection until it is back within its limit. Data the client
+     * keeps sending waits in the socket buffers, and eventually TCP flow control slows the
+     * client down.
+     */
+    THROTTLE,
+
+    /** Disconnect the connection. */
+    DISCONNECT
+}
@@ -1,23 +1,32 @@
 package com.netplay.server;
 
+import com.netplay.shared.DeliveryMode;
 import com.netplay.shared.Network;
+import com.netplay.shared.TimerWheel;
 import com.netplay.shared.Transport;
+import com.netplay.shared.UdpSession;
+import com.netplay.shared.WireMessage;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
- * TCP server for netplay.
+ * TCP server for netplay, with an optional UDP channel alongside (see {@link #setUdpEnabled}).
  * Implements Transport to allow Network to send messages.
  */
 public abstract class Server implements Transport {
@@ -26,16 +35,50 @@ public abstract class Server implements Transport {
     private int maxConnections;
     private Selector selector;
     private ServerSocketChannel serverSocketChannel;
-    private boolean running;
+    private volatile boolean running;
 
-    private final ConcurrentHashMap<String, NetworkConnection> connections = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<SocketChannel, NetworkConnection> channelToConnection = new ConcurrentHashMap<>();
+    private int workerThreads = 1;
+    private EventLoop[] loops;
+    private int nextLoopIndex;
+    private int maxWriteBatchMessages = NetworkConnection.DEFAULT_WRITE_BATCH_MESSAGES;
+    private int maxWriteBatchBytes = NetworkConnection.DEFAULT_WRITE_BATCH_BYTES;
+    private long lowWatermarkBytes = NetworkConnection.DEFAULT_LOW_WATERMARK_BYTES;
+    private long highWatermarkBytes = NetworkConnection.DEFAULT_HIGH_WATERMARK_BYTES;
+    private int lowWatermarkMessages = NetworkConnection.DEFAULT_LOW_WATERMARK_MESSAGES;
+    private int highWatermarkMessages = NetworkConnection.DEFAULT_HIGH_WATERMARK_MESSAGES;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    private volatile long overflowBlockTimeoutMillis = 1000;
+    private int readBudgetMessages = NetworkConnection.DEFAULT_READ_BUDGET_MESSAGES;
+    private int readBudgetBytes = NetworkConnection.DEFAULT_READ_BUDGET_BYTES;
+    private int inboundMessagesPerSecond;
+    private int inboundBytesPerSecond;
+    private RateLimitAction rateLimitAction = RateLimitAction.THROTTLE;
+    private long readIdleTimeoutMillis;
+    private long writeIdleTimeoutMillis;
+    private boolean udpEnabled;
+    private int maxDatagramSize = UdpSession.DEFAULT_MAX_DATAGRAM_SIZE;
+    private volatile UdpTransport udpTransport;
+    private int tickRate;
+    private TickScheduler tickScheduler;
+    private final TickStats tickStats = new TickStats();
+    private final ServerStats stats = new ServerStats(this);
+    private boolean jmxEnabled = true;
+    private ObjectName mbeanName;
+
+    private final ConnectionMap connections = new ConnectionMap();
+    // Acceptor thread only
+    private long lastConnectionId;
+    private final StateSync stateSync = new StateSync(this);
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();
+    private final AreaOfInterest areaOfInterest = new AreaOfInterest();
 
     public Server() {
     }
 
     /**
      * Start the server.
+     * A dedicated acceptor thread accepts new connections and hands them to
+     * one of the worker loops (see {@link #setWorkerThreads(int)}).
      * @param host the host to bind to
      * @param port the port to bind to
      */
@@ -58,14 +101,33 @@ public abstract class Server implements Transport {
                 serverSocketChannel.bind(new InetSocketAddress(host, port));
                 serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
 
+                loops = new EventLoop[workerThreads];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new EventLoop(this, i);
+                }
+                if (udpEnabled) {
+                    UdpTransport udp = new UdpTransport(this, maxDatagramSize);
+                    udp.open(host, port, loops[0]);
+                    udpTransport = udp;
+                }
                 running = true;
-                System.out.println("Server started: " + getAddress());
+                for (EventLoop loop : loops) {
+                    loop.start();
+                }
+                if (tickRate > 0) {
+                    tickScheduler = new TickScheduler(this, loops, tickRate, tickStats);
+                    tickScheduler.start();
+                }
+                if (jmxEnabled) {
+                    registerMBean();
+                }
+                System.out.println("Server started: " + getAddress() + " (" + workerThreads + " worker threads)");
             } catch (IOException e) {
                 System.err.println("Failed to start server: " + e.getMessage());
                 return;
             }
 
-            // Single thread event loop
+            // Acceptor loop, all connection I/O happens on the worker loops
             try {
                 while (running) {
                     selector.select();
@@ -77,22 +139,11 @@ public abstract class Server implements Transport {
                         SelectionKey key = iterator.next();
                         iterator.remove();
 
-                        try {
-                            if (key.isAcceptable()) {
+                        if (key.isValid() && key.isAcceptable()) {
+                            try {
                                 acceptConnection();
-                            } else if (key.isReadable()) {
-                                readFromClient(key);
-                            } else if (key.isWritable()) {
-                                writeToClient(key);
-                            }
-                        } catch (IOException e) {
-                            if (running) {
-                                SocketChannel clientChannel = (SocketChannel) key.channel();
-                                NetworkConnection connection = channelToConnection.get(clientChannel);
-                                if (connection != null) {
-                                    disconnectUser(connection);
-                                }
-                                key.cancel();
+                            } catch (IOException e) {
+                                System.err.println("Error accepting connection: " + e.getMessage());
                             }
                         }
                     }
@@ -101,8 +152,15 @@ public abstract class Server implements Transport {
                 if (running) {
                     System.err.println("Server error: " + e.getMessage());
                 }
+            } finally {
+                // Closed here rather than in stop() so select() never sees a closed selector
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing server: " + e.getMessage());
+                }
             }
-        }).start();
+        }, "netplay-acceptor").start();
     }
 
     private void acceptConnection() throws IOException {
@@ -113,68 +171,66 @@ public abstract class Server implements Transport {
         if (maxConnections > 0 && connections.size() >= maxConnections) {
             System.out.println("Max connections reached, rejecting client");
             clientChannel.close();
+            stats.recordRejected();
             return;
         }
 
         clientChannel.configureBlocking(false);
-        clientChannel.register(selector, SelectionKey.OP_READ);
 
-        String id = generateId();
+        long id = ++lastConnectionId;
         NetworkConnection connection = new NetworkConnection(id, clientChannel);
+        EventLoop loop = nextLoop();
+        connection.setLoop(loop);
+        connection.setWriteBatchLimits(maxWriteBatchMessages, maxWriteBatchBytes);
+        connection.setReadBudget(readBudgetMessages, readBudgetBytes);
+        connection.setInboundRateLimit(inboundMessagesPerSecond, inboundBytesPerSecond);
+        connection.setWriteQueueWatermarks(lowWatermarkBytes, highWatermarkBytes,
+            lowWatermarkMessages, highWatermarkMessages);
         connections.put(id, connection);
-        channelToConnection.put(clientChannel, connection);
+        stats.recordAccepted();
 
-        onUserConnected(connection);
+        // The loop registers the channel and fires onUserConnected on its own thread
+        loop.register(connection);
     }
 
-    private void readFromClient(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        NetworkConnection connection = channelToConnection.get(clientChannel);
-
-        if (connection == null) {
-            return;
+    /**
+     * Pick the least loaded worker loop, starting the scan at a rotating index
+     * so ties are spread round-robin.
+     */
+    private EventLoop nextLoop() {
+        int start = nextLoopIndex++ % loops.length;
+        EventLoop selected = loops[start];
+        for (int i = 1; i < loops.length; i++) {
+            EventLoop candidate = loops[(start + i) % loops.length];
+            if (candidate.getConnectionCount() < selected.getConnectionCount()) {
+                selected = candidate;
+            }
         }
+        return selected;
+    }
 
-        ByteBuffer buffer = connection.getReadBuffer();
-        buffer.clear();
-
-        int bytesRead = clientChannel.read(buffer);
-
-        if (bytesRead == -1) {
-            disconnectUser(connection);
+    void disconnectUser(NetworkConnection userConnection, DisconnectReason reason) {
+        if (!connections.remove(userConnection.getNumericId(), userConnection)) {
             return;
         }
 
-        if (bytesRead > 0) {
-            buffer.flip();
-            connection.appendToMessageBuffer(buffer);
-            connection.processMessages();
+        userConnection.setDisconnectReason(reason);
+        userConnection.disconnect();
+        if (userConnection.getLoop() != null) {
+            userConnection.getLoop().deregister(userConnection);
         }
-    }
-
-    private void writeToClient(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        NetworkConnection connection = channelToConnection.get(clientChannel);
-
-        if (connection == null) {
-            return;
+        stateSync.unsubscribe(userConnection.getId());
+        for (Group group : userConnection.getGroups()) {
+            group.remove(userConnection);
         }
-
-        try {
-            boolean hasMoreWrites = connection.processWrites();
-            if (!hasMoreWrites) {
-                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            }
-        } catch (IOException e) {
-            disconnectUser(connection);
+        userConnection.getGroups().clear();
+        areaOfInterest.remove(userConnection.getId());
+        UdpTransport udp = udpTransport;
+        if (udp != null) {
+            udp.remove(userConnection.getId());
         }
-    }
 
-    private void disconnectUser(NetworkConnection userConnection) {
-        connections.remove(userConnection.getId());
-        channelToConnection.remove(userConnection.getChannel());
-
-        userConnection.disconnect();
+        stats.recordDisconnect(userConnection, reason);
 
         onUserDisconnected(userConnection);
     }
@@ -190,18 +246,32 @@ public abstract class Server implements Transport {
         }
 
         for (NetworkConnection connection : connections.values()) {
-            disconnectUser(connection);
+            disconnectUser(connection, DisconnectReason.SERVER_STOPPED);
         }
         connections.clear();
-        channelToConnection.clear();
+        unregisterMBean();
+
+        if (tickScheduler != null) {
+            tickScheduler.stop();
+            tickScheduler = null;
+        }
+
+        UdpTransport udp = udpTransport;
+        if (udp != null) {
+            udp.close();
+            udpTransport = null;
+        }
+
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.stop();
+            }
+        }
 
         try {
             if (serverSocketChannel != null) {
                 serverSocketChannel.close();
             }
-            if (selector != null) {
-                selector.close();
-            }
         } catch (IOException e) {
             System.err.println("Error closing server: " + e.getMessage());
         }
@@ -214,38 +284,164 @@ public abstract class Server implements Transport {
      * @param connectionId the connection to kick
      */
     public final void kick(String connectionId) {
-        NetworkConnection connection = connections.get(connectionId);
+        NetworkConnection connection = lookup(connectionId);
         if (connection == null) {
             return;
         }
 
-        disconnectUser(connection);
+        disconnectUser(connection, DisconnectReason.KICKED);
+    }
+
+    /**
+     * Run a task after a delay, on one of the worker loops.
+     * Tasks are kept on the loops' timer wheels, so scheduling is cheap and no thread
+     * is tied up waiting. Tasks should not block, since the loop does socket I/O too.
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @param task the task
+     * @return a handle that can cancel the task
+     * @throws IllegalStateException if the server is not running
+     */
+    public final TimerWheel.Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        EventLoop[] current = loops;
+        if (!isRunning() || current == null) {
+            throw new IllegalStateException("Server is not running");
+        }
+        for (EventLoop loop : current) {
+            if (loop.inEventLoop()) {
+                return loop.schedule(delay, unit, task);
+            }
+        }
+        return current[ThreadLocalRandom.current().nextInt(current.length)].schedule(delay, unit, task);
+    }
+
+    /**
+     * Run a task after a delay, on the worker loop the connection is pinned to.
+     * The task runs even if the connection has closed by then.
+     * @param connectionId the connection
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @param task the task
+     * @return a handle that can cancel the task, or null if the connection is not connected
+     */
+    public final TimerWheel.Timeout schedule(String connectionId, long delay, TimeUnit unit, Runnable task) {
+        NetworkConnection connection = lookup(connectionId);
+        if (!isRunning() || connection == null || !connection.isConnected()) {
+            return null;
+        }
+        return connection.getLoop().schedule(delay, unit, task);
     }
 
     // Transport interface implementation
 
     @Override
-    public void send(String connectionId, byte[] data) {
-        NetworkConnection connection = connections.get(connectionId);
+    public void send(String connectionId, WireMessage message) {
+        NetworkConnection connection = lookup(connectionId);
         if (connection == null || !connection.isConnected()) {
             return;
         }
-        queueWrite(connection, data);
+        queueWrite(connection, message);
+    }
+
+    @Override
+    public void broadcast(WireMessage message) {
+        fanOut(message, null);
+    }
+
+    @Override
+    public void broadcastExcept(String[] excludeIds, WireMessage message) {
+        fanOut(message, excluding(excludeIds));
     }
 
+    /**
+     * Send a message with a delivery mode. Datagram modes go over the UDP channel when the
+     * connection has one open, otherwise over TCP like every other message.
+     */
     @Override
-    public void broadcast(byte[] data) {
-        connections.values().parallelStream()
-            .forEach(connection -> queueWrite(connection, data));
+    public void send(String connectionId, WireMessage message, DeliveryMode mode) {
+        UdpTransport udp = udpTransport;
+        if (udp == null || !mode.isDatagram()) {
+            send(connectionId, message);
+            return;
+        }
+        udp.send(connectionId, message, mode);
     }
 
     @Override
-    public void broadcastExcept(String[] excludeIds, byte[] data) {
-        Set<String> excludeSet = Set.of(excludeIds);
-        connections.entrySet().parallelStream()
-            .filter(entry -> !excludeSet.contains(entry.getKey()))
-            .map(Map.Entry::getValue)
-            .forEach(connection -> queueWrite(connection, data));
+    public void broadcast(WireMessage message, DeliveryMode mode) {
+        UdpTransport udp = udpTransport;
+        if (udp == null || !mode.isDatagram()) {
+            broadcast(message);
+            return;
+        }
+        udp.broadcast(message, mode);
+    }
+
+    @Override
+    public void broadcastToGroup(String groupId, WireMessage message) {
+        Group group = groups.get(groupId);
+        if (group == null || !isRunning()) {
+            return;
+        }
+        NetworkConnection[] members = group.members();
+        group.recordBroadcast(members.length, message.getBodyLength());
+        sendEach(message, members);
+    }
+
+    @Override
+    public void broadcastToGroup(String groupId, WireMessage message, DeliveryMode mode) {
+        UdpTransport udp = udpTransport;
+        if (udp == null || !mode.isDatagram()) {
+            broadcastToGroup(groupId, message);
+            return;
+        }
+        udp.broadcastToGroup(groupId, message, mode);
+    }
+
+    /**
+     * Broadcast a message to the connections positioned within a radius of a point.
+     * See {@link #setPosition(String, double, double)}.
+     */
+    @Override
+    public void broadcastNear(double x, double y, double radius, WireMessage message) {
+        if (!isRunning()) {
+            return;
+        }
+        sendEach(message, areaOfInterest.near(x, y, radius));
+    }
+
+    @Override
+    public void broadcastNear(double x, double y, double radius, WireMessage message, DeliveryMode mode) {
+        UdpTransport udp = udpTransport;
+        if (udp == null || !mode.isDatagram()) {
+            broadcastNear(x, y, radius, message);
+            return;
+        }
+        udp.broadcastNear(x, y, radius, message, mode);
+    }
+
+    /**
+     * Queue a message to a set of connections.
+     * Each loop picks out its own recipients, frames are shared as in a broadcast.
+     */
+    private void sendEach(WireMessage message, NetworkConnection[] recipients) {
+        if (recipients.length == 0) {
+            return;
+        }
+        for (EventLoop loop : loops) {
+            if (loop.inEventLoop()) {
+                loop.broadcast(message, recipients);
+                continue;
+            }
+            message.retain();
+            loop.executeWrite(() -> {
+                try {
+                    loop.broadcast(message, recipients);
+                } finally {
+                    message.release();
+                }
+            });
+        }
     }
 
     @Override
@@ -255,29 +451,107 @@ public abstract class Server implements Transport {
 
     @Override
     public boolean isConnected(String connectionId) {
-        NetworkConnection connection = connections.get(connectionId);
+        NetworkConnection connection = lookup(connectionId);
         return connection != null && connection.isConnected();
     }
 
-    private void queueWrite(NetworkConnection connection, byte[] data) {
+    private void queueWrite(NetworkConnection connection, WireMessage message) {
         if (!isRunning() || !connection.isConnected()) {
             return;
         }
 
-        try {
-            connection.queueMessage(data);
-            SelectionKey key = connection.getChannel().keyFor(selector);
-            if (key != null && key.isValid()) {
-                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                selector.wakeup();
+        // Route to the worker loop that owns this connection
+        EventLoop loop = connection.getLoop();
+        if (overflowPolicy == OverflowPolicy.BLOCK_PRODUCER && !connection.isWritable() && !loop.inEventLoop()
+                && !connection.awaitWritable(overflowBlockTimeoutMillis)) {
+            connection.recordDropped();
+            return;
+        }
+        if (loop.inEventLoop()) {
+            loop.write(connection, connection.frameFor(message).retain());
+            return;
+        }
+        message.retain();
+        loop.executeWrite(() -> {
+            try {
+                loop.write(connection, connection.frameFor(message).retain());
+            } finally {
+                message.release();
             }
-        } catch (Exception e) {
-            System.err.println("Error queueing message to " + connection.getId() + ": " + e.getMessage());
+        });
+    }
+
+    /**
+     * Hand a broadcast to every worker loop as a single task each.
+     * Each loop frames the message once per protocol version and queues it on its own
+     * connections, so recipients share one encoded frame and no per-connection wakeups occur.
+     */
+    void fanOut(WireMessage message, Predicate<String> excluded) {
+        if (!isRunning()) {
+            return;
+        }
+
+        for (EventLoop loop : loops) {
+            if (loop.inEventLoop()) {
+                loop.broadcast(message, excluded);
+                continue;
+            }
+            message.retain();
+            loop.executeWrite(() -> {
+                try {
+                    loop.broadcast(message, excluded);
+                } finally {
+                    message.release();
+                }
+            });
         }
     }
 
+    static Predicate<String> excluding(String[] excludeIds) {
+        if (excludeIds.length == 0) {
+            return null;
+        }
+        if (excludeIds.length == 1) {
+            String excludeId = excludeIds[0];
+            return excludeId::equals;
+        }
+        if (excludeIds.length <= 8) {
+            return id -> {
+                for (String excludeId : excludeIds) {
+                    if (excludeId.equals(id)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+        Set<String> excludeSet = new HashSet<>(Arrays.asList(excludeIds));
+        return excludeSet::contains;
+    }
+
+    /**
+     * Called once per tick on the tick thread when a tick rate is set, see {@link #setTickRate(int)}.
+     * Messages sent from here, and everything else sent since the previous tick, are written
+     * right after it returns. Does nothing by default.
+     * @param tick the tick number, starting at 1
+     */
+    public void onTick(long tick) {
+    }
+
+    /**
+     * Called when a connection's write queue crosses a watermark.
+     * The connection turns unwritable when its queue reaches the high watermark and
+     * writable again once it drains to the low watermark. Invoked on the worker thread
+     * the connection is pinned to. Does nothing by default.
+     * @param connection the connection
+     * @param writable the new writability
+     */
+    public void onWritabilityChanged(NetworkConnection connection, boolean writable) {
+    }
+
     /**
      * Called when a user connects.
+     * Invoked on the worker thread the connection is pinned to.
      * @param connection the new connection
      */
     public abstract void onUserConnected(NetworkConnection connection);
@@ -288,10 +562,136 @@ public abstract class Server implements Transport {
      */
     public abstract void onUserDisconnected(NetworkConnection connection);
 
+    /**
+     * Get the delta-compressed state replication for this server's clients.
+     * @return the state sync
+     */
+    public final StateSync getStateSync() {
+        return stateSync;
+    }
+
     public final NetworkConnection getConnection(String id) {
+        return lookup(id);
+    }
+
+    public final NetworkConnection getConnection(long id) {
         return connections.get(id);
     }
 
+    /**
+     * Create a group, or get it if it already exists.
+     * @param groupId the group ID
+     * @return the group
+     */
+    public final Group createGroup(String groupId) {
+        return groups.computeIfAbsent(groupId, Group::new);
+    }
+
+    public final Group getGroup(String groupId) {
+        return groups.get(groupId);
+    }
+
+    public final Collection<Group> getGroups() {
+        return groups.values();
+    }
+
+    /**
+     * Remove a group, its members leave it.
+     * @param groupId the group ID
+     * @return false if there was no such group
+     */
+    public final boolean removeGroup(String groupId) {
+        Group group = groups.remove(groupId);
+        if (group == null) {
+            return false;
+        }
+        for (NetworkConnection member : group.clear()) {
+            member.getGroups().remove(group);
+        }
+        return true;
+    }
+
+    /**
+     * Add a connection to a group, creating the group if needed.
+     * Connections leave all their groups when they disconnect.
+     * @param groupId the group ID
+     * @param connectionId the connection ID
+     * @return false if the connection is not connected or already a member
+     */
+    public final boolean joinGroup(String groupId, String connectionId) {
+        NetworkConnection connection = lookup(connectionId);
+        if (connection == null) {
+            return false;
+        }
+        Group group = createGroup(groupId);
+        if (!group.add(connection)) {
+            return false;
+        }
+        connection.getGroups().add(group);
+        if (!connections.containsKey(connection.getNumericId())) {
+            // Disconnected meanwhile, and may have missed this group when leaving the others
+            group.remove(connection);
+            connection.getGroups().remove(group);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a connection from a group. The group stays, even when empty.
+     * @param groupId the group ID
+     * @param connectionId the connection ID
+     * @return false if the connection was not a member
+     */
+    public final boolean leaveGroup(String groupId, String connectionId) {
+        Group group = groups.get(groupId);
+        NetworkConnection connection = lookup(connectionId);
+        if (group == null || connection == null || !group.remove(connection)) {
+            return false;
+        }
+        connection.getGroups().remove(group);
+        return true;
+    }
+
+    public final AreaOfInterest getAreaOfInterest() {
+        return areaOfInterest;
+    }
+
+    /**
+     * Set or move a connection's position for {@link #broadcastNear(double, double, double, WireMessage)}.
+     * Connections lose their position when they disconnect.
+     * @param connectionId the connection ID
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return false if the connection is not connected
+     */
+    public final boolean setPosition(String connectionId, double x, double y) {
+        NetworkConnection connection = lookup(connectionId);
+        if (connection == null) {
+            return false;
+        }
+        areaOfInterest.update(connection, x, y);
+        if (!connections.containsKey(connection.getNumericId())) {
+            // Disconnected meanwhile, and may have been removed before this update
+            areaOfInterest.remove(connectionId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a connection's position, so it no longer receives nearby broadcasts.
+     * @param connectionId the connection ID
+     * @return false if it had none
+     */
+    public final boolean clearPosition(String connectionId) {
+        return areaOfInterest.remove(connectionId);
+    }
+
+    Collection<NetworkConnection> getConnections() {
+        return connections.values();
+    }
+
     public final int getConnectedCount() {
         return connections.size();
     }
@@ -309,6 +709,360 @@ public abstract class Server implements Transport {
         this.maxConnections = maxConnections;
     }
 
+    /**
+     * Set the number of worker selector loops.
+     * Each connection is pinned to one worker, so handlers for a single connection
+     * always run in order, but handlers for different connections may run concurrently.
+     * @param workerThreads the number of worker loops, at least 1
+     */
+    public final void setWorkerThreads(int workerThreads) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server worker threads whilst it is running.");
+            return;
+        }
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("Worker threads must be at least 1");
+        }
+        this.workerThreads = workerThreads;
+    }
+
+    public final int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Set how much input a connection gets through per worker loop pass.
+     * Each pass reads at most the byte limit from the socket and dispatches at most the
+     * message limit. Messages left over are dispatched on the next pass before the
+     * connection reads again, so one busy connection cannot starve the rest of its loop.
+     * @param maxMessages the most messages dispatched per pass
+     * @param maxBytes the most bytes read per pass
+     */
+    public final void setReadBudget(int maxMessages, int maxBytes) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server read budget whilst it is running.");
+            return;
+        }
+        if (maxMessages < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Read budget must be at least 1");
+        }
+        this.readBudgetMessages = maxMessages;
+        this.readBudgetBytes = maxBytes;
+    }
+
+    public final int getReadBudgetMessages() {
+        return readBudgetMessages;
+    }
+
+    public final int getReadBudgetBytes() {
+        return readBudgetBytes;
+    }
+
+    /**
+     * Limit how fast each connection may send, with bursts of up to one second's worth.
+     * Connections over the limit are handled by the {@link RateLimitAction}.
+     * Control frames, such as heartbeats, count towards the limit too.
+     * @param messagesPerSecond the message rate per connection, or 0 for no limit
+     * @param bytesPerSecond the byte rate per connection, or 0 for no limit
+     */
+    public final void setInboundRateLimit(int messagesPerSecond, int bytesPerSecond) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server inbound rate limit whilst it is running.");
+            return;
+        }
+        if (messagesPerSecond < 0 || bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate limits must not be negative");
+        }
+        this.inboundMessagesPerSecond = messagesPerSecond;
+        this.inboundBytesPerSecond = bytesPerSecond;
+    }
+
+    public final int getInboundMessagesPerSecond() {
+        return inboundMessagesPerSecond;
+    }
+
+    public final int getInboundBytesPerSecond() {
+        return inboundBytesPerSecond;
+    }
+
+    /**
+     * Set what happens to connections that send faster than the inbound rate limit.
+     * @param rateLimitAction the action, {@link RateLimitAction#THROTTLE} by default
+     */
+    public final void setRateLimitAction(RateLimitAction rateLimitAction) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server rate limit action whilst it is running.");
+            return;
+        }
+        if (rateLimitAction == null) {
+            throw new IllegalArgumentException("Rate limit action must not be null");
+        }
+        this.rateLimitAction = rateLimitAction;
+    }
+
+    public final RateLimitAction getRateLimitAction() {
+        return rateLimitAction;
+    }
+
+    /**
+     * Set how much queued data a connection writes per writable event.
+     * Queued messages are combined into one gathering write until either limit is reached.
+     * A single message larger than the byte limit is still written whole.
+     * @param maxMessages the most messages per write
+     * @param maxBytes the most bytes per write
+     */
+    public final void setWriteBatchLimits(int maxMessages, int maxBytes) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server write batch limits whilst it is running.");
+            return;
+        }
+        if (maxMessages < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Write batch limits must be at least 1");
+        }
+        this.maxWriteBatchMessages = maxMessages;
+        this.maxWriteBatchBytes = maxBytes;
+    }
+
+    public final int getMaxWriteBatchMessages() {
+        return maxWriteBatchMessages;
+    }
+
+    public final int getMaxWriteBatchBytes() {
+        return maxWriteBatchBytes;
+    }
+
+    /**
+     * Set the write queue watermarks applied to each connection, in bytes.
+     * @param low the queue size at which a connection becomes writable again
+     * @param high the queue size at which a connection becomes unwritable and overflows
+     */
+    public final void setWriteQueueByteWatermarks(long low, long high) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server write queue watermarks whilst it is running.");
+            return;
+        }
+        if (low < 0 || high < 1 || low > high) {
+            throw new IllegalArgumentException("Invalid watermarks: low=" + low + ", high=" + high);
+        }
+        this.lowWatermarkBytes = low;
+        this.highWatermarkBytes = high;
+    }
+
+    /**
+     * Set the write queue watermarks applied to each connection, in messages.
+     * @param low the queue length at which a connection becomes writable again
+     * @param high the queue length at which a connection becomes unwritable and overflows
+     */
+    public final void setWriteQueueMessageWatermarks(int low, int high) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server write queue watermarks whilst it is running.");
+            return;
+        }
+        if (low < 0 || high < 1 || low > high) {
+            throw new IllegalArgumentException("Invalid watermarks: low=" + low + ", high=" + high);
+        }
+        this.lowWatermarkMessages = low;
+        this.highWatermarkMessages = high;
+    }
+
+    /**
+     * Set what happens to messages for a connection whose write queue is full.
+     * @param overflowPolicy the policy, {@link OverflowPolicy#DISCONNECT} by default
+     */
+    public final void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy must not be null");
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public final OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set how long a sending thread waits under {@link OverflowPolicy#BLOCK_PRODUCER}.
+     * @param timeoutMillis the longest wait in milliseconds
+     */
+    public final void setOverflowBlockTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative: " + timeoutMillis);
+        }
+        this.overflowBlockTimeoutMillis = timeoutMillis;
+    }
+
+    public final long getOverflowBlockTimeout() {
+        return overflowBlockTimeoutMillis;
+    }
+
+    /**
+     * Close connections that send nothing for this long, which catches peers that vanished
+     * without closing the socket. Combine it with {@link #setWriteIdleTimeout(long)} so
+     * quiet but healthy version 2 clients answer heartbeats in time.
+     * @param timeoutMillis the timeout in milliseconds, or 0 to never time out
+     */
+    public final void setReadIdleTimeout(long timeoutMillis) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server read idle timeout whilst it is running.");
+            return;
+        }
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        }
+        this.readIdleTimeoutMillis = timeoutMillis;
+    }
+
+    public final long getReadIdleTimeout() {
+        return readIdleTimeoutMillis;
+    }
+
+    /**
+     * Send a heartbeat ping to version 2 connections that have been written nothing for
+     * this long. Clients answer with a pong, which counts as a read.
+     * @param timeoutMillis the timeout in milliseconds, or 0 to send no heartbeats
+     */
+    public final void setWriteIdleTimeout(long timeoutMillis) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server write idle timeout whilst it is running.");
+            return;
+        }
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        }
+        this.writeIdleTimeoutMillis = timeoutMillis;
+    }
+
+    public final long getWriteIdleTimeout() {
+        return writeIdleTimeoutMillis;
+    }
+
+    /**
+     * Enable the UDP channel, bound to the same port as TCP.
+     * Version 2 clients that enable UDP too are offered a session during their handshake,
+     * after which {@link DeliveryMode} datagram modes reach them over UDP.
+     * @param udpEnabled true to open the UDP channel on start
+     */
+    public final void setUdpEnabled(boolean udpEnabled) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server UDP channel whilst it is running.");
+            return;
+        }
+        this.udpEnabled = udpEnabled;
+    }
+
+    public final boolean isUdpEnabled() {
+        return udpEnabled;
+    }
+
+    /**
+     * Set the largest datagram the server sends, larger messages are fragmented.
+     * Keep it below the path MTU, the default of {@value UdpSession#DEFAULT_MAX_DATAGRAM_SIZE}
+     * bytes fits typical internet paths, IPv6 included.
+     * @param maxDatagramSize the datagram size in bytes
+     */
+    public final void setMaxDatagramSize(int maxDatagramSize) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server datagram size whilst it is running.");
+            return;
+        }
+        if (maxDatagramSize < UdpSession.MIN_DATAGRAM_SIZE || maxDatagramSize > UdpSession.MAX_RECEIVE_SIZE) {
+            throw new IllegalArgumentException("Invalid datagram size: " + maxDatagramSize);
+        }
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    public final int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    /**
+     * Get the UDP transport, for example to set it as the {@link Network} transport so
+     * plain sends use its default delivery mode.
+     * @return the transport, or null if UDP is not enabled or the server is not running
+     */
+    public final UdpTransport getUdpTransport() {
+        return udpTransport;
+    }
+
+    /**
+     * Set a fixed tick rate for output, for example 20, 30 or 60 per second.
+     * Sends are then queued per connection without waking the worker loops, and at every
+     * tick {@link #onTick(long)} runs and each connection writes what it queued in one
+     * write. Messages wait up to one tick, in exchange for far fewer wakeups and system
+     * calls. Handshake replies are still written immediately.
+     * @param tickRate ticks per second, or 0 to write every message as soon as it is sent
+     */
+    public final void setTickRate(int tickRate) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server tick rate whilst it is running.");
+            return;
+        }
+        if (tickRate < 0 || tickRate > 1000) {
+            throw new IllegalArgumentException("Tick rate must be between 0 and 1000");
+        }
+        this.tickRate = tickRate;
+    }
+
+    public final int getTickRate() {
+        return tickRate;
+    }
+
+    /**
+     * Get the tick timings, including how often a tick overran into the next one.
+     * @return the tick stats
+     */
+    public final TickStats getTickStats() {
+        return tickStats;
+    }
+
+    /**
+     * Get the server metrics: accepts, disconnect reasons, loop iteration times and traffic.
+     * @return the stats
+     */
+    public final ServerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Set whether the stats are registered as a JMX MBean while the server runs,
+     * under {@code com.netplay:type=Server,port=<port>}. Enabled by default.
+     * @param jmxEnabled true to register the MBean
+     */
+    public final void setJmxEnabled(boolean jmxEnabled) {
+        if (isRunning()) {
+            System.err.println("Cannot set the server JMX registration whilst it is running.");
+            return;
+        }
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public final boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    private void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("com.netplay:type=Server,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+            mbeanName = name;
+        } catch (JMException e) {
+            System.err.println("Failed to register server MBean: " + e.getMessage());
+        }
+    }
+
+    private void unregisterMBean() {
+        ObjectName name = mbeanName;
+        if (name == null) {
+            return;
+        }
+        mbeanName = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            System.err.println("Failed to unregister server MBean: " + e.getMessage());
+        }
+    }
+
     public final int getMaxConnections() {
         return maxConnections;
     }
@@ -349,7 +1103,22 @@ public abstract class Server implements Transport {
         this.host = host;
     }
 
-    private static String generateId() {
-        return UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+    /**
+     * Find a connection by its string ID, parsed back to the numeric one.
+     * IDs that are not positive decimal numbers match no connection.
+     */
+    private NetworkConnection lookup(String id) {
+        if (id == null || id.isEmpty() || id.length() > 18 || id.charAt(0) == '0') {
+            return null;
+        }
+        long numericId = 0;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+            numericId = numericId * 10 + (c - '0');
+        }
+        return connections.get(numericId);
     }
 }
@@ -0,0 +1,370 @@
+package com.netplay.server;
+
+import com.netplay.shared.DispatchStats;
+import com.netplay.shared.LatencyHistogram;
+import com.netplay.shared.Network;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters: accepts, disconnect reasons, worker loop iteration times and
+ * traffic totals. Traffic and queue depth are summed from the live connections when read,
+ * plus the totals of connections already closed, so the I/O path only updates its own
+ * connection's counters. Dispatch counts and timings come from {@link Network#getDispatchStats()}.
+ *
+ * Readable any time, as live getters, as a flat {@link #snapshot(boolean)} for scraping,
+ * or through JMX. Loop iteration time covers the work after select returns, not the wait.
+ * Times are in nanoseconds.
+ */
+public final class ServerStats implements ServerStatsMXBean {
+    private final Server server;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final Map<DisconnectReason, LongAdder> disconnects = new EnumMap<>(DisconnectReason.class);
+    private final LatencyHistogram loopIterations = new LatencyHistogram();
+    // Totals of closed connections
+    private final LongAdder closedBytesIn = new LongAdder();
+    private final LongAdder closedBytesOut = new LongAdder();
+    private final LongAdder closedMessagesIn = new LongAdder();
+    private final LongAdder closedMessagesOut = new LongAdder();
+    private final LongAdder closedDroppedMessages = new LongAdder();
+    private volatile long statsSince = System.nanoTime();
+
+    ServerStats(Server server) {
+        this.server = server;
+        for (DisconnectReason reason : DisconnectReason.values()) {
+            disconnects.put(reason, new LongAdder());
+        }
+    }
+
+    void recordAccepted() {
+        accepted.increment();
+    }
+
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    void recordThrottled() {
+        throttled.increment();
+    }
+
+    void recordLoopIteration(long nanos) {
+        loopIterations.record(nanos);
+    }
+
+    void recordDisconnect(NetworkConnection connection, DisconnectReason reason) {
+        disconnects.get(reason).increment();
+        closedBytesIn.add(connection.getBytesIn());
+        closedBytesOut.add(connection.getBytesOut());
+        closedMessagesIn.add(connection.getMessagesIn());
+        closedMessagesOut.add(connection.getMessagesOut());
+        closedDroppedMessages.add(connection.getDroppedMessages());
+    }
+
+    @Override
+    public int getConnectedCount() {
+        return server.getConnectedCount();
+    }
+
+    @Override
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    /**
+     * Get the number of connections closed straight away because the server was full.
+     * @return the count
+     */
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Get the average accept rate since the stats were created or reset.
+     * @return connections accepted per second
+     */
+    @Override
+    public double getAcceptRate() {
+        double seconds = (System.nanoTime() - statsSince) / 1e9;
+        return seconds <= 0 ? 0 : getAcceptedCount() / seconds;
+    }
+
+    /**
+     * Get how often a connection was paused, or had a datagram dropped, for sending faster
+     * than its inbound rate limit.
+     * @return the count
+     */
+    @Override
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    public long getDisconnectCount(DisconnectReason reason) {
+        return disconnects.get(reason).sum();
+    }
+
+    @Override
+    public long getDisconnectCount() {
+        long count = 0;
+        for (LongAdder adder : disconnects.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Get the disconnect counts by reason name.
+     * @return every reason, in declaration order
+     */
+    @Override
+    public Map<String, Long> getDisconnectCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<DisconnectReason, LongAdder> entry : disconnects.entrySet()) {
+            counts.put(entry.getKey().name(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getBytesIn() {
+        long total = closedBytesIn.sum();
+        for (NetworkConnection connection : server.getConnections()) {
+            total += connection.getBytesIn();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBytesOut() {
+        long total = closedBytesOut.sum();
+        for (NetworkConnection connection : server.getConnections()) {
+            total += connection.getBytesOut();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        long total = closedMessagesIn.sum();
+        for (NetworkConnection connection : server.getConnections()) {
+            total += connection.getMessagesIn();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMessagesOut() {
+        long total = closedMessagesOut.sum();
+        for (NetworkConnection connection : server.getConnections()) {
+            total += connection.getMessagesOut();
+        }
+        return total;
+    }
+
+    /**
+     * Get the bytes queued and not yet written, over all connections.
+     * @return the byte count
+     */
+    @Override
+    public long getQueuedBytes() {
+        long total = 0;
+        for (NetworkConnection connection : server.getConnections()) {
+            total += connection.getQueuedBytes();
+        }
+        return total;
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        long total = 0;
+        for (NetworkConnection connection : server.getConnections()) {
+            total += connection.getQueuedMessages();
+        }
+        return total;
+    }
+
+    /**
+     * Get the deepest write queue of any connection.
+     * @return the byte count
+     */
+    @Override
+    public long getMaxQueuedBytes() {
+        long max = 0;
+        for (NetworkConnection connection : server.getConnections()) {
+            max = Math.max(max, connection.getQueuedBytes());
+        }
+        return max;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        long total = closedDroppedMessages.sum();
+        for (NetworkConnection connection : server.getConnections()) {
+            total += connection.getDroppedMessages();
+        }
+        return total;
+    }
+
+    /**
+     * Get the distribution of worker loop iteration times, over all loops.
+     * @return the live histogram
+     */
+    public LatencyHistogram getLoopIterationHistogram() {
+        return loopIterations;
+    }
+
+    @Override
+    public long getLoopIterationCount() {
+        return loopIterations.getCount();
+    }
+
+    @Override
+    public long getLoopIterationP50Nanos() {
+        return loopIterations.getPercentileNanos(50);
+    }
+
+    @Override
+    public long getLoopIterationP99Nanos() {
+        return loopIterations.getPercentileNanos(99);
+    }
+
+    @Override
+    public long getLoopIterationMaxNanos() {
+        return loopIterations.getMaxNanos();
+    }
+
+    /**
+     * Get the number of handled messages by type name.
+     * @return the counts, sorted by type name
+     */
+    @Override
+    public Map<String, Long> getDispatchCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (DispatchStats stats : Network.getDispatchStats()) {
+            counts.put(stats.getTypeName(), stats.getCount());
+        }
+        return counts;
+    }
+
+    /**
+     * Get the 99th percentile handler execution time by type name.
+     * @return the times, sorted by type name
+     */
+    @Override
+    public Map<String, Long> getDispatchP99Nanos() {
+        Map<String, Long> times = new TreeMap<>();
+        for (DispatchStats stats : Network.getDispatchStats()) {
+            times.put(stats.getTypeName(), stats.getExecutionHistogram().getPercentileNanos(99));
+        }
+        return times;
+    }
+
+    /**
+     * Read every counter into a flat map of dotted names, for scraping.
+     * @param includeConnections whether to add {@code connection.<id>.*} entries for every connection
+     * @return the values, in a stable order
+     */
+    public Map<String, Long> snapshot(boolean includeConnections) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put("server.connected", (long) getConnectedCount());
+        values.put("server.accepted", getAcceptedCount());
+        values.put("server.rejected", getRejectedCount());
+        values.put("server.throttled", getThrottledCount());
+        for (Map.Entry<String, Long> entry : getDisconnectCounts().entrySet()) {
+            values.put("server.disconnects." + entry.getKey(), entry.getValue());
+        }
+
+        long bytesIn = closedBytesIn.sum();
+        long bytesOut = closedBytesOut.sum();
+        long messagesIn = closedMessagesIn.sum();
+        long messagesOut = closedMessagesOut.sum();
+        long dropped = closedDroppedMessages.sum();
+        long queuedBytes = 0;
+        long queuedMessages = 0;
+        long maxQueuedBytes = 0;
+        Map<String, Long> connectionValues = includeConnections ? new LinkedHashMap<>() : null;
+        for (NetworkConnection connection : server.getConnections()) {
+            bytesIn += connection.getBytesIn();
+            bytesOut += connection.getBytesOut();
+            messagesIn += connection.getMessagesIn();
+            messagesOut += connection.getMessagesOut();
+            dropped += connection.getDroppedMessages();
+            queuedBytes += connection.getQueuedBytes();
+            queuedMessages += connection.getQueuedMessages();
+            maxQueuedBytes = Math.max(maxQueuedBytes, connection.getQueuedBytes());
+            if (connectionValues != null) {
+                String prefix = "connection." + connection.getId() + ".";
+                connectionValues.put(prefix + "bytesIn", connection.getBytesIn());
+                connectionValues.put(prefix + "bytesOut", connection.getBytesOut());
+                connectionValues.put(prefix + "messagesIn", connection.getMessagesIn());
+                connectionValues.put(prefix + "messagesOut", connection.getMessagesOut());
+                connectionValues.put(prefix + "queuedBytes", connection.getQueuedBytes());
+                connectionValues.put(prefix + "queuedMessages", (long) connection.getQueuedMessages());
+                connectionValues.put(prefix + "droppedMessages", connection.getDroppedMessages());
+            }
+        }
+        values.put("server.bytesIn", bytesIn);
+        values.put("server.bytesOut", bytesOut);
+        values.put("server.messagesIn", messagesIn);
+        values.put("server.messagesOut", messagesOut);
+        values.put("server.droppedMessages", dropped);
+        values.put("server.queuedBytes", queuedBytes);
+        values.put("server.queuedMessages", queuedMessages);
+        values.put("server.maxQueuedBytes", maxQueuedBytes);
+
+        putHistogram(values, "loop.iteration", loopIterations);
+        for (DispatchStats stats : Network.getDispatchStats()) {
+            String prefix = "dispatch." + stats.getTypeName();
+            values.put(prefix + ".count", stats.getCount());
+            putHistogram(values, prefix + ".queue", stats.getQueueHistogram());
+            putHistogram(values, prefix + ".execution", stats.getExecutionHistogram());
+        }
+        if (connectionValues != null) {
+            values.putAll(connectionValues);
+        }
+        return values;
+    }
+
+    private static void putHistogram(Map<String, Long> values, String prefix, LatencyHistogram histogram) {
+        values.put(prefix + ".avgNanos", histogram.getAverageNanos());
+        values.put(prefix + ".p50Nanos", histogram.getPercentileNanos(50));
+        values.put(prefix + ".p99Nanos", histogram.getPercentileNanos(99));
+        values.put(prefix + ".p999Nanos", histogram.getPercentileNanos(99.9));
+        values.put(prefix + ".maxNanos", histogram.getMaxNanos());
+    }
+
+    /**
+     * Clear the accept, throttle, disconnect and loop counters and restart the accept rate measurement.
+     * Traffic totals, per-connection and dispatch counters are left alone.
+     */
+    @Override
+    public void reset() {
+        accepted.reset();
+        rejected.reset();
+        throttled.reset();
+        for (LongAdder adder : disconnects.values()) {
+            adder.reset();
+        }
+        loopIterations.reset();
+        statsSince = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return "connected=" + getConnectedCount()
+            + ", accepted=" + getAcceptedCount()
+            + ", rejected=" + getRejectedCount()
+            + ", throttled=" + getThrottledCount()
+            + ", disconnects=" + getDisconnectCounts()
+            + ", bytesIn=" + getBytesIn()
+            + ", bytesOut=" + getBytesOut()
+            + ", queuedBytes=" + getQueuedBytes()
+            + ", loop[" + loopIterations + "]";
+    }
+}
@@ -0,0 +1,53 @@
+package com.netplay.server;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ServerStats}, registered as {@code com.netplay:type=Server,port=<port>}
+ * while the server runs. Times are in nanoseconds.
+ */
+public interface ServerStatsMXBean {
+    int getConnectedCount();
+
+    long getAcceptedCount();
+
+    long getRejectedCount();
+
+    double getAcceptRate();
+
+    long getThrottledCount();
+
+    long getDisconnectCount();
+
+    Map<String, Long> getDisconnectCounts();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getQueuedBytes();
+
+    long getQueuedMessages();
+
+    long getMaxQueuedBytes();
+
+    long getDroppedMessages();
+
+    long getLoopIterationCount();
+
+    long getLoopIterationP50Nanos();
+
+    long getLoopIterationP99Nanos();
+
+    long getLoopIterationMaxNanos();
+
+    Map<String, Long> getDispatchCounts();
+
+    Map<String, Long> getDispatchP99Nanos();
+
+    void reset();
+}
@@ -0,0 +1,318 @@
+package com.netplay.server;
+
+import com.netplay.shared.BinaryWriter;
+import com.netplay.shared.Network;
+import com.netplay.shared.Protocol;
+import com.netplay.shared.Serializer;
+import com.netplay.shared.StateDelta;
+import com.netplay.shared.WireMessage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delta-compressed replication of entity states to clients.
+ *
+ * The game updates entities with {@link #put} as they change and calls {@link #publish()}
+ * once per tick. Each subscribed client is sent only what changed since the last snapshot
+ * it acknowledged: removed entity IDs, and changed entities as byte-level deltas against
+ * their acknowledged state. Entities that did not change cost nothing, and a state is
+ * serialized once when it is put, not per client or per tick.
+ *
+ * Every client keeps the snapshots it was sent in a fixed-size ring. When its acknowledged
+ * snapshot has dropped out of the ring, or it has not acknowledged any yet, it gets a full
+ * snapshot instead. Clients that acknowledged the same snapshot share one encoded message.
+ *
+ * Snapshots are binary and need protocol version 2, version 1 clients are skipped.
+ * Clients apply them with {@link com.netplay.client.StateReplica}.
+ */
+public final class StateSync {
+    public static final int DEFAULT_HISTORY_SIZE = 32;
+
+    private static final int DELTA = 1;
+    private static final int FULL = 0;
+
+    private final Server server;
+    private volatile int historySize = DEFAULT_HISTORY_SIZE;
+
+    // Current serialized states, guarded by this. Unchanged states keep the same array,
+    // so comparing against a baseline is a reference check
+    private final Map<String, byte[]> entities = new HashMap<>();
+    private final Map<String, ClientState> clients = new ConcurrentHashMap<>();
+    private int sequence;
+
+    private final LongAdder fullSnapshots = new LongAdder();
+    private final LongAdder deltaSnapshots = new LongAdder();
+    private final LongAdder encodedBytes = new LongAdder();
+
+    StateSync(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Set or update an entity's state, serialized now with the configured serializer.
+     * @param entityId the entity ID
+     * @param state the state object
+     */
+    public void put(String entityId, Object state) {
+        Serializer serializer = Network.getSerializer();
+        if (serializer == null) {
+            throw new IllegalStateException("Serializer not set. Call Network.setSerializer() first.");
+        }
+        byte[] data = serializer.serialize(state);
+        synchronized (this) {
+            byte[] previous = entities.get(entityId);
+            if (previous == null || !Arrays.equals(previous, data)) {
+                entities.put(entityId, data);
+            }
+        }
+    }
+
+    /**
+     * Remove an entity, clients drop it with the next snapshot.
+     * @param entityId the entity ID
+     */
+    public synchronized void remove(String entityId) {
+        entities.remove(entityId);
+    }
+
+    /**
+     * Remove every entity.
+     */
+    public synchronized void clear() {
+        entities.clear();
+    }
+
+    /**
+     * Start sending snapshots to a connection, beginning with a full one.
+     * @param connectionId the connection ID
+     */
+    public void subscribe(String connectionId) {
+        clients.putIfAbsent(connectionId, new ClientState(historySize));
+    }
+
+    /**
+     * Stop sending snapshots to a connection. Called automatically on disconnect.
+     * @param connectionId the connection ID
+     */
+    public void unsubscribe(String connectionId) {
+        clients.remove(connectionId);
+    }
+
+    /**
+     * Send the current state to every subscribed client.
+     * @return the sequence number of the snapshot
+     */
+    public synchronized int publish() {
+        sequence++;
+        if (sequence <= 0) {
+            // Zero means no baseline on the wire, clients restart with full snapshots
+            sequence = 1;
+            for (ClientState client : clients.values()) {
+                client.reset();
+            }
+        }
+        Snapshot snapshot = new Snapshot(sequence, new HashMap<>(entities));
+
+        Map<Integer, WireMessage> encoded = new HashMap<>();
+        try {
+            for (Map.Entry<String, ClientState> entry : clients.entrySet()) {
+                NetworkConnection connection = server.getConnection(entry.getKey());
+                if (connection == null || connection.getProtocolVersion() < Protocol.VERSION_2) {
+                    continue;
+                }
+
+                ClientState client = entry.getValue();
+                Snapshot baseline = client.baseline(snapshot.sequence);
+                int baselineSequence = baseline == null ? 0 : baseline.sequence;
+                WireMessage message = encoded.get(baselineSequence);
+                if (message == null) {
+                    message = encode(snapshot, baseline);
+                    encoded.put(baselineSequence, message);
+                }
+                client.record(snapshot);
+                server.send(entry.getKey(), message);
+            }
+        } finally {
+            for (WireMessage message : encoded.values()) {
+                message.release();
+            }
+        }
+        return snapshot.sequence;
+    }
+
+    /**
+     * Handle a client's acknowledgement.
+     * @param connectionId the connection ID
+     * @param acknowledged the snapshot sequence, or 0 if the client needs a full snapshot
+     */
+    void acknowledge(String connectionId, int acknowledged) {
+        ClientState client = clients.get(connectionId);
+        if (client != null) {
+            client.acknowledge(acknowledged);
+        }
+    }
+
+    /**
+     * Set how many sent snapshots are kept per client as possible baselines.
+     * Applies to clients subscribed afterwards. Clients whose acknowledgements lag further
+     * behind get full snapshots.
+     * @param historySize the number of snapshots
+     */
+    public void setHistorySize(int historySize) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("History size must be at least 1");
+        }
+        this.historySize = historySize;
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    public synchronized int getSequence() {
+        return sequence;
+    }
+
+    public synchronized int getEntityCount() {
+        return entities.size();
+    }
+
+    public int getSubscriberCount() {
+        return clients.size();
+    }
+
+    /**
+     * Get the number of full snapshots encoded, each possibly shared by several clients.
+     * @return the count
+     */
+    public long getFullSnapshots() {
+        return fullSnapshots.sum();
+    }
+
+    /**
+     * Get the number of delta snapshots encoded, each possibly shared by several clients.
+     * @return the count
+     */
+    public long getDeltaSnapshots() {
+        return deltaSnapshots.sum();
+    }
+
+    /**
+     * Get the total size of all encoded snapshots before compression.
+     * @return the byte count
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.sum();
+    }
+
+    /**
+     * Encode a snapshot against a baseline.
+     * Format: varint sequence | varint baseline (0 for full) | varint removedCount |
+     * removed IDs | varint entryCount | entries of ID, kind byte and either the full
+     * state as bytes or a {@link StateDelta} against the baseline state.
+     */
+    private WireMessage encode(Snapshot snapshot, Snapshot baseline) {
+        Map<String, byte[]> base = baseline == null ? Collections.emptyMap() : baseline.entities;
+        BinaryWriter out = new BinaryWriter();
+        out.writeVarInt(snapshot.sequence);
+        out.writeVarInt(baseline == null ? 0 : baseline.sequence);
+
+        int removed = 0;
+        for (String id : base.keySet()) {
+            if (!snapshot.entities.containsKey(id)) {
+                removed++;
+            }
+        }
+        out.writeVarInt(removed);
+        for (String id : base.keySet()) {
+            if (!snapshot.entities.containsKey(id)) {
+                out.writeString(id);
+            }
+        }
+
+        int changed = 0;
+        for (Map.Entry<String, byte[]> entry : snapshot.entities.entrySet()) {
+            if (base.get(entry.getKey()) != entry.getValue()) {
+                changed++;
+            }
+        }
+        out.writeVarInt(changed);
+        BinaryWriter delta = new BinaryWriter();
+        for (Map.Entry<String, byte[]> entry : snapshot.entities.entrySet()) {
+            byte[] previous = base.get(entry.getKey());
+            byte[] current = entry.getValue();
+            if (previous == current) {
+                continue;
+            }
+            out.writeString(entry.getKey());
+            if (previous != null) {
+                delta.reset();
+                StateDelta.encode(previous, current, delta);
+                if (delta.size() < current.length) {
+                    out.writeByte(DELTA);
+                    out.writeRaw(delta.toByteArray(), 0, delta.size());
+                    continue;
+                }
+            }
+            out.writeByte(FULL);
+            out.writeBytes(current);
+        }
+
+        if (baseline == null) {
+            fullSnapshots.increment();
+        } else {
+            deltaSnapshots.increment();
+        }
+        encodedBytes.add(out.size());
+        return new WireMessage(Protocol.STATE, out.toByteArray());
+    }
+
+    private static final class Snapshot {
+        final int sequence;
+        final Map<String, byte[]> entities;
+
+        Snapshot(int sequence, Map<String, byte[]> entities) {
+            this.sequence = sequence;
+            this.entities = entities;
+        }
+    }
+
+    /**
+     * Snapshots sent to one client, indexed by sequence modulo the ring size.
+     */
+    private static final class ClientState {
+        private final Snapshot[] history;
+        private int acknowledged;
+
+        ClientState(int historySize) {
+            this.history = new Snapshot[historySize];
+        }
+
+        synchronized void record(Snapshot snapshot) {
+            history[snapshot.sequence % history.length] = snapshot;
+        }
+
+        synchronized Snapshot baseline(int sequence) {
+            if (acknowledged == 0 || sequence - acknowledged >= history.length) {
+                return null;
+            }
+            Snapshot snapshot = history[acknowledged % history.length];
+            return snapshot != null && snapshot.sequence == acknowledged ? snapshot : null;
+        }
+
+        synchronized void acknowledge(int sequence) {
+            if (sequence == 0 || sequence > acknowledged) {
+                acknowledged = sequence;
+            }
+        }
+
+        synchronized void reset() {
+            acknowledged = 0;
+            Arrays.fill(history, null);
+        }
+    }
+}
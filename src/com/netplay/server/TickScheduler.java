@@ -0,0 +1,74 @@
+package com.netplay.server;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the server's fixed-rate ticks on a dedicated thread.
+ * Each tick runs {@link Server#onTick(long)} and then asks every worker loop to write
+ * what its connections queued since the last tick, so a tick's messages leave together
+ * in one write per connection.
+ */
+final class TickScheduler implements Runnable {
+    private final Server server;
+    private final EventLoop[] loops;
+    private final long periodNanos;
+    private final TickStats stats;
+    private volatile boolean running;
+    private Thread thread;
+    private long tick;
+
+    TickScheduler(Server server, EventLoop[] loops, int tickRate, TickStats stats) {
+        this.server = server;
+        this.loops = loops;
+        this.periodNanos = 1_000_000_000L / tickRate;
+        this.stats = stats;
+    }
+
+    void start() {
+        running = true;
+        thread = new Thread(this, "netplay-tick");
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        long due = System.nanoTime() + periodNanos;
+        while (running) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            long started = System.nanoTime();
+            tick++;
+            try {
+                server.onTick(tick);
+            } catch (Exception e) {
+                System.err.println("Error in tick " + tick + ": " + e.getMessage());
+            }
+            for (EventLoop loop : loops) {
+                loop.flushTick();
+            }
+            long finished = System.nanoTime();
+            stats.record(finished - started, started - due);
+
+            due += periodNanos;
+            long behind = finished - due;
+            if (behind > 0) {
+                // Overran into the next tick, which runs late. Whole periods missed are
+                // skipped instead of run back to back
+                long skipped = behind / periodNanos;
+                stats.recordOverrun(skipped);
+                due += skipped * periodNanos;
+            }
+        }
+    }
+}
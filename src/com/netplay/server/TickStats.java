@@ -0,0 +1,93 @@
+package com.netplay.server;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of the server's fixed-rate ticks, see {@link Server#setTickRate(int)}.
+ * Tick time covers {@link Server#onTick(long)} and handing the flush to every worker loop.
+ * A tick overruns when that work is still going when the next tick is due, which then
+ * starts late. Ticks missed entirely are skipped rather than run back to back.
+ * All times are in nanoseconds.
+ */
+public final class TickStats {
+    private final LongAdder ticks = new LongAdder();
+    private final LongAdder overruns = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder totalTickNanos = new LongAdder();
+    private final LongAccumulator maxTickNanos = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxLatenessNanos = new LongAccumulator(Math::max, 0);
+    private volatile long lastTickNanos;
+
+    TickStats() {
+    }
+
+    void record(long tickNanos, long latenessNanos) {
+        ticks.increment();
+        totalTickNanos.add(tickNanos);
+        maxTickNanos.accumulate(tickNanos);
+        maxLatenessNanos.accumulate(latenessNanos);
+        lastTickNanos = tickNanos;
+    }
+
+    void recordOverrun(long skippedTicks) {
+        overruns.increment();
+        skipped.add(skippedTicks);
+    }
+
+    public long getTickCount() {
+        return ticks.sum();
+    }
+
+    public long getOverrunCount() {
+        return overruns.sum();
+    }
+
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    public long getMaxTickNanos() {
+        return maxTickNanos.get();
+    }
+
+    public long getAverageTickNanos() {
+        long count = getTickCount();
+        return count == 0 ? 0 : totalTickNanos.sum() / count;
+    }
+
+    /**
+     * Get the longest delay between when a tick was due and when it started.
+     * @return the delay in nanoseconds
+     */
+    public long getMaxLatenessNanos() {
+        return maxLatenessNanos.get();
+    }
+
+    /**
+     * Clear all counters.
+     */
+    public void reset() {
+        ticks.reset();
+        overruns.reset();
+        skipped.reset();
+        totalTickNanos.reset();
+        maxTickNanos.reset();
+        maxLatenessNanos.reset();
+        lastTickNanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ticks=" + getTickCount()
+            + ", overruns=" + getOverrunCount()
+            + ", skipped=" + getSkippedCount()
+            + ", avgTick=" + getAverageTickNanos() / 1000 + "us"
+            + ", maxTick=" + getMaxTickNanos() / 1000 + "us"
+            + ", maxLate=" + getMaxLatenessNanos() / 1000 + "us";
+    }
+}
@@ -0,0 +1,77 @@
+package com.netplay.server;
+
+/**
+ * Token bucket for inbound rate limits.
+ * Tokens refill continuously at the rate up to the burst size. Consuming may overdraw the
+ * bucket, the debt is paid back from the refill before the bucket counts as available again,
+ * so a connection that overshoots in one read waits correspondingly longer.
+ * Synchronized, the connection's worker loop and the UDP loop both charge it.
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param ratePerSecond tokens added per second
+     * @param burst the most tokens the bucket holds, and the amount it starts with
+     * @param now the current {@link System#nanoTime()}
+     */
+    TokenBucket(long ratePerSecond, long burst, long now) {
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefillNanos = now;
+    }
+
+    /**
+     * Get the number of whole tokens available.
+     * @param now the current {@link System#nanoTime()}
+     * @return the token count, 0 while in debt
+     */
+    synchronized long available(long now) {
+        refill(now);
+        return tokens <= 0 ? 0 : (long) tokens;
+    }
+
+    /**
+     * Take tokens, going into debt if there are not enough.
+     * @param amount the number of tokens
+     * @param now the current {@link System#nanoTime()}
+     */
+    synchronized void consume(long amount, long now) {
+        refill(now);
+        tokens -= amount;
+    }
+
+    /**
+     * Check if the bucket is in debt.
+     * @param now the current {@link System#nanoTime()}
+     * @return true while more was consumed than the rate allows
+     */
+    synchronized boolean isOverdrawn(long now) {
+        refill(now);
+        return tokens < 0;
+    }
+
+    /**
+     * Get how long until a number of tokens is available.
+     * @param amount the number of tokens, 0 to wait for the debt to be paid back
+     * @param now the current {@link System#nanoTime()}
+     * @return the delay in nanoseconds, 0 if they are available now
+     */
+    synchronized long nanosUntilAvailable(long amount, long now) {
+        refill(now);
+        double missing = Math.min(amount, burst) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * tokensPerNano);
+            lastRefillNanos = now;
+        }
+    }
+}
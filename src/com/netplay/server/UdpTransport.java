@@ -0,0 +1,451 @@
+package com.netplay.server;
+
+import com.netplay.shared.DeliveryMode;
+import com.netplay.shared.FrameDecoder;
+import com.netplay.shared.Network;
+import com.netplay.shared.Protocol;
+import com.netplay.shared.SharedFrame;
+import com.netplay.shared.Transport;
+import com.netplay.shared.UdpSession;
+import com.netplay.shared.WireMessage;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * UDP transport running alongside the server's TCP connections.
+ *
+ * One datagram channel, bound to the server's port, is registered with the first worker
+ * loop's selector and every UDP session is handled on that loop. Received messages are
+ * handed to the loop each connection is pinned to, so they are dispatched on the same
+ * thread as its TCP messages. A session is offered to
+ * each version 2 client during its TCP handshake, and the client opens it by sending the
+ * session token from its own UDP socket, see {@link UdpSession}.
+ *
+ * Messages go over UDP in the requested {@link DeliveryMode}. Connections without an open
+ * session, and messages too large for one, fall back to the TCP stream, so this can be set
+ * as the {@link Network} transport without losing any client.
+ */
+public final class UdpTransport implements Transport {
+    private static final int MAX_DATAGRAMS_PER_READ = 256;
+
+    private final Server server;
+    private final int maxDatagramSize;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<Long, Peer> peersByToken = new ConcurrentHashMap<>();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private volatile DeliveryMode defaultMode = DeliveryMode.RELIABLE_ORDERED;
+
+    private DatagramChannel channel;
+    private EventLoop loop;
+    private int port;
+
+    // Owned by the loop thread
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(UdpSession.MAX_RECEIVE_SIZE);
+    private final List<Peer> acknowledging = new ArrayList<>();
+    private final Set<Peer> resending = new LinkedHashSet<>();
+    private long nextPoll = Long.MAX_VALUE;
+
+    UdpTransport(Server server, int maxDatagramSize) {
+        this.server = server;
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * Bind the channel and hand it to a worker loop.
+     */
+    void open(String host, int port, EventLoop loop) throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(new InetSocketAddress(host, port));
+        this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        this.loop = loop;
+        loop.attach(this, channel);
+    }
+
+    void close() {
+        if (loop == null) {
+            return;
+        }
+        loop.execute(() -> {
+            for (Peer peer : peers.values()) {
+                peer.session.close();
+            }
+            peers.clear();
+            peersByToken.clear();
+            resending.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing UDP channel: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Create a session for a connection, called during its handshake.
+     * @param connection the connection
+     * @return the {@link Protocol#UDP_SESSION} frame body to send the client
+     */
+    byte[] offer(NetworkConnection connection) {
+        long token;
+        do {
+            token = random.nextLong();
+        } while (peersByToken.containsKey(token));
+
+        Peer peer = new Peer(connection, new UdpSession(token, channel, Network.getBufferAllocator(), maxDatagramSize));
+        Peer previous = peers.put(connection.getId(), peer);
+        if (previous != null) {
+            discard(previous);
+        }
+        peersByToken.put(token, peer);
+
+        ByteBuffer body = ByteBuffer.allocate(Protocol.varIntSize(port) + Long.BYTES);
+        Protocol.writeVarInt(body, port);
+        body.putLong(token);
+        return body.array();
+    }
+
+    /**
+     * Drop a connection's session, called when it disconnects.
+     * @param connectionId the connection ID
+     */
+    void remove(String connectionId) {
+        Peer peer = peers.remove(connectionId);
+        if (peer != null) {
+            discard(peer);
+        }
+    }
+
+    private void discard(Peer peer) {
+        peersByToken.remove(peer.session.getToken(), peer);
+        loop.execute(() -> {
+            resending.remove(peer);
+            peer.session.close();
+        });
+    }
+
+    /**
+     * Check if a connection has an open UDP session.
+     * @param connectionId the connection ID
+     * @return true if datagram modes go over UDP for it
+     */
+    public boolean hasSession(String connectionId) {
+        Peer peer = peers.get(connectionId);
+        return peer != null && peer.session.isOpen();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Set the mode used by the plain {@link Transport} methods.
+     * @param defaultMode the delivery mode, {@link DeliveryMode#RELIABLE_ORDERED} by default
+     */
+    public void setDefaultMode(DeliveryMode defaultMode) {
+        this.defaultMode = defaultMode;
+    }
+
+    public DeliveryMode getDefaultMode() {
+        return defaultMode;
+    }
+
+    // Transport interface implementation
+
+    @Override
+    public void send(String connectionId, WireMessage message) {
+        send(connectionId, message, defaultMode);
+    }
+
+    @Override
+    public void send(String connectionId, WireMessage message, DeliveryMode mode) {
+        NetworkConnection connection = server.getConnection(connectionId);
+        if (connection == null || !mode.isDatagram() || !trySend(connection, message, mode)) {
+            server.send(connectionId, message);
+        }
+    }
+
+    @Override
+    public void broadcast(WireMessage message) {
+        broadcast(message, defaultMode);
+    }
+
+    @Override
+    public void broadcast(WireMessage message, DeliveryMode mode) {
+        fanOut(message, mode, null);
+    }
+
+    @Override
+    public void broadcastExcept(String[] excludeIds, WireMessage message) {
+        fanOut(message, defaultMode, Server.excluding(excludeIds));
+    }
+
+    @Override
+    public void broadcastToGroup(String groupId, WireMessage message) {
+        broadcastToGroup(groupId, message, defaultMode);
+    }
+
+    @Override
+    public void broadcastToGroup(String groupId, WireMessage message, DeliveryMode mode) {
+        Group group = server.getGroup(groupId);
+        if (!mode.isDatagram() || group == null) {
+            server.broadcastToGroup(groupId, message);
+            return;
+        }
+        NetworkConnection[] members = group.members();
+        group.recordBroadcast(members.length, message.getBodyLength());
+        sendEach(message, mode, members);
+    }
+
+    @Override
+    public void broadcastNear(double x, double y, double radius, WireMessage message) {
+        broadcastNear(x, y, radius, message, defaultMode);
+    }
+
+    @Override
+    public void broadcastNear(double x, double y, double radius, WireMessage message, DeliveryMode mode) {
+        if (!mode.isDatagram()) {
+            server.broadcastNear(x, y, radius, message);
+            return;
+        }
+        sendEach(message, mode, server.getAreaOfInterest().near(x, y, radius));
+    }
+
+    @Override
+    public void disconnect(String connectionId) {
+        server.disconnect(connectionId);
+    }
+
+    @Override
+    public boolean isConnected(String connectionId) {
+        return server.isConnected(connectionId);
+    }
+
+    private void sendEach(WireMessage message, DeliveryMode mode, NetworkConnection[] recipients) {
+        for (NetworkConnection connection : recipients) {
+            if (connection.isConnected() && !trySend(connection, message, mode)) {
+                server.send(connection.getId(), message);
+            }
+        }
+    }
+
+    private void fanOut(WireMessage message, DeliveryMode mode, Predicate<String> excluded) {
+        if (!mode.isDatagram()) {
+            if (excluded == null) {
+                server.broadcast(message);
+            } else {
+                server.fanOut(message, excluded);
+            }
+            return;
+        }
+        for (NetworkConnection connection : server.getConnections()) {
+            if (excluded != null && excluded.test(connection.getId())) {
+                continue;
+            }
+            if (!trySend(connection, message, mode)) {
+                server.send(connection.getId(), message);
+            }
+        }
+    }
+
+    /**
+     * Queue a message on a connection's UDP session.
+     * @return false if the connection has no open session or the message is too large for one
+     */
+    private boolean trySend(NetworkConnection connection, WireMessage message, DeliveryMode mode) {
+        Peer peer = peers.get(connection.getId());
+        if (peer == null || !peer.session.isOpen() || connection.getProtocolVersion() < Protocol.VERSION_2) {
+            return false;
+        }
+        SharedFrame frame = connection.frameFor(message);
+        if (!peer.session.fits(frame.length())) {
+            return false;
+        }
+
+        frame.retain();
+        if (loop.inEventLoop()) {
+            send(peer, frame, mode);
+        } else {
+            loop.executeWrite(() -> send(peer, frame, mode));
+        }
+        return true;
+    }
+
+    private void send(Peer peer, SharedFrame frame, DeliveryMode mode) {
+        try {
+            peer.session.send(frame.view(), mode, System.currentTimeMillis());
+            if (peer.session.hasUnacknowledged() && resending.add(peer)) {
+                nextPoll = 0;
+            }
+        } catch (IOException e) {
+            System.err.println("UDP send to " + peer.connection.getId() + " failed: " + e.getMessage());
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Read the datagrams waiting on the channel. Called on the loop thread.
+     */
+    void read() {
+        long now = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < MAX_DATAGRAMS_PER_READ; i++) {
+                receiveBuffer.clear();
+                SocketAddress source = channel.receive(receiveBuffer);
+                if (source == null) {
+                    break;
+                }
+                receiveBuffer.flip();
+                handleDatagram(source, receiveBuffer, now);
+            }
+        } catch (IOException e) {
+            System.err.println("UDP receive error: " + e.getMessage());
+        }
+
+        for (Peer peer : acknowledging) {
+            peer.acknowledging = false;
+            try {
+                peer.session.flushAcks();
+            } catch (IOException e) {
+                System.err.println("UDP send to " + peer.connection.getId() + " failed: " + e.getMessage());
+            }
+        }
+        acknowledging.clear();
+    }
+
+    private void handleDatagram(SocketAddress source, ByteBuffer datagram, long now) {
+        if (datagram.remaining() < UdpSession.HEADER_LENGTH) {
+            return;
+        }
+        Peer peer = peersByToken.get(datagram.getLong());
+        if (peer == null) {
+            // Unknown or expired token
+            return;
+        }
+        int kind = datagram.get();
+        UdpSession session = peer.session;
+        if (!source.equals(session.getRemoteAddress())) {
+            // The client's first datagram, or its address changed, e.g. a NAT rebinding
+            session.setRemoteAddress(source);
+        }
+
+        try {
+            if (kind == UdpSession.HELLO) {
+                session.sendControl(UdpSession.HELLO_ACK);
+                return;
+            }
+            if (kind == UdpSession.DATA && !admit(peer, datagram.remaining())) {
+                return;
+            }
+            session.receive(kind, datagram, now, peer.listener);
+        } catch (ProtocolException e) {
+            System.err.println("Invalid datagram from " + peer.connection.getId() + ": " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("UDP send to " + peer.connection.getId() + " failed: " + e.getMessage());
+        }
+        if (session.hasPendingAcks() && !peer.acknowledging) {
+            peer.acknowledging = true;
+            acknowledging.add(peer);
+        }
+    }
+
+    /**
+     * Charge a data datagram to its sender's inbound rate limit before the session sees it.
+     * Rejected datagrams are not acknowledged, so reliable ones are resent and delivered
+     * once the limit allows, while unreliable ones are lost.
+     * @return true to pass the datagram to the session
+     */
+    private boolean admit(Peer peer, int bytes) {
+        NetworkConnection connection = peer.connection;
+        if (connection.tryAdmitDatagram(bytes, System.nanoTime())) {
+            return true;
+        }
+        if (server.getRateLimitAction() == RateLimitAction.DISCONNECT) {
+            server.disconnectUser(connection, DisconnectReason.RATE_LIMITED);
+        } else {
+            server.getStats().recordThrottled();
+        }
+        return false;
+    }
+
+    /**
+     * Resend overdue reliable datagrams. Called on the loop thread before each select.
+     * @return the select timeout until the next resend is due, 0 if none is
+     */
+    long poll() {
+        if (resending.isEmpty()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextPoll) {
+            return nextPoll - now;
+        }
+
+        nextPoll = Long.MAX_VALUE;
+        List<Peer> failed = null;
+        for (Iterator<Peer> iterator = resending.iterator(); iterator.hasNext(); ) {
+            Peer peer = iterator.next();
+            long next;
+            try {
+                next = peer.session.poll(now);
+            } catch (IOException e) {
+                System.err.println("UDP send to " + peer.connection.getId() + " failed: " + e.getMessage());
+                next = now + 1;
+            }
+            if (!peer.session.isOpen()) {
+                iterator.remove();
+                if (failed == null) {
+                    failed = new ArrayList<>();
+                }
+                failed.add(peer);
+            } else if (!peer.session.hasUnacknowledged()) {
+                iterator.remove();
+            } else {
+                nextPoll = Math.min(nextPoll, next);
+            }
+        }
+        if (failed != null) {
+            for (Peer peer : failed) {
+                System.err.println("UDP session timed out, using TCP only: " + peer.connection.getId());
+                remove(peer.connection.getId());
+            }
+        }
+        return resending.isEmpty() ? 0 : Math.max(1, nextPoll - now);
+    }
+
+    /**
+     * A connection and its UDP session.
+     */
+    private static final class Peer {
+        final NetworkConnection connection;
+        final UdpSession session;
+        final FrameDecoder.Listener listener;
+        boolean acknowledging;
+
+        Peer(NetworkConnection connection, UdpSession session) {
+            this.connection = connection;
+            this.session = session;
+            this.listener = (typeId, className, flags, body) -> {
+                if (typeId == Protocol.TYPE_NAMED && Protocol.isControl(className)) {
+                    // Control frames only travel over the stream
+                    return;
+                }
+                connection.dispatchDatagram(typeId, className, flags, body);
+            };
+        }
+    }
+}
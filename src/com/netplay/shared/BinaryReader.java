@@ -0,0 +1,168 @@
+package com.netplay.shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary input used by {@link MessageCodec}s, the counterpart of {@link BinaryWriter}.
+ * Reads from a buffer between its position and limit. Truncated or malformed input
+ * throws an unchecked exception.
+ */
+public final class BinaryReader {
+    private final ByteBuffer buffer;
+
+    /**
+     * Create a reader over a buffer, reading advances the buffer position.
+     * @param buffer the source
+     */
+    public BinaryReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public boolean readBoolean() {
+        return buffer.get() != 0;
+    }
+
+    public byte readByte() {
+        return buffer.get();
+    }
+
+    public short readShort() {
+        return (short) readInt();
+    }
+
+    public char readChar() {
+        return (char) readVarInt();
+    }
+
+    /**
+     * Read a signed int written as a zigzag varint.
+     * @return the value
+     */
+    public int readInt() {
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read a signed long written as a zigzag varint.
+     * @return the value
+     */
+    public long readLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readFixedInt());
+    }
+
+    public double readDouble() {
+        long low = readFixedInt() & 0xFFFFFFFFL;
+        long high = readFixedInt();
+        return Double.longBitsToDouble((high << 32) | low);
+    }
+
+    /**
+     * Read an unsigned varint.
+     * @return the value
+     */
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Read an unsigned varint.
+     * @return the value
+     */
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift <= 63; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Read a nullable string.
+     * @return the string, or null
+     */
+    public String readString() {
+        int length = readLength();
+        if (length < 0) {
+            return null;
+        }
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a nullable byte array.
+     * @return the bytes, or null
+     */
+    public byte[] readBytes() {
+        int length = readLength();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read bytes written without a length prefix.
+     * @param target the destination
+     * @param offset the first index to fill
+     * @param length the number of bytes
+     */
+    public void readRaw(byte[] target, int offset, int length) {
+        buffer.get(target, offset, length);
+    }
+
+    /**
+     * Get the number of unread bytes.
+     * @return the remaining byte count
+     */
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    private int readFixedInt() {
+        return (buffer.get() & 0xFF)
+            | (buffer.get() & 0xFF) << 8
+            | (buffer.get() & 0xFF) << 16
+            | (buffer.get() & 0xFF) << 24;
+    }
+
+    /**
+     * Read a length written as varint (length + 1).
+     * @return the length, or -1 for null
+     */
+    private int readLength() {
+        int length = readVarInt() - 1;
+        if (length < -1 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Length " + length + " exceeds the remaining " + buffer.remaining() + " bytes");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,106 @@
+package com.netplay.shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializer that encodes messages with registered {@link MessageCodec}s.
+ * Codecs are usually generated at build time from {@link NetMessage} classes, so encoding
+ * uses no reflection and produces compact binary instead of JSON text. Both ends of a
+ * connection must use the same codecs.
+ *
+ * Message classes without a codec go to the fallback serializer if one is set.
+ */
+public class BinarySerializer implements Serializer {
+    private static final int MAX_CACHED_WRITER_SIZE = 64 * 1024;
+
+    private final Map<Class<?>, MessageCodec<?>> codecs = new ConcurrentHashMap<>();
+    private final Serializer fallback;
+    private final ThreadLocal<BinaryWriter> writers = ThreadLocal.withInitial(BinaryWriter::new);
+
+    public BinarySerializer() {
+        this(null);
+    }
+
+    /**
+     * Create a binary serializer.
+     * @param fallback the serializer for classes without a codec, or null to reject them
+     */
+    public BinarySerializer(Serializer fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Register a codec for its message class.
+     * @param codec the codec
+     * @return this serializer
+     */
+    public BinarySerializer register(MessageCodec<?> codec) {
+        codecs.put(codec.type(), codec);
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] serialize(Object obj) {
+        MessageCodec<Object> codec = (MessageCodec<Object>) codecs.get(obj.getClass());
+        if (codec == null) {
+            return fallback(obj.getClass()).serialize(obj);
+        }
+
+        BinaryWriter writer = writers.get();
+        writer.reset();
+        codec.encode(obj, writer);
+        byte[] data = writer.toByteArray();
+        recycle(writer);
+        return data;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void serialize(Object obj, OutputStream out) throws IOException {
+        MessageCodec<Object> codec = (MessageCodec<Object>) codecs.get(obj.getClass());
+        if (codec == null) {
+            fallback(obj.getClass()).serialize(obj, out);
+            return;
+        }
+
+        BinaryWriter writer = writers.get();
+        writer.reset();
+        codec.encode(obj, writer);
+        writer.writeTo(out);
+        recycle(writer);
+    }
+
+    @Override
+    public <T> T deserialize(byte[] data, Class<T> clazz) {
+        return deserialize(ByteBuffer.wrap(data), clazz);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T deserialize(ByteBuffer data, Class<T> clazz) {
+        MessageCodec<T> codec = (MessageCodec<T>) codecs.get(clazz);
+        if (codec == null) {
+            return fallback(clazz).deserialize(data, clazz);
+        }
+        return codec.decode(new BinaryReader(data));
+    }
+
+    private void recycle(BinaryWriter writer) {
+        if (writer.size() > MAX_CACHED_WRITER_SIZE) {
+            // Don't keep one oversized message's buffer alive on this thread
+            writers.remove();
+        }
+    }
+
+    private Serializer fallback(Class<?> clazz) {
+        if (fallback == null) {
+            throw new IllegalArgumentException("No codec registered for " + clazz.getName());
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,23 @@
+package com.netplay.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface for allocating connection read and write buffers.
+ * Every buffer obtained from {@link #allocate(int)} must be handed back exactly once
+ * through {@link #release(ByteBuffer)} and must not be used afterwards.
+ */
+public interface BufferAllocator {
+    /**
+     * Allocate a buffer.
+     * @param capacity the minimum capacity needed
+     * @return a cleared buffer with at least the requested capacity
+     */
+    ByteBuffer allocate(int capacity);
+
+    /**
+     * Release a buffer obtained from this allocator.
+     * @param buffer the buffer to release
+     */
+    void release(ByteBuffer buffer);
+}
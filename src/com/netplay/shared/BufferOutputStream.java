@@ -0,0 +1,72 @@
+package com.netplay.shared;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream that writes into a growable allocator buffer.
+ * Serializers stream messages through it straight into the buffer that later becomes
+ * the outbound frame. Bytes before the start offset are left free for the frame header.
+ * Not thread-safe.
+ */
+final class BufferOutputStream extends OutputStream {
+    private final BufferAllocator allocator;
+    private final int start;
+    private ByteBuffer buffer;
+
+    BufferOutputStream(BufferAllocator allocator, int start, int initialCapacity) {
+        this.allocator = allocator;
+        this.start = start;
+        this.buffer = allocator.allocate(start + initialCapacity);
+        this.buffer.position(start);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureWritable(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureWritable(len);
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Hand over the buffer, positioned at the start offset and limited to the written bytes.
+     * The caller owns the buffer and the stream must not be used afterwards.
+     * @return the buffer
+     */
+    ByteBuffer finish() {
+        ByteBuffer result = buffer;
+        buffer = null;
+        result.flip().position(start);
+        return result;
+    }
+
+    /**
+     * Release the buffer after a failed write.
+     */
+    void discard() {
+        if (buffer != null) {
+            allocator.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void ensureWritable(int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < length) {
+            capacity <<= 1;
+        }
+        ByteBuffer target = allocator.allocate(capacity);
+        buffer.flip();
+        target.put(buffer);
+        allocator.release(buffer);
+        buffer = target;
+    }
+}
@@ -0,0 +1,336 @@
+package com.netplay.shared;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame deflate compression for version 2 frames.
+ * Bodies at or above the threshold are compressed when that makes them smaller, and the
+ * frame is marked with {@link Protocol#FLAG_COMPRESSED}. The compressed payload is
+ * varint uncompressedLength | zlib stream. Messages are compressed once, when first
+ * framed, so a broadcast costs one compression however many recipients it has.
+ *
+ * An optional preset dictionary, for example one built with {@link #trainDictionary},
+ * helps small repetitive messages. The peer must be configured with the same dictionary
+ * to read them, the zlib header carries its checksum so a mismatch is detected.
+ *
+ * Decompressed bodies are limited to {@link #getMaxDecompressedLength()}, and the output
+ * grows as it inflates rather than trusting the announced length, so a small frame cannot
+ * make the receiver allocate a large buffer.
+ *
+ * Deflaters and inflaters are kept per thread, so each event loop reuses its own.
+ */
+public final class Compression {
+    public static final int DEFAULT_THRESHOLD = 512;
+    public static final int DEFAULT_MAX_DECOMPRESSED_LENGTH = 1024 * 1024;
+
+    // Initial output for a payload, grown as needed up to the announced length
+    private static final int MIN_INFLATE_CAPACITY = 1024;
+    private static final int INFLATE_RATIO = 4;
+
+    // Byte sequences shorter than this are not worth a dictionary entry
+    private static final int GRAM_LENGTH = 8;
+
+    private final int threshold;
+    private final int level;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+    private final int maxDecompressedLength;
+    private final CompressionStats stats = new CompressionStats();
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    public Compression() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public Compression(int threshold) {
+        this(threshold, null);
+    }
+
+    public Compression(int threshold, byte[] dictionary) {
+        this(threshold, Deflater.DEFAULT_COMPRESSION, dictionary);
+    }
+
+    public Compression(int threshold, int level, byte[] dictionary) {
+        this(threshold, level, dictionary, DEFAULT_MAX_DECOMPRESSED_LENGTH);
+    }
+
+    /**
+     * Create a compression setting.
+     * @param threshold the smallest body size in bytes to compress
+     * @param level the deflate level, 0-9 or -1 for the default
+     * @param dictionary the preset dictionary, or null for none
+     * @param maxDecompressedLength the largest body in bytes a received frame may decompress to
+     */
+    public Compression(int threshold, int level, byte[] dictionary, int maxDecompressedLength) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+        if (maxDecompressedLength <= 0 || maxDecompressedLength > Protocol.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Max decompressed length must be between 1 and "
+                + Protocol.MAX_FRAME_LENGTH);
+        }
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.threshold = threshold;
+        this.level = level;
+        this.maxDecompressedLength = maxDecompressedLength;
+        this.dictionary = dictionary == null ? null : dictionary.clone();
+        if (dictionary != null) {
+            Adler32 checksum = new Adler32();
+            checksum.update(dictionary);
+            this.dictionaryId = (int) checksum.getValue();
+        } else {
+            this.dictionaryId = 0;
+        }
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getMaxDecompressedLength() {
+        return maxDecompressedLength;
+    }
+
+    public boolean hasDictionary() {
+        return dictionary != null;
+    }
+
+    public CompressionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Compress a body if it is over the threshold and compressing makes it smaller.
+     * @param body the body, from position to limit. Not modified
+     * @param allocator the allocator for the result
+     * @param headroom bytes to leave free before the payload
+     * @return an allocator buffer holding the compressed payload from position to limit,
+     *         or null to send the body as it is
+     */
+    ByteBuffer compress(ByteBuffer body, BufferAllocator allocator, int headroom) {
+        int length = body.remaining();
+        if (length < threshold || length == 0) {
+            return null;
+        }
+
+        long started = System.nanoTime();
+        ByteBuffer out = allocator.allocate(headroom + length);
+        out.position(headroom);
+        Protocol.writeVarInt(out, length);
+        // Only worth it if smaller than the body, so give up once that size is reached
+        out.limit(headroom + length);
+
+        Deflater deflater = deflaters.get();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(body.duplicate());
+            deflater.finish();
+            while (!deflater.finished() && out.hasRemaining()) {
+                deflater.deflate(out);
+            }
+            if (!deflater.finished() || !out.hasRemaining()) {
+                allocator.release(out);
+                stats.recordSkipped(System.nanoTime() - started);
+                return null;
+            }
+        } finally {
+            deflater.reset();
+        }
+
+        out.flip().position(headroom);
+        stats.recordCompressed(length, out.remaining(), System.nanoTime() - started);
+        return out;
+    }
+
+    /**
+     * Decompress the payload of a frame marked {@link Protocol#FLAG_COMPRESSED}.
+     * @param payload the compressed payload, from position to limit
+     * @param allocator the allocator for the result
+     * @return an allocator buffer holding the body, the caller must release it
+     * @throws ProtocolException if the payload is malformed, too large once decompressed
+     *         or needs an unknown dictionary
+     */
+    ByteBuffer decompress(ByteBuffer payload, BufferAllocator allocator) throws ProtocolException {
+        long started = System.nanoTime();
+        int length = Protocol.readVarInt(payload);
+        if (length < 0 || length > maxDecompressedLength) {
+            throw new ProtocolException("Invalid decompressed length: " + length);
+        }
+
+        // One spare byte so output beyond the announced length is caught
+        int capacity = (int) Math.min(length, Math.max((long) payload.remaining() * INFLATE_RATIO,
+            MIN_INFLATE_CAPACITY)) + 1;
+        ByteBuffer out = allocator.allocate(capacity);
+        out.limit(capacity);
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(payload);
+            while (!inflater.finished()) {
+                if (inflater.inflate(out) > 0) {
+                    continue;
+                }
+                if (!out.hasRemaining() && out.limit() <= length) {
+                    out = grow(out, length + 1, allocator);
+                } else if (inflater.needsDictionary()) {
+                    if (dictionary == null || inflater.getAdler() != dictionaryId) {
+                        throw new ProtocolException("Compressed frame needs an unknown dictionary");
+                    }
+                    inflater.setDictionary(dictionary);
+                } else {
+                    // Out of input, or of room for output beyond the announced length
+                    throw new ProtocolException("Truncated compressed frame");
+                }
+            }
+            if (out.position() != length) {
+                throw new ProtocolException("Compressed frame does not match its length: " + length);
+            }
+        } catch (DataFormatException e) {
+            allocator.release(out);
+            throw new ProtocolException("Malformed compressed frame: " + e.getMessage());
+        } catch (ProtocolException e) {
+            allocator.release(out);
+            throw e;
+        } finally {
+            inflater.reset();
+        }
+
+        out.flip();
+        stats.recordDecompressed(length, System.nanoTime() - started);
+        return out;
+    }
+
+    /**
+     * Move inflated output into a buffer twice the size, at most the limit.
+     */
+    private static ByteBuffer grow(ByteBuffer out, int limit, BufferAllocator allocator) {
+        int capacity = (int) Math.min((long) out.limit() * 2, limit);
+        ByteBuffer grown = allocator.allocate(capacity);
+        grown.limit(capacity);
+        out.flip();
+        grown.put(out);
+        allocator.release(out);
+        return grown;
+    }
+
+    /**
+     * Build a preset dictionary from sample message bodies, for example
+     * {@link WireMessage#getBody()} of recorded traffic.
+     * Byte runs that recur across many samples are collected, the most common placed last
+     * where deflate reaches them with the shortest distances.
+     * @param samples the sample bodies
+     * @param maxSize the dictionary size limit, deflate uses at most 32KB
+     * @return the dictionary, empty if the samples share nothing
+     */
+    public static byte[] trainDictionary(Collection<byte[]> samples, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Dictionary size must be positive");
+        }
+
+        // Count how many samples contain each 8 byte sequence: {count, last sample number}
+        Map<Long, int[]> gramCounts = new HashMap<>();
+        int sampleNumber = 0;
+        for (byte[] sample : samples) {
+            sampleNumber++;
+            for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+                int[] entry = gramCounts.computeIfAbsent(gram(sample, i), key -> new int[2]);
+                if (entry[1] != sampleNumber) {
+                    entry[0]++;
+                    entry[1] = sampleNumber;
+                }
+            }
+        }
+        int minCount = Math.max(2, samples.size() / 20);
+
+        // Candidates are maximal runs made of common sequences, scored by how common they are
+        Map<String, long[]> candidates = new HashMap<>();
+        for (byte[] sample : samples) {
+            int i = 0;
+            while (i + GRAM_LENGTH <= sample.length) {
+                int count = gramCounts.get(gram(sample, i))[0];
+                if (count < minCount) {
+                    i++;
+                    continue;
+                }
+                int runStart = i;
+                long score = 0;
+                while (i + GRAM_LENGTH <= sample.length
+                        && (count = gramCounts.get(gram(sample, i))[0]) >= minCount) {
+                    score += count;
+                    i++;
+                }
+                int runEnd = Math.min(i - 1 + GRAM_LENGTH, runStart + maxSize);
+                String run = new String(sample, runStart, runEnd - runStart, StandardCharsets.ISO_8859_1);
+                candidates.merge(run, new long[]{score}, (a, b) -> a[0] >= b[0] ? a : b);
+            }
+        }
+
+        List<Map.Entry<String, long[]>> ranked = new ArrayList<>(candidates.entrySet());
+        ranked.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        // Skip runs that mostly repeat sequences already in the dictionary
+        List<byte[]> chosen = new ArrayList<>();
+        Set<Long> covered = new HashSet<>();
+        int size = 0;
+        for (Map.Entry<String, long[]> entry : ranked) {
+            byte[] run = entry.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            if (size + run.length > maxSize) {
+                continue;
+            }
+            int grams = run.length - GRAM_LENGTH + 1;
+            int fresh = 0;
+            for (int i = 0; i < grams; i++) {
+                if (!covered.contains(gram(run, i))) {
+                    fresh++;
+                }
+            }
+            if (fresh * 4 < grams) {
+                continue;
+            }
+            for (int i = 0; i < grams; i++) {
+                covered.add(gram(run, i));
+            }
+            chosen.add(run);
+            size += run.length;
+        }
+
+        byte[] result = new byte[size];
+        int position = 0;
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            byte[] run = chosen.get(i);
+            System.arraycopy(run, 0, result, position, run.length);
+            position += run.length;
+        }
+        return result;
+    }
+
+    private static Long gram(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < GRAM_LENGTH; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
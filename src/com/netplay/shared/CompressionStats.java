@@ -0,0 +1,122 @@
+package com.netplay.shared;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one {@link Compression} setting.
+ * A message is counted once however many recipients its compressed frame goes to.
+ * Times are in nanoseconds. Updated concurrently by every thread that frames or
+ * receives messages.
+ */
+public final class CompressionStats {
+    private final LongAdder compressedMessages = new LongAdder();
+    private final LongAdder skippedMessages = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressedMessages = new LongAdder();
+    private final LongAdder decompressedBytes = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    CompressionStats() {
+    }
+
+    void recordCompressed(int inputBytes, int outputBytes, long nanos) {
+        compressedMessages.increment();
+        uncompressedBytes.add(inputBytes);
+        compressedBytes.add(outputBytes);
+        compressNanos.add(nanos);
+    }
+
+    void recordSkipped(long nanos) {
+        skippedMessages.increment();
+        compressNanos.add(nanos);
+    }
+
+    void recordDecompressed(int outputBytes, long nanos) {
+        decompressedMessages.increment();
+        decompressedBytes.add(outputBytes);
+        decompressNanos.add(nanos);
+    }
+
+    /**
+     * Get the number of messages sent compressed.
+     * @return the count
+     */
+    public long getCompressedMessages() {
+        return compressedMessages.sum();
+    }
+
+    /**
+     * Get the number of messages over the threshold that were sent uncompressed because
+     * compressing did not make them smaller.
+     * @return the count
+     */
+    public long getSkippedMessages() {
+        return skippedMessages.sum();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * Get the time spent compressing, including attempts that were skipped.
+     * @return the total nanoseconds
+     */
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+
+    public long getDecompressedMessages() {
+        return decompressedMessages.sum();
+    }
+
+    public long getDecompressedBytes() {
+        return decompressedBytes.sum();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.sum();
+    }
+
+    /**
+     * Get the compressed size as a fraction of the original size, over all compressed messages.
+     * @return the ratio, 1.0 before anything was compressed
+     */
+    public double getRatio() {
+        long original = getUncompressedBytes();
+        return original == 0 ? 1.0 : (double) getCompressedBytes() / original;
+    }
+
+    /**
+     * Clear all counters.
+     */
+    public void reset() {
+        compressedMessages.reset();
+        skippedMessages.reset();
+        uncompressedBytes.reset();
+        compressedBytes.reset();
+        compressNanos.reset();
+        decompressedMessages.reset();
+        decompressedBytes.reset();
+        decompressNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        long compressed = getCompressedMessages();
+        long decompressed = getDecompressedMessages();
+        return "compressed=" + compressed
+            + ", skipped=" + getSkippedMessages()
+            + ", ratio=" + String.format("%.3f", getRatio())
+            + ", avgCompress=" + (compressed + getSkippedMessages() == 0 ? 0
+                : getCompressNanos() / (compressed + getSkippedMessages()) / 1000) + "us"
+            + ", decompressed=" + decompressed
+            + ", avgDecompress=" + (decompressed == 0 ? 0 : getDecompressNanos() / decompressed / 1000) + "us";
+    }
+}
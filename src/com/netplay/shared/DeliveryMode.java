@@ -0,0 +1,26 @@
+package com.netplay.shared;
+
+/**
+ * How a message is delivered.
+ * Every mode but {@link #STREAM} travels over the UDP channel set up during the TCP
+ * handshake, see {@link UdpSession}. When the peer has no UDP channel, or a message is
+ * too large for one, it falls back to the TCP stream, which is reliable and ordered.
+ */
+public enum DeliveryMode {
+    /** The TCP connection, reliable and ordered with every other stream message. The default. */
+    STREAM,
+    /** UDP, resent until acknowledged and delivered in order, independently of the stream. */
+    RELIABLE_ORDERED,
+    /** UDP, may be lost, and messages older than the newest one delivered are dropped. */
+    UNRELIABLE_SEQUENCED,
+    /** UDP, may be lost or arrive out of order. */
+    UNRELIABLE;
+
+    /**
+     * Check if this mode travels over UDP when a channel is available.
+     * @return true for every mode but {@link #STREAM}
+     */
+    public boolean isDatagram() {
+        return this != STREAM;
+    }
+}
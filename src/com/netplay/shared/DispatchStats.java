@@ -0,0 +1,109 @@
+package com.netplay.shared;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handler timings for one message type.
+ * Messages are deserialized on the I/O thread before being queued, so queue time runs
+ * from the decoded message to the start of the handler and execution time covers only
+ * the handler itself. All times are in
+ * nanoseconds. Updated concurrently by every thread that runs handlers.
+ */
+public final class DispatchStats {
+    private final String typeName;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalQueueNanos = new LongAdder();
+    private final LongAdder totalExecutionNanos = new LongAdder();
+    private final LongAccumulator maxQueueNanos = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxExecutionNanos = new LongAccumulator(Math::max, 0);
+    private final LatencyHistogram queueHistogram = new LatencyHistogram();
+    private final LatencyHistogram executionHistogram = new LatencyHistogram();
+
+    DispatchStats(String typeName) {
+        this.typeName = typeName;
+    }
+
+    void record(long queueNanos, long executionNanos) {
+        count.increment();
+        totalQueueNanos.add(queueNanos);
+        totalExecutionNanos.add(executionNanos);
+        maxQueueNanos.accumulate(queueNanos);
+        maxExecutionNanos.accumulate(executionNanos);
+        queueHistogram.record(queueNanos);
+        executionHistogram.record(executionNanos);
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalQueueNanos() {
+        return totalQueueNanos.sum();
+    }
+
+    public long getTotalExecutionNanos() {
+        return totalExecutionNanos.sum();
+    }
+
+    public long getMaxQueueNanos() {
+        return maxQueueNanos.get();
+    }
+
+    public long getMaxExecutionNanos() {
+        return maxExecutionNanos.get();
+    }
+
+    public long getAverageQueueNanos() {
+        long messages = getCount();
+        return messages == 0 ? 0 : getTotalQueueNanos() / messages;
+    }
+
+    public long getAverageExecutionNanos() {
+        long messages = getCount();
+        return messages == 0 ? 0 : getTotalExecutionNanos() / messages;
+    }
+
+    /**
+     * Get the distribution of queue times, for percentiles.
+     * @return the live histogram
+     */
+    public LatencyHistogram getQueueHistogram() {
+        return queueHistogram;
+    }
+
+    /**
+     * Get the distribution of handler execution times, for percentiles.
+     * @return the live histogram
+     */
+    public LatencyHistogram getExecutionHistogram() {
+        return executionHistogram;
+    }
+
+    /**
+     * Clear all counters.
+     */
+    public void reset() {
+        count.reset();
+        totalQueueNanos.reset();
+        totalExecutionNanos.reset();
+        maxQueueNanos.reset();
+        maxExecutionNanos.reset();
+        queueHistogram.reset();
+        executionHistogram.reset();
+    }
+
+    @Override
+    public String toString() {
+        return typeName + ": count=" + getCount()
+            + ", avgQueue=" + getAverageQueueNanos() / 1000 + "us"
+            + ", maxQueue=" + getMaxQueueNanos() / 1000 + "us"
+            + ", avgExec=" + getAverageExecutionNanos() / 1000 + "us"
+            + ", p99Exec=" + executionHistogram.getPercentileNanos(99) / 1000 + "us"
+            + ", maxExec=" + getMaxExecutionNanos() / 1000 + "us";
+    }
+}
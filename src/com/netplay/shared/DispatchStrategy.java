@@ -0,0 +1,100 @@
+package com.netplay.shared;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which thread runs message handlers.
+ * Implementations must run the tasks of one sender one at a time and in submission
+ * order, since handlers rely on messages from a connection arriving in order.
+ */
+public interface DispatchStrategy {
+    /**
+     * Run a handler task for a sender.
+     * Called on the I/O thread that received the message.
+     * @param senderId the connection ID of the sender
+     * @param task the task to run
+     */
+    void execute(String senderId, Runnable task);
+
+    /**
+     * Check if a sender has so many tasks waiting that the I/O thread should stop reading
+     * from it. Called on the I/O thread after dispatching what one read delivered.
+     * @param senderId the connection ID of the sender
+     * @return true to pause reading until {@link #onDrained(String, Runnable)} fires
+     */
+    default boolean isSaturated(String senderId) {
+        return false;
+    }
+
+    /**
+     * Run a callback once a saturated sender's waiting tasks have drained far enough to
+     * read from it again, or straight away if they already have. The callback runs once,
+     * on whichever thread notices, and must only hand work to the I/O thread.
+     * @param senderId the connection ID of the sender
+     * @param callback the callback
+     */
+    default void onDrained(String senderId, Runnable callback) {
+        callback.run();
+    }
+
+    /**
+     * Stop accepting tasks and release any threads.
+     * Tasks already queued are still run.
+     */
+    default void shutdown() {
+    }
+
+    /**
+     * Run handlers directly on the I/O thread. This is the default.
+     * A slow handler delays reads and writes for every connection on that thread.
+     * @return the inline strategy
+     */
+    static DispatchStrategy inline() {
+        return (senderId, task) -> task.run();
+    }
+
+    /**
+     * Run handlers on a fixed pool of daemon threads.
+     * Messages from one sender are handled serially in arrival order, while different
+     * senders are handled in parallel. Once a sender has maxPendingPerSender messages
+     * waiting the I/O thread stops reading from that sender until half of them are
+     * handled, which pushes back on it through TCP flow control. The I/O thread never
+     * blocks and other senders are not affected.
+     * @param threads the number of worker threads
+     * @param maxPendingPerSender the most messages queued for one sender before reads pause
+     * @return the worker pool strategy
+     */
+    static DispatchStrategy workerPool(int threads, int maxPendingPerSender) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "netplay-handler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new OrderedDispatcher(Executors.newFixedThreadPool(threads, factory), maxPendingPerSender);
+    }
+
+    /**
+     * Run handlers on virtual threads, one per sender with pending messages.
+     * Requires Java 21 or newer. Ordering and backpressure match {@link #workerPool(int, int)}.
+     * @param maxPendingPerSender the most messages queued for one sender before reads pause
+     * @return the virtual thread strategy
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    static DispatchStrategy virtualThreads(int maxPendingPerSender) {
+        ExecutorService executor;
+        try {
+            // Looked up reflectively so the library still builds and runs on Java 11
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+        }
+        return new OrderedDispatcher(executor, maxPendingPerSender);
+    }
+}
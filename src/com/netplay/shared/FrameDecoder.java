@@ -0,0 +1,396 @@
+package com.netplay.shared;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental frame decoder for both wire protocol versions.
+ * Received bytes are accumulated in a growable buffer and decoded in place, so message
+ * bodies are handed out as buffer slices without building Strings. Version 1 frames are
+ * found by scanning for delimiters, version 2 frames by their length prefix.
+ *
+ * The buffer comes from a {@link BufferAllocator} and is only held while undecoded bytes
+ * remain, so idle connections do not pin any receive memory.
+ * Not thread-safe, each connection owns its own decoder.
+ */
+public final class FrameDecoder {
+    private static final byte DELIMITER = '\n';
+    private static final int MIN_READ_SPACE = 1024;
+
+    /**
+     * Receives complete frames from the decoder.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Handle a complete frame.
+         * @param typeId the type ID, or {@link Protocol#TYPE_NAMED} if the frame carries the name
+         * @param typeName the message class name, or null if the frame carries a type ID
+         * @param flags the frame flags, always 0 for version 1
+         * @param body the message body, only valid for the duration of the call
+         * @throws ProtocolException if the frame is invalid for the connection state
+         */
+        void onFrame(int typeId, String typeName, int flags, ByteBuffer body) throws ProtocolException;
+    }
+
+    private final BufferAllocator allocator;
+    private final int initialCapacity;
+
+    // Write mode: bytes [start, position) are undecoded
+    private ByteBuffer buffer;
+    private ByteBuffer view;
+    private int start;
+    private int scan;
+    private int firstDelimiter = -1;
+    private int version = Protocol.VERSION_1;
+    private byte[] nameScratch = new byte[64];
+
+    public FrameDecoder(BufferAllocator allocator, int initialCapacity) {
+        this.allocator = allocator;
+        this.initialCapacity = initialCapacity;
+    }
+
+    /**
+     * Append received bytes to the decoder.
+     * @param src the received bytes, consumed entirely
+     */
+    public void append(ByteBuffer src) {
+        ensureWritable(src.remaining());
+        buffer.put(src);
+    }
+
+    /**
+     * Read from a channel straight into the decoder buffer.
+     * @param channel the channel to read from
+     * @return the number of bytes read, or -1 at end of stream
+     * @throws IOException if the read fails
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        return readFrom(channel, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read at most a number of bytes from a channel straight into the decoder buffer.
+     * @param channel the channel to read from
+     * @param maxBytes the most bytes to read, at least 1
+     * @return the number of bytes read, or -1 at end of stream
+     * @throws IOException if the read fails
+     */
+    public int readFrom(ReadableByteChannel channel, int maxBytes) throws IOException {
+        ensureWritable(Math.min(MIN_READ_SPACE, maxBytes));
+        int limit = buffer.limit();
+        if (buffer.remaining() > maxBytes) {
+            buffer.limit(buffer.position() + maxBytes);
+        }
+        int bytesRead;
+        try {
+            bytesRead = channel.read(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+        if (bytesRead <= 0) {
+            releaseIfDrained();
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Get the protocol version frames are decoded with.
+     * @return the protocol version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Switch the protocol version.
+     * May be called from a listener, the following frames are decoded with the new version.
+     * @param version the protocol version
+     */
+    public void setVersion(int version) {
+        this.version = version;
+        this.scan = start;
+        this.firstDelimiter = -1;
+    }
+
+    /**
+     * Decode every complete frame currently buffered.
+     * A partial frame at the end is kept and resumed on the next call without rescanning.
+     * @param listener the listener to receive frames
+     * @throws ProtocolException if the buffered data is not a valid frame
+     */
+    public void decode(Listener listener) throws ProtocolException {
+        decode(listener, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decode up to a number of complete frames, leaving the rest buffered for a later call.
+     * @param listener the listener to receive frames
+     * @param maxFrames the most frames to decode
+     * @return the number of frames decoded
+     * @throws ProtocolException if the buffered data is not a valid frame
+     */
+    public int decode(Listener listener, int maxFrames) throws ProtocolException {
+        int frames = 0;
+        boolean decoded = buffer != null;
+        while (frames < maxFrames && decoded && buffer != null) {
+            decoded = version >= Protocol.VERSION_2 ? decodeVersion2(listener) : decodeVersion1(listener);
+            if (decoded) {
+                frames++;
+            }
+        }
+        releaseIfDrained();
+        return frames;
+    }
+
+    /**
+     * Check if a complete frame is buffered, without decoding it.
+     * @return true if the next {@link #decode(Listener, int)} would decode a frame, or
+     *         report the buffered data as invalid
+     * @throws ProtocolException if a version 1 frame is incomplete past the frame size limit
+     */
+    public boolean hasFrame() throws ProtocolException {
+        if (buffer == null) {
+            return false;
+        }
+        return version >= Protocol.VERSION_2 ? hasVersion2Frame() : hasVersion1Frame();
+    }
+
+    private boolean hasVersion1Frame() throws ProtocolException {
+        int end = buffer.position();
+        for (int i = scan; i < end; i++) {
+            if (buffer.get(i) != DELIMITER) {
+                continue;
+            }
+            if (firstDelimiter < 0) {
+                firstDelimiter = i;
+                continue;
+            }
+            // Decoding resumes at the second delimiter
+            scan = i;
+            return true;
+        }
+        scan = end;
+        checkVersion1Length(end);
+        return false;
+    }
+
+    private boolean hasVersion2Frame() {
+        int end = buffer.position();
+        int index = start;
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            if (index >= end) {
+                return false;
+            }
+            byte b = buffer.get(index++);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                // Malformed, decoding reports it
+                return true;
+            }
+        }
+        if (length < 2 || length > Protocol.MAX_FRAME_LENGTH) {
+            return true;
+        }
+        return end - index >= length;
+    }
+
+    private boolean decodeVersion1(Listener listener) throws ProtocolException {
+        int end = buffer.position();
+        for (int i = scan; i < end; i++) {
+            if (buffer.get(i) != DELIMITER) {
+                continue;
+            }
+            if (firstDelimiter < 0) {
+                firstDelimiter = i;
+                continue;
+            }
+
+            String typeName = readName(start, firstDelimiter - start);
+            view.clear();
+            view.position(firstDelimiter + 1).limit(i);
+
+            start = i + 1;
+            scan = start;
+            firstDelimiter = -1;
+            listener.onFrame(Protocol.TYPE_NAMED, typeName, 0, view);
+            return true;
+        }
+        scan = end;
+        checkVersion1Length(end);
+        return false;
+    }
+
+    /**
+     * Version 1 frames carry no length, so cap how much may be buffered without a complete one.
+     */
+    private void checkVersion1Length(int end) throws ProtocolException {
+        if (end - start > Protocol.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Frame exceeds " + Protocol.MAX_FRAME_LENGTH + " bytes");
+        }
+    }
+
+    private boolean decodeVersion2(Listener listener) throws ProtocolException {
+        int end = buffer.position();
+        int index = start;
+
+        // Length prefix
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            if (index >= end) {
+                return false;
+            }
+            byte b = buffer.get(index++);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new ProtocolException("Malformed frame length");
+            }
+        }
+        if (length < 2 || length > Protocol.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        if (end - index < length) {
+            return false;
+        }
+
+        int frameEnd = index + length;
+        view.clear();
+        view.position(index).limit(frameEnd);
+        int typeId = Protocol.readVarInt(view);
+        if (!view.hasRemaining()) {
+            throw new ProtocolException("Missing frame flags");
+        }
+        int flags = view.get() & 0xFF;
+        String typeName = null;
+        if (typeId == Protocol.TYPE_NAMED) {
+            int nameLength = Protocol.readVarInt(view);
+            if (nameLength < 0 || nameLength > view.remaining()) {
+                throw new ProtocolException("Invalid type name length: " + nameLength);
+            }
+            typeName = readName(view.position(), nameLength);
+            view.position(view.position() + nameLength);
+        }
+
+        start = frameEnd;
+        scan = start;
+        listener.onFrame(typeId, typeName, flags, view);
+        return true;
+    }
+
+    /**
+     * Decode one complete version 2 frame held on its own, as carried over UDP.
+     * @param frame the frame, from position to limit
+     * @param listener the listener to receive the frame
+     * @throws ProtocolException if the buffer is not exactly one valid frame
+     */
+    public static void decodeFrame(ByteBuffer frame, Listener listener) throws ProtocolException {
+        int length = Protocol.readVarInt(frame);
+        if (length < 2 || length != frame.remaining()) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        int typeId = Protocol.readVarInt(frame);
+        if (!frame.hasRemaining()) {
+            throw new ProtocolException("Missing frame flags");
+        }
+        int flags = frame.get() & 0xFF;
+        String typeName = null;
+        if (typeId == Protocol.TYPE_NAMED) {
+            int nameLength = Protocol.readVarInt(frame);
+            if (nameLength < 0 || nameLength > frame.remaining()) {
+                throw new ProtocolException("Invalid type name length: " + nameLength);
+            }
+            byte[] name = new byte[nameLength];
+            frame.get(name);
+            typeName = new String(name, StandardCharsets.UTF_8);
+        }
+        listener.onFrame(typeId, typeName, flags, frame);
+    }
+
+    private String readName(int offset, int length) {
+        if (nameScratch.length < length) {
+            nameScratch = new byte[Math.max(length, nameScratch.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            nameScratch[i] = buffer.get(offset + i);
+        }
+        return new String(nameScratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the number of buffered bytes that do not yet form a complete frame.
+     * @return the pending byte count
+     */
+    public int pending() {
+        return buffer == null ? 0 : buffer.position() - start;
+    }
+
+    /**
+     * Release the buffer back to the allocator, discarding any partial frame.
+     * Called when the connection closes.
+     */
+    public void release() {
+        if (buffer != null) {
+            allocator.release(buffer);
+            buffer = null;
+            view = null;
+        }
+        start = 0;
+        scan = 0;
+        firstDelimiter = -1;
+    }
+
+    private void releaseIfDrained() {
+        if (buffer != null && start == buffer.position()) {
+            release();
+        }
+    }
+
+    private void ensureWritable(int length) {
+        if (buffer == null) {
+            buffer = allocator.allocate(Math.max(initialCapacity, length));
+            view = buffer.duplicate();
+            return;
+        }
+        if (buffer.remaining() >= length) {
+            return;
+        }
+
+        int pending = pending();
+        if (pending + length <= buffer.capacity()) {
+            // Move the undecoded tail to the front
+            buffer.limit(buffer.position()).position(start);
+            buffer.compact();
+        } else {
+            int capacity = buffer.capacity();
+            while (capacity < pending + length) {
+                capacity <<= 1;
+            }
+            ByteBuffer target = allocator.allocate(capacity);
+            buffer.limit(buffer.position()).position(start);
+            target.put(buffer);
+            allocator.release(buffer);
+            buffer = target;
+            view = buffer.duplicate();
+        }
+
+        scan -= start;
+        if (firstDelimiter >= 0) {
+            firstDelimiter -= start;
+        }
+        start = 0;
+    }
+}
@@ -0,0 +1,18 @@
+package com.netplay.shared;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unpooled allocator that hands out heap buffers and leaves reclamation to the GC.
+ */
+public class HeapBufferAllocator implements BufferAllocator {
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocate(capacity);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        // Nothing to do, the buffer is garbage collected
+    }
+}
@@ -1,10 +1,21 @@
 package com.netplay.shared;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
  * JSON-based serializer implementation using Gson.
+ * The streaming methods run Gson's JsonWriter and JsonReader directly over UTF-8 bytes,
+ * so messages are never held as an intermediate String.
  */
 public class JsonSerializer implements Serializer {
     private final Gson gson = new Gson();
@@ -18,4 +29,190 @@ public class JsonSerializer implements Serializer {
     public <T> T deserialize(byte[] data, Class<T> clazz) {
         return gson.fromJson(new String(data, StandardCharsets.UTF_8), clazz);
     }
+
+    @Override
+    public void serialize(Object obj, OutputStream out) throws IOException {
+        JsonWriter writer = gson.newJsonWriter(new Utf8Writer(out));
+        gson.toJson(obj, obj.getClass(), writer);
+        writer.flush();
+    }
+
+    @Override
+    public <T> T deserialize(ByteBuffer data, Class<T> clazz) {
+        try {
+            JsonReader reader = gson.newJsonReader(new Utf8Reader(data));
+            T value = gson.fromJson(reader, clazz);
+            if (value != null && reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed");
+            }
+            return value;
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Writer that encodes characters as UTF-8 straight into a stream, without the
+     * intermediate buffers of OutputStreamWriter.
+     */
+    private static final class Utf8Writer extends Writer {
+        private final OutputStream out;
+        private char highSurrogate;
+
+        Utf8Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            write((char) c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                write(chars[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                write(str.charAt(i));
+            }
+        }
+
+        private void write(char c) throws IOException {
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    out.write(0xF0 | (codePoint >> 18));
+                    out.write(0x80 | ((codePoint >> 12) & 0x3F));
+                    out.write(0x80 | ((codePoint >> 6) & 0x3F));
+                    out.write(0x80 | (codePoint & 0x3F));
+                    return;
+                }
+                out.write('?');
+            }
+
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                out.write('?');
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                out.write('?');
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Reader that decodes UTF-8 straight from a buffer.
+     * Malformed input decodes to U+FFFD, as it does for new String(bytes, UTF_8).
+     */
+    private static final class Utf8Reader extends Reader {
+        private static final char REPLACEMENT = '\uFFFD';
+
+        private final ByteBuffer in;
+        private char lowSurrogate;
+
+        Utf8Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            int count = 0;
+            if (lowSurrogate != 0) {
+                chars[offset + count++] = lowSurrogate;
+                lowSurrogate = 0;
+            }
+            while (count < length && in.hasRemaining()) {
+                int b = in.get() & 0xFF;
+                if (b < 0x80) {
+                    chars[offset + count++] = (char) b;
+                    continue;
+                }
+
+                int codePoint = decode(b);
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    chars[offset + count++] = (char) codePoint;
+                } else {
+                    chars[offset + count++] = Character.highSurrogate(codePoint);
+                    if (count < length) {
+                        chars[offset + count++] = Character.lowSurrogate(codePoint);
+                    } else {
+                        lowSurrogate = Character.lowSurrogate(codePoint);
+                    }
+                }
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        /**
+         * Decode a multi-byte sequence whose first byte has been read.
+         */
+        private int decode(int first) {
+            int continuation;
+            int codePoint;
+            int min;
+            if ((first & 0xE0) == 0xC0) {
+                continuation = 1;
+                codePoint = first & 0x1F;
+                min = 0x80;
+            } else if ((first & 0xF0) == 0xE0) {
+                continuation = 2;
+                codePoint = first & 0x0F;
+                min = 0x800;
+            } else if ((first & 0xF8) == 0xF0) {
+                continuation = 3;
+                codePoint = first & 0x07;
+                min = Character.MIN_SUPPLEMENTARY_CODE_POINT;
+            } else {
+                return REPLACEMENT;
+            }
+
+            for (int i = 0; i < continuation; i++) {
+                if (!in.hasRemaining() || (in.get(in.position()) & 0xC0) != 0x80) {
+                    return REPLACEMENT;
+                }
+                codePoint = (codePoint << 6) | (in.get() & 0x3F);
+            }
+            if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                return REPLACEMENT;
+            }
+            return codePoint;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release, the buffer belongs to the caller
+        }
+    }
 }
@@ -0,0 +1,28 @@
+package com.netplay.shared;
+
+/**
+ * Binary encoder and decoder for one message class.
+ * Usually generated from a {@link NetMessage} class, but can be written by hand.
+ * @param <T> the message type
+ */
+public interface MessageCodec<T> {
+    /**
+     * Get the message class this codec handles.
+     * @return the message class
+     */
+    Class<T> type();
+
+    /**
+     * Write a message.
+     * @param message the message to encode
+     * @param out the destination
+     */
+    void encode(T message, BinaryWriter out);
+
+    /**
+     * Read a message.
+     * @param in the source, positioned at the start of the message
+     * @return the decoded message
+     */
+    T decode(BinaryReader in);
+}
@@ -0,0 +1,21 @@
+package com.netplay.shared;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a message class for compile-time codec generation.
+ * The netplay annotation processor generates a {@link MessageCodec} named after the
+ * class with a Codec suffix, in the same package, for use with {@link BinarySerializer}.
+ *
+ * The class needs a non-private no-arg constructor. Every non-static, non-transient
+ * field is encoded in declaration order, superclass fields first, and private fields
+ * are read and written through their getters and setters. Supported field types are
+ * primitives and their wrappers, String, enums, byte[] and other @NetMessage classes.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface NetMessage {
+}
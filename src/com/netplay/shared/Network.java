@@ -1,6 +1,12 @@
 package com.netplay.shared;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -9,9 +15,20 @@ import java.util.concurrent.ConcurrentHashMap;
  * Provides static methods for handler registration and message sending.
  */
 public final class Network {
+    // Smallest pooled buffer once the frame header room is added, grown as the body needs
+    private static final int INITIAL_ENCODE_CAPACITY = 256 - WireMessage.HEADROOM;
+
     private static Serializer serializer;
     private static Transport transport;
+    private static BufferAllocator bufferAllocator = new PooledBufferAllocator();
+    private static volatile Compression compression;
+    // Reads compressed frames from peers when compression is off locally
+    private static final Compression defaultCompression = new Compression();
+    private static volatile DispatchStrategy dispatchStrategy = DispatchStrategy.inline();
     private static final Map<String, HandlerEntry<?>> handlers = new ConcurrentHashMap<>();
+    private static final TypeRegistry typeRegistry = new TypeRegistry();
+    private static volatile HandlerEntry<?>[] handlersById = new HandlerEntry<?>[16];
+    private static final Map<String, DispatchStats> dispatchStats = new ConcurrentHashMap<>();
 
     private Network() {
         // Static-only class
@@ -49,6 +66,101 @@ public final class Network {
         return transport;
     }
 
+    /**
+     * Set the allocator used for connection read and write buffers.
+     * Must be called before any client or server is started.
+     * @param bufferAllocator the allocator to use
+     */
+    public static void setBufferAllocator(BufferAllocator bufferAllocator) {
+        Network.bufferAllocator = bufferAllocator;
+    }
+
+    /**
+     * Get the configured buffer allocator.
+     * @return the buffer allocator
+     */
+    public static BufferAllocator getBufferAllocator() {
+        return bufferAllocator;
+    }
+
+    /**
+     * Set the compression applied to outgoing version 2 frames, or null to turn it off.
+     * Compressed frames from peers are read either way, but frames using a preset
+     * dictionary need the same dictionary configured here.
+     * @param compression the compression to use, off by default
+     */
+    public static void setCompression(Compression compression) {
+        Network.compression = compression;
+    }
+
+    /**
+     * Get the configured compression.
+     * @return the compression, or null if off
+     */
+    public static Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Set the strategy that decides which thread runs message handlers.
+     * Handlers run inline on the I/O thread by default. Whatever the strategy, messages
+     * from one connection are handled one at a time in arrival order. The previous
+     * strategy is not shut down.
+     * @param dispatchStrategy the strategy to use
+     */
+    public static void setDispatchStrategy(DispatchStrategy dispatchStrategy) {
+        if (dispatchStrategy == null) {
+            throw new IllegalArgumentException("Dispatch strategy cannot be null");
+        }
+        Network.dispatchStrategy = dispatchStrategy;
+    }
+
+    /**
+     * Get the configured dispatch strategy.
+     * @return the dispatch strategy
+     */
+    public static DispatchStrategy getDispatchStrategy() {
+        return dispatchStrategy;
+    }
+
+    /**
+     * Get handler queue and execution timings for every registered message type.
+     * @return a live view of the stats
+     */
+    public static Collection<DispatchStats> getDispatchStats() {
+        return Collections.unmodifiableCollection(dispatchStats.values());
+    }
+
+    /**
+     * Get handler timings for one message type.
+     * @param className the simple class name
+     * @return the stats, or null if no handler was ever registered for the type
+     */
+    public static DispatchStats getDispatchStats(String className) {
+        return dispatchStats.get(className);
+    }
+
+    /**
+     * Register a message type so it is sent and dispatched by integer type ID.
+     * Types with handlers are registered automatically, types that are only sent should
+     * be registered before the server starts or the client connects. Unregistered types
+     * still work but carry their class name in every frame.
+     * @param messageClass the message class
+     * @return the type ID
+     * @throws IllegalArgumentException if another registered class has the same simple name
+     */
+    public static int register(Class<?> messageClass) {
+        return typeRegistry.register(messageClass);
+    }
+
+    /**
+     * Get the registry of message type IDs.
+     * @return the type registry
+     */
+    public static TypeRegistry getTypeRegistry() {
+        return typeRegistry;
+    }
+
     /**
      * Register a handler for a message type.
      * @param messageClass the message class to handle
@@ -57,7 +169,19 @@ public final class Network {
      */
     public static <T> void on(Class<T> messageClass, MessageHandler<T> handler) {
         String className = messageClass.getSimpleName();
-        handlers.put(className, new HandlerEntry<>(messageClass, handler));
+        int typeId = register(messageClass);
+        DispatchStats stats = dispatchStats.computeIfAbsent(className, DispatchStats::new);
+        HandlerEntry<T> entry = new HandlerEntry<>(messageClass, handler, stats);
+        handlers.put(className, entry);
+
+        synchronized (handlers) {
+            HandlerEntry<?>[] table = handlersById;
+            if (typeId >= table.length) {
+                table = Arrays.copyOf(table, Math.max(table.length * 2, typeId + 1));
+            }
+            table[typeId] = entry;
+            handlersById = table;
+        }
     }
 
     /**
@@ -69,8 +193,12 @@ public final class Network {
         if (transport == null) {
             throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
         }
-        byte[] wireData = toWireFormat(message);
-        transport.send(connectionId, wireData);
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.send(connectionId, wireMessage);
+        } finally {
+            wireMessage.release();
+        }
     }
 
     /**
@@ -81,8 +209,127 @@ public final class Network {
         if (transport == null) {
             throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
         }
-        byte[] wireData = toWireFormat(message);
-        transport.broadcast(wireData);
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.broadcast(wireMessage);
+        } finally {
+            wireMessage.release();
+        }
+    }
+
+    /**
+     * Broadcast a message to the members of a group.
+     * Does nothing if the group does not exist.
+     * @param groupId the group ID
+     * @param message the message object to broadcast
+     */
+    public static void broadcastToGroup(String groupId, Object message) {
+        if (transport == null) {
+            throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
+        }
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.broadcastToGroup(groupId, wireMessage);
+        } finally {
+            wireMessage.release();
+        }
+    }
+
+    /**
+     * Broadcast a message to the members of a group with a delivery mode.
+     * Datagram modes fall back to the stream for connections without a UDP channel.
+     * @param groupId the group ID
+     * @param message the message object to broadcast
+     * @param mode the delivery mode
+     */
+    public static void broadcastToGroup(String groupId, Object message, DeliveryMode mode) {
+        if (transport == null) {
+            throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
+        }
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.broadcastToGroup(groupId, wireMessage, mode);
+        } finally {
+            wireMessage.release();
+        }
+    }
+
+    /**
+     * Broadcast a message to the connections positioned within a radius of a point.
+     * The message is serialized and framed once for all recipients.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param radius the radius, inclusive
+     * @param message the message
+     */
+    public static void broadcastNear(double x, double y, double radius, Object message) {
+        if (transport == null) {
+            throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
+        }
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.broadcastNear(x, y, radius, wireMessage);
+        } finally {
+            wireMessage.release();
+        }
+    }
+
+    /**
+     * Broadcast a message to the connections positioned within a radius of a point with a delivery mode.
+     * Datagram modes fall back to the stream for connections without a UDP channel.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param radius the radius, inclusive
+     * @param message the message
+     * @param mode the delivery mode
+     */
+    public static void broadcastNear(double x, double y, double radius, Object message, DeliveryMode mode) {
+        if (transport == null) {
+            throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
+        }
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.broadcastNear(x, y, radius, wireMessage, mode);
+        } finally {
+            wireMessage.release();
+        }
+    }
+
+    /**
+     * Send a message to a specific connection with a delivery mode.
+     * Datagram modes fall back to the stream for connections without a UDP channel.
+     * @param connectionId the connection to send to
+     * @param message the message object to send
+     * @param mode the delivery mode
+     */
+    public static void send(String connectionId, Object message, DeliveryMode mode) {
+        if (transport == null) {
+            throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
+        }
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.send(connectionId, wireMessage, mode);
+        } finally {
+            wireMessage.release();
+        }
+    }
+
+    /**
+     * Broadcast a message to all connections with a delivery mode.
+     * Datagram modes fall back to the stream for connections without a UDP channel.
+     * @param message the message object to broadcast
+     * @param mode the delivery mode
+     */
+    public static void broadcast(Object message, DeliveryMode mode) {
+        if (transport == null) {
+            throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
+        }
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.broadcast(wireMessage, mode);
+        } finally {
+            wireMessage.release();
+        }
     }
 
     /**
@@ -94,24 +341,53 @@ public final class Network {
         if (transport == null) {
             throw new IllegalStateException("Transport not set. Call Network.setTransport() first.");
         }
-        byte[] wireData = toWireFormat(message);
-        transport.broadcastExcept(excludeIds, wireData);
+        WireMessage wireMessage = encode(message);
+        try {
+            transport.broadcastExcept(excludeIds, wireMessage);
+        } finally {
+            wireMessage.release();
+        }
+    }
+
+    /**
+     * Serialize a message object once, ready to be framed for any protocol version.
+     * The caller owns the returned message and must release it.
+     * @param message the message object
+     * @return the serialized message
+     */
+    public static WireMessage encode(Object message) {
+        if (serializer == null) {
+            throw new IllegalStateException("Serializer not set. Call Network.setSerializer() first.");
+        }
+        Class<?> messageClass = message.getClass();
+        BufferAllocator allocator = bufferAllocator;
+        BufferOutputStream out = new BufferOutputStream(allocator, WireMessage.HEADROOM, INITIAL_ENCODE_CAPACITY);
+        try {
+            serializer.serialize(message, out);
+        } catch (IOException e) {
+            out.discard();
+            throw new UncheckedIOException("Failed to serialize " + messageClass.getSimpleName(), e);
+        } catch (RuntimeException | Error e) {
+            out.discard();
+            throw e;
+        }
+        return new WireMessage(typeRegistry.getId(messageClass), messageClass.getSimpleName(),
+            out.finish(), allocator);
     }
 
     /**
-     * Convert a message object to wire format.
+     * Convert a message object to the version 1 wire format.
      * Wire format: ClassName\n{"json":"body"}\n
      * @param message the message object
      * @return the wire format bytes
      */
     public static byte[] toWireFormat(Object message) {
-        if (serializer == null) {
-            throw new IllegalStateException("Serializer not set. Call Network.setSerializer() first.");
+        WireMessage wireMessage = encode(message);
+        try {
+            return wireMessage.encode(Protocol.VERSION_1);
+        } finally {
+            wireMessage.release();
         }
-        String className = message.getClass().getSimpleName();
-        byte[] jsonBytes = serializer.serialize(message);
-        String wireString = className + "\n" + new String(jsonBytes, StandardCharsets.UTF_8) + "\n";
-        return wireString.getBytes(StandardCharsets.UTF_8);
     }
 
     /**
@@ -127,7 +403,101 @@ public final class Network {
             System.err.println("No handler registered for message type: " + className);
             return;
         }
-        entry.invoke(jsonBytes, senderId);
+        submit(entry, ByteBuffer.wrap(jsonBytes), senderId);
+    }
+
+    /**
+     * Dispatch a received message whose body is a slice of a receive buffer.
+     * @param className the class name from the wire format
+     * @param body the JSON body, read from position to limit
+     * @param senderId the connection ID of the sender
+     */
+    public static void dispatch(String className, ByteBuffer body, String senderId) {
+        HandlerEntry<?> entry = handlers.get(className);
+        if (entry == null) {
+            System.err.println("No handler registered for message type: " + className);
+            return;
+        }
+        submit(entry, body, senderId);
+    }
+
+    /**
+     * Dispatch a received message by type ID, without looking up the class name.
+     * @param typeId the local type ID
+     * @param body the JSON body, read from position to limit
+     * @param senderId the connection ID of the sender
+     */
+    public static void dispatch(int typeId, ByteBuffer body, String senderId) {
+        HandlerEntry<?>[] table = handlersById;
+        HandlerEntry<?> entry = typeId > 0 && typeId < table.length ? table[typeId] : null;
+        if (entry == null) {
+            System.err.println("No handler registered for message type ID: " + typeId);
+            return;
+        }
+        submit(entry, body, senderId);
+    }
+
+    /**
+     * Dispatch a received version 2 frame, decompressing the body if the frame flags say so.
+     * @param typeId the local type ID, or {@link Protocol#TYPE_NAMED} to look up the name
+     * @param className the class name, used when the type ID is {@link Protocol#TYPE_NAMED}
+     * @param flags the frame flags
+     * @param body the body, read from position to limit
+     * @param senderId the connection ID of the sender
+     * @throws ProtocolException if the body cannot be decompressed
+     */
+    public static void dispatch(int typeId, String className, int flags, ByteBuffer body, String senderId)
+            throws ProtocolException {
+        if ((flags & Protocol.FLAG_COMPRESSED) == 0) {
+            dispatch(typeId, className, body, senderId);
+            return;
+        }
+
+        BufferAllocator allocator = bufferAllocator;
+        ByteBuffer decompressed = decompress(body);
+        try {
+            // Handlers get the decoded message, so the buffer can go back as soon as this returns
+            dispatch(typeId, className, decompressed, senderId);
+        } finally {
+            allocator.release(decompressed);
+        }
+    }
+
+    /**
+     * Decompress the body of a frame flagged {@link Protocol#FLAG_COMPRESSED}.
+     * @param payload the compressed body, from position to limit
+     * @return a buffer from the configured allocator, the caller must release it
+     * @throws ProtocolException if the body cannot be decompressed
+     */
+    public static ByteBuffer decompress(ByteBuffer payload) throws ProtocolException {
+        Compression current = compression;
+        return (current != null ? current : defaultCompression).decompress(payload, bufferAllocator);
+    }
+
+    private static void dispatch(int typeId, String className, ByteBuffer body, String senderId) {
+        if (typeId != Protocol.TYPE_NAMED) {
+            dispatch(typeId, body, senderId);
+        } else {
+            dispatch(className, body, senderId);
+        }
+    }
+
+    private static <T> void submit(HandlerEntry<T> entry, ByteBuffer body, String senderId) {
+        if (serializer == null) {
+            throw new IllegalStateException("Serializer not set. Call Network.setSerializer() first.");
+        }
+        // The body may be a slice of a receive buffer that is reused once this call returns,
+        // so decode it here and hand only the message to the strategy
+        T message = serializer.deserialize(body, entry.messageClass);
+        long received = System.nanoTime();
+        dispatchStrategy.execute(senderId, () -> {
+            long started = System.nanoTime();
+            try {
+                entry.handler.handle(message, senderId);
+            } finally {
+                entry.stats.record(started - received, System.nanoTime() - started);
+            }
+        });
     }
 
     /**
@@ -144,7 +514,10 @@ public final class Network {
      * Useful for testing.
      */
     public static void clearHandlers() {
-        handlers.clear();
+        synchronized (handlers) {
+            handlers.clear();
+            handlersById = new HandlerEntry<?>[handlersById.length];
+        }
     }
 
     /**
@@ -153,18 +526,12 @@ public final class Network {
     private static class HandlerEntry<T> {
         private final Class<T> messageClass;
         private final MessageHandler<T> handler;
+        private final DispatchStats stats;
 
-        HandlerEntry(Class<T> messageClass, MessageHandler<T> handler) {
+        HandlerEntry(Class<T> messageClass, MessageHandler<T> handler, DispatchStats stats) {
             this.messageClass = messageClass;
             this.handler = handler;
-        }
-
-        void invoke(byte[] jsonBytes, String senderId) {
-            if (serializer == null) {
-                throw new IllegalStateException("Serializer not set. Call Network.setSerializer() first.");
-            }
-            T message = serializer.deserialize(jsonBytes, messageClass);
-            handler.handle(message, senderId);
+            this.stats = stats;
         }
     }
 }
@@ -0,0 +1,168 @@
+package com.netplay.shared;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Dispatch strategy that runs handlers on an executor while keeping each sender's
+ * messages in order.
+ * Every sender with pending messages gets a lane, a queue drained by one executor task
+ * at a time. The lane is dropped once it runs empty, so idle connections cost nothing.
+ * A lane hands its thread back after a batch of messages so a chatty sender cannot
+ * starve the others.
+ *
+ * Submitting never blocks. A lane holding the per-sender limit reports the sender as
+ * saturated, and the I/O thread stops reading from that sender until the lane has drained
+ * to half the limit, so one flooding sender only ever holds up itself.
+ */
+public final class OrderedDispatcher implements DispatchStrategy {
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private final ExecutorService executor;
+    private final int maxPendingPerSender;
+    private final int resumeThreshold;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private volatile boolean shutdown;
+
+    /**
+     * Create an ordered dispatcher.
+     * @param executor the executor that runs the lanes
+     * @param maxPendingPerSender the most messages queued for one sender before it
+     *                            counts as saturated
+     */
+    public OrderedDispatcher(ExecutorService executor, int maxPendingPerSender) {
+        if (maxPendingPerSender < 1) {
+            throw new IllegalArgumentException("Max pending must be at least 1: " + maxPendingPerSender);
+        }
+        this.executor = executor;
+        this.maxPendingPerSender = maxPendingPerSender;
+        this.resumeThreshold = maxPendingPerSender / 2;
+    }
+
+    @Override
+    public void execute(String senderId, Runnable task) {
+        if (shutdown) {
+            throw new IllegalStateException("Dispatcher has been shut down");
+        }
+        Lane[] started = new Lane[1];
+        lanes.compute(senderId, (key, lane) -> {
+            if (lane == null) {
+                lane = new Lane(key);
+                started[0] = lane;
+            }
+            lane.pending.incrementAndGet();
+            lane.tasks.offer(task);
+            return lane;
+        });
+        if (started[0] != null) {
+            schedule(started[0]);
+        }
+    }
+
+    @Override
+    public boolean isSaturated(String senderId) {
+        Lane lane = lanes.get(senderId);
+        return lane != null && lane.pending.get() >= maxPendingPerSender;
+    }
+
+    @Override
+    public void onDrained(String senderId, Runnable callback) {
+        Lane lane = lanes.get(senderId);
+        if (lane == null) {
+            callback.run();
+            return;
+        }
+        lane.drained.set(callback);
+        // The lane may have drained or retired before the callback was set
+        lane.checkDrained();
+    }
+
+    /**
+     * Get the number of messages waiting to run.
+     * @return the pending message count
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Lane lane : lanes.values()) {
+            pending += lane.pending.get();
+        }
+        return pending;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        executor.shutdown();
+    }
+
+    private void schedule(Lane lane) {
+        try {
+            executor.execute(lane);
+        } catch (RejectedExecutionException e) {
+            // Shut down while work was still queued, finish it on this thread
+            lane.run();
+        }
+    }
+
+    private final class Lane implements Runnable {
+        private final String senderId;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Queued and running tasks, read without walking the queue
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicReference<Runnable> drained = new AtomicReference<>();
+
+        Lane(String senderId) {
+            this.senderId = senderId;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    if (retire()) {
+                        return;
+                    }
+                    // A message arrived while retiring
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.err.println("Error handling message from " + senderId + ": " + e.getMessage());
+                } finally {
+                    pending.decrementAndGet();
+                    checkDrained();
+                }
+            }
+            schedule(this);
+        }
+
+        /**
+         * Run the drain callback once the lane is down to the resume threshold.
+         */
+        void checkDrained() {
+            if (drained.get() != null && pending.get() <= resumeThreshold) {
+                Runnable callback = drained.getAndSet(null);
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        }
+
+        /**
+         * Remove this lane if it is empty. Runs atomically with
+         * {@link OrderedDispatcher#execute(String, Runnable)} for the same sender.
+         * @return true if the lane was removed
+         */
+        private boolean retire() {
+            return lanes.computeIfPresent(senderId, (key, lane) -> tasks.isEmpty() ? null : lane) == null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.netplay.shared;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Allocator that pools direct buffers in power of two size classes.
+ * Each thread keeps a small cache per size class in front of a bounded shared pool,
+ * so the selector threads allocate and release without contention. Requests larger
+ * than the biggest size class get an unpooled heap buffer.
+ *
+ * Leak detection records the allocation site of every outstanding buffer and can be
+ * enabled with the {@code netplay.leakDetection} system property, which is useful in tests.
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+    private static final int MIN_SIZE_SHIFT = 8;
+    private static final int DEFAULT_MAX_SIZE_SHIFT = 16;
+    private static final int DEFAULT_THREAD_CACHE_SIZE = 32;
+    private static final int DEFAULT_SHARED_POOL_SIZE = 1024;
+
+    private final int maxSizeShift;
+    private final int threadCacheSize;
+    private final int sharedPoolSize;
+    private final Queue<ByteBuffer>[] sharedPools;
+    private final AtomicInteger[] sharedCounts;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches;
+
+    private final LongAdder outstanding = new LongAdder();
+    private final boolean leakDetection;
+    private final Map<ByteBuffer, Throwable> allocationSites = new IdentityHashMap<>();
+
+    public PooledBufferAllocator() {
+        this(1 << DEFAULT_MAX_SIZE_SHIFT, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_POOL_SIZE,
+            Boolean.getBoolean("netplay.leakDetection"));
+    }
+
+    /**
+     * Create a pooled allocator.
+     * @param maxPooledSize the largest pooled buffer size, rounded up to a power of two
+     * @param threadCacheSize buffers cached per size class per thread
+     * @param sharedPoolSize buffers kept per size class in the shared pool
+     * @param leakDetection true to record the allocation site of every outstanding buffer
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PooledBufferAllocator(int maxPooledSize, int threadCacheSize, int sharedPoolSize, boolean leakDetection) {
+        this.maxSizeShift = Math.max(MIN_SIZE_SHIFT, sizeShift(maxPooledSize));
+        this.threadCacheSize = threadCacheSize;
+        this.sharedPoolSize = sharedPoolSize;
+        this.leakDetection = leakDetection;
+
+        int classes = maxSizeShift - MIN_SIZE_SHIFT + 1;
+        this.sharedPools = new Queue[classes];
+        this.sharedCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            sharedPools[i] = new ConcurrentLinkedQueue<>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+        this.threadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[classes];
+            for (int i = 0; i < classes; i++) {
+                caches[i] = new ArrayDeque<>();
+            }
+            return caches;
+        });
+    }
+
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer;
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= 0) {
+            buffer = threadCaches.get()[sizeClass].pollFirst();
+            if (buffer == null) {
+                buffer = sharedPools[sizeClass].poll();
+                if (buffer != null) {
+                    sharedCounts[sizeClass].decrementAndGet();
+                }
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_SHIFT));
+            }
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        outstanding.increment();
+        if (leakDetection) {
+            synchronized (allocationSites) {
+                allocationSites.put(buffer, new Throwable("Buffer allocated here"));
+            }
+        }
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (leakDetection) {
+            synchronized (allocationSites) {
+                if (allocationSites.remove(buffer) == null) {
+                    throw new IllegalStateException("Buffer released twice or not allocated by this allocator");
+                }
+            }
+        }
+        outstanding.decrement();
+
+        int sizeClass = exactSizeClass(buffer.capacity());
+        if (sizeClass < 0 || !buffer.isDirect()) {
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> cache = threadCaches.get()[sizeClass];
+        if (cache.size() < threadCacheSize) {
+            cache.offerFirst(buffer);
+            return;
+        }
+        if (sharedCounts[sizeClass].incrementAndGet() <= sharedPoolSize) {
+            sharedPools[sizeClass].offer(buffer);
+        } else {
+            // Pool is full, let the GC reclaim it
+            sharedCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of buffers allocated and not yet released.
+     * @return the outstanding buffer count
+     */
+    public long getOutstandingCount() {
+        return outstanding.sum();
+    }
+
+    /**
+     * Print the allocation site of every outstanding buffer.
+     * Only available when leak detection is enabled.
+     * @return the number of outstanding buffers reported
+     */
+    public int reportLeaks() {
+        if (!leakDetection) {
+            throw new IllegalStateException("Leak detection is not enabled");
+        }
+        synchronized (allocationSites) {
+            for (Throwable site : allocationSites.values()) {
+                System.err.println("Leaked buffer:");
+                site.printStackTrace();
+            }
+            return allocationSites.size();
+        }
+    }
+
+    public boolean isLeakDetectionEnabled() {
+        return leakDetection;
+    }
+
+    private int sizeClass(int capacity) {
+        int shift = Math.max(MIN_SIZE_SHIFT, sizeShift(capacity));
+        return shift > maxSizeShift ? -1 : shift - MIN_SIZE_SHIFT;
+    }
+
+    private int exactSizeClass(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            return -1;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        return shift < MIN_SIZE_SHIFT || shift > maxSizeShift ? -1 : shift - MIN_SIZE_SHIFT;
+    }
+
+    private static int sizeShift(int capacity) {
+        return capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+}
@@ -0,0 +1,161 @@
+package com.netplay.shared;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire protocol constants and helpers.
+ *
+ * Version 1 is the newline-delimited text format: ClassName\nJSON\n
+ *
+ * Version 2 is length-prefixed binary framing:
+ * varint length | varint typeId | flags (1 byte) | payload
+ * where length counts every byte after the length field. A type ID of 0 means the
+ * payload starts with the type name: varint nameLength | UTF-8 name | body.
+ *
+ * Every connection starts in version 1. A client that supports a newer version sends
+ * a {@link #HANDSHAKE_HELLO} frame carrying its highest version, and the server answers
+ * with a {@link #HANDSHAKE_ACK} frame carrying the negotiated version. Both sides switch
+ * to the negotiated version right after those frames. From version 2 the server follows
+ * the ack with a {@link #HANDSHAKE_TYPES} frame listing its {@link TypeRegistry}, and
+ * frames for the listed types carry the type ID instead of the name.
+ *
+ * Version 2 frame flags:
+ * {@link #FLAG_COMPRESSED} - the payload after the type is compressed, see {@link Compression}
+ *
+ * When the server has UDP enabled it follows the type table with a {@link #UDP_SESSION}
+ * frame, and the client may open a UDP channel for version 2 frames, see {@link UdpSession}.
+ */
+public final class Protocol {
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int CURRENT_VERSION = VERSION_2;
+
+    /** Type ID of a v2 frame whose payload carries the type name inline. */
+    public static final int TYPE_NAMED = 0;
+
+    /** Frame flag set when the body is deflate compressed. */
+    public static final int FLAG_COMPRESSED = 0x01;
+
+    /** Control frame names use a prefix that is not a valid Java class name. */
+    public static final String CONTROL_PREFIX = "netplay:";
+    public static final String HANDSHAKE_HELLO = CONTROL_PREFIX + "hello";
+    public static final String HANDSHAKE_ACK = CONTROL_PREFIX + "ack";
+    public static final String HANDSHAKE_TYPES = CONTROL_PREFIX + "types";
+    /** State snapshot or delta from the server, see StateSync. Version 2 only. */
+    public static final String STATE = CONTROL_PREFIX + "state";
+    /** Client acknowledgement of a state snapshot: varint sequence, 0 to request a full one. */
+    public static final String STATE_ACK = CONTROL_PREFIX + "state-ack";
+    /** UDP session offer from the server after the type table: varint port | token (8 bytes). */
+    public static final String UDP_SESSION = CONTROL_PREFIX + "udp";
+    /** Heartbeat sent by a side that has written nothing for a while, empty body. Version 2 only. */
+    public static final String PING = CONTROL_PREFIX + "ping";
+    /** Reply to a ping, empty body. */
+    public static final String PONG = CONTROL_PREFIX + "pong";
+
+    /** Upper bound for a single v2 frame, guards against corrupt length prefixes. */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private Protocol() {
+        // Static-only class
+    }
+
+    /**
+     * Check if a type name is a protocol control frame rather than a user message.
+     * @param typeName the type name
+     * @return true for control frames
+     */
+    public static boolean isControl(String typeName) {
+        return typeName.startsWith(CONTROL_PREFIX);
+    }
+
+    /**
+     * Check if a type name is one of the handshake frames, which are never compressed.
+     * @param typeName the type name
+     * @return true for handshake frames
+     */
+    public static boolean isHandshake(String typeName) {
+        return HANDSHAKE_HELLO.equals(typeName) || HANDSHAKE_ACK.equals(typeName)
+            || HANDSHAKE_TYPES.equals(typeName);
+    }
+
+    /**
+     * Build a handshake frame in the version 1 format.
+     * @param name {@link #HANDSHAKE_HELLO} or {@link #HANDSHAKE_ACK}
+     * @param version the version to announce
+     * @return the frame bytes
+     */
+    public static byte[] handshake(String name, int version) {
+        return (name + "\n" + version + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse the version carried by a handshake frame body.
+     * @param body the frame body
+     * @return the version
+     * @throws ProtocolException if the body is not a version number
+     */
+    public static int parseVersion(ByteBuffer body) throws ProtocolException {
+        int version = 0;
+        if (!body.hasRemaining()) {
+            throw new ProtocolException("Empty handshake version");
+        }
+        while (body.hasRemaining()) {
+            int digit = body.get() - '0';
+            if (digit < 0 || digit > 9 || version > 1000) {
+                throw new ProtocolException("Invalid handshake version");
+            }
+            version = version * 10 + digit;
+        }
+        return version;
+    }
+
+    /**
+     * Get the number of bytes needed to encode a value as an unsigned varint.
+     * @param value the value
+     * @return the encoded size, 1 to 5 bytes
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Read an unsigned LEB128 varint.
+     * @param buffer the source
+     * @return the value
+     * @throws ProtocolException if the varint is truncated or longer than 5 bytes
+     */
+    public static int readVarInt(ByteBuffer buffer) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                break;
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    /**
+     * Write a value as an unsigned LEB128 varint.
+     * @param buffer the destination
+     * @param value the value
+     */
+    public static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -1,8 +1,16 @@
 package com.netplay.shared;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 /**
  * Interface for message serialization.
  * Implement this interface to provide custom serialization strategies.
+ *
+ * The library calls the streaming variants, which by default go through the byte array
+ * methods. Implementations that can write to a stream and read from a buffer directly
+ * should override them to avoid the intermediate copies.
  */
 public interface Serializer {
     /**
@@ -20,4 +28,30 @@ public interface Serializer {
      * @return the deserialized object
      */
     <T> T deserialize(byte[] data, Class<T> clazz);
+
+    /**
+     * Serialize an object into a stream.
+     * The library passes a stream that writes straight into the outbound frame buffer.
+     * @param obj the object to serialize
+     * @param out the destination
+     * @throws IOException if the stream fails
+     */
+    default void serialize(Object obj, OutputStream out) throws IOException {
+        out.write(serialize(obj));
+    }
+
+    /**
+     * Deserialize an object from a buffer.
+     * The buffer is usually a slice of a receive buffer and is only valid for the duration
+     * of the call, so the result must not keep a reference to it.
+     * @param data the bytes to deserialize, from position to limit
+     * @param clazz the class to deserialize into
+     * @param <T> the type of the object
+     * @return the deserialized object
+     */
+    default <T> T deserialize(ByteBuffer data, Class<T> clazz) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return deserialize(bytes, clazz);
+    }
 }
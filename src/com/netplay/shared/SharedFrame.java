@@ -0,0 +1,78 @@
+package com.netplay.shared;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fully framed message in an allocator buffer, shared between every recipient.
+ * Each recipient takes its own read-only view with independent position, so one encoded
+ * frame can sit in many write queues at once. The buffer goes back to the allocator when
+ * the last reference is released.
+ */
+public final class SharedFrame {
+    private final ByteBuffer buffer;
+    private final BufferAllocator allocator;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * Wrap a flipped allocator buffer, the caller owns the initial reference.
+     * @param buffer the frame bytes, from position to limit
+     * @param allocator the allocator the buffer came from
+     */
+    public SharedFrame(ByteBuffer buffer, BufferAllocator allocator) {
+        this.buffer = buffer;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Copy raw frame bytes into a new shared frame.
+     * @param data the frame bytes
+     * @param allocator the allocator to take the buffer from
+     * @return the frame, with one reference owned by the caller
+     */
+    public static SharedFrame copyOf(byte[] data, BufferAllocator allocator) {
+        ByteBuffer buffer = allocator.allocate(data.length);
+        buffer.put(data).flip();
+        return new SharedFrame(buffer, allocator);
+    }
+
+    /**
+     * Get a read-only view of the frame for a single write.
+     * @return a new view positioned at the start of the frame
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the frame length in bytes.
+     * @return the frame length
+     */
+    public int length() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Take an additional reference.
+     * @return this frame
+     */
+    public SharedFrame retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            refCount.getAndDecrement();
+            throw new IllegalStateException("Frame already released");
+        }
+        return this;
+    }
+
+    /**
+     * Drop a reference, the buffer is released once none remain.
+     */
+    public void release() {
+        int remaining = refCount.decrementAndGet();
+        if (remaining == 0) {
+            allocator.release(buffer);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.netplay.shared;
+
+/**
+ * Byte-level delta encoding between two versions of a serialized state.
+ * A delta is the target length followed by operations that either copy a range of the
+ * base or add literal bytes: varint (length &lt;&lt; 1 | 0) varint baseOffset, or
+ * varint (length &lt;&lt; 1 | 1) followed by the bytes. Matches are found through a hash of
+ * 8 byte blocks of the base, so fields that change size only cost their own bytes.
+ */
+public final class StateDelta {
+    private static final int BLOCK = 8;
+    private static final int COPY = 0;
+    private static final int ADD = 1;
+
+    private StateDelta() {
+        // Static-only class
+    }
+
+    /**
+     * Write the delta that turns base into target.
+     * @param base the previous version
+     * @param target the new version
+     * @param out the destination
+     */
+    public static void encode(byte[] base, byte[] target, BinaryWriter out) {
+        out.writeVarInt(target.length);
+
+        int[] table = index(base);
+        int mask = table.length - 1;
+        int literalStart = 0;
+        int expected = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            // Most changes leave the rest in place, so try where the last copy ended first
+            int match = -1;
+            if (expected + BLOCK <= base.length && matches(base, expected, target, i)) {
+                match = expected;
+            } else if (table.length > 0) {
+                int candidate = table[hash(target, i) & mask] - 1;
+                if (candidate >= 0 && matches(base, candidate, target, i)) {
+                    match = candidate;
+                }
+            }
+            if (match < 0) {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            int baseStart = match;
+            while (start > literalStart && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+                start--;
+                baseStart--;
+            }
+            int end = i + BLOCK;
+            int baseEnd = match + BLOCK;
+            while (end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+                end++;
+                baseEnd++;
+            }
+
+            writeAdd(target, literalStart, start, out);
+            out.writeVarInt((end - start) << 1 | COPY);
+            out.writeVarInt(baseStart);
+            i = end;
+            literalStart = end;
+            expected = baseEnd;
+        }
+        writeAdd(target, literalStart, target.length, out);
+    }
+
+    /**
+     * Rebuild the target from a base and a delta.
+     * @param base the version the delta was made against
+     * @param in the delta
+     * @return the target
+     * @throws IllegalArgumentException if the delta is malformed or does not fit the base
+     */
+    public static byte[] apply(byte[] base, BinaryReader in) {
+        int length = in.readVarInt();
+        if (length < 0 || length > Protocol.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Invalid delta length: " + length);
+        }
+        byte[] target = new byte[length];
+        int position = 0;
+        while (position < length) {
+            int header = in.readVarInt();
+            int count = header >>> 1;
+            if (count <= 0 || count > length - position) {
+                throw new IllegalArgumentException("Invalid delta operation length: " + count);
+            }
+            if ((header & 1) == COPY) {
+                int offset = in.readVarInt();
+                if (offset < 0 || offset > base.length - count) {
+                    throw new IllegalArgumentException("Delta copy outside the base: " + offset);
+                }
+                System.arraycopy(base, offset, target, position, count);
+            } else {
+                in.readRaw(target, position, count);
+            }
+            position += count;
+        }
+        return target;
+    }
+
+    private static void writeAdd(byte[] target, int start, int end, BinaryWriter out) {
+        if (end > start) {
+            out.writeVarInt((end - start) << 1 | ADD);
+            out.writeRaw(target, start, end - start);
+        }
+    }
+
+    /**
+     * Hash table from block contents to base offset + 1, later blocks win on collisions.
+     */
+    private static int[] index(byte[] base) {
+        int blocks = base.length / BLOCK;
+        if (blocks == 0) {
+            return new int[0];
+        }
+        int[] table = new int[Integer.highestOneBit(blocks * 2 - 1) << 1];
+        int mask = table.length - 1;
+        for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+            table[hash(base, offset) & mask] = offset + 1;
+        }
+        return table;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return (int) ((value * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    private static boolean matches(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        for (int i = 0; i < BLOCK; i++) {
+            if (base[baseOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
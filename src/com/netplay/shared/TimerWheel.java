@@ -0,0 +1,241 @@
+package com.netplay.shared;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel driven by a selector loop.
+ * Timeouts hash into a fixed ring of buckets by their deadline tick, so scheduling and
+ * cancelling are O(1) and an idle timeout costs nothing until its bucket comes round.
+ * Deadlines further away than one rotation stay in their bucket for extra rounds.
+ *
+ * {@link #schedule(long, TimeUnit, Runnable)} and {@link Timeout#cancel()} are safe from
+ * any thread. Everything else, and every task, runs on the owning loop thread, which calls
+ * {@link #advance(long)} after each select and uses {@link #nextDelayMillis(long)} as
+ * its select timeout. Callers on other threads must wake the loop after scheduling.
+ */
+public final class TimerWheel {
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets;
+    private final long startNanos;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    // Next tick to expire, loop thread only
+    private long tick;
+    private int size;
+
+    public TimerWheel() {
+        this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickDuration the wheel resolution
+     * @param unit the unit of the tick duration
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        if (wheelSize <= 0 || wheelSize > 1 << 20) {
+            throw new IllegalArgumentException("Wheel size must be between 1 and " + (1 << 20));
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int buckets = Integer.highestOneBit(wheelSize - 1) << 1;
+        this.buckets = new Timeout[Math.max(buckets, 1)];
+        this.mask = this.buckets.length - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Schedule a task. Safe from any thread.
+     * The task runs on the loop thread no earlier than the delay, and at most one tick
+     * plus one loop iteration later. Tasks due in the same tick run in no particular order.
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @param task the task
+     * @return a handle that can cancel the task
+     */
+    public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task must not be null");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(unit.toNanos(delay), 0));
+        added.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Get the number of scheduled timeouts, including cancelled ones not yet swept.
+     * Must be called on the loop thread.
+     * @return the number of timeouts
+     */
+    public int size() {
+        return size + added.size();
+    }
+
+    /**
+     * Get how long the loop may block before the next non-empty bucket is due.
+     * Must be called on the loop thread.
+     * @param now the current {@link System#nanoTime()}
+     * @return the delay in milliseconds, at least 1, or 0 if nothing is scheduled
+     */
+    public long nextDelayMillis(long now) {
+        if (!added.isEmpty()) {
+            return 1;
+        }
+        if (size == 0) {
+            return 0;
+        }
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[(int) (tick + i) & mask] != null) {
+                long remaining = startNanos + (tick + i) * tickNanos - now;
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Expire every tick up to now and run the due tasks.
+     * Must be called on the loop thread.
+     * @param now the current {@link System#nanoTime()}
+     * @return the number of tasks run
+     */
+    public int advance(long now) {
+        transferAdded();
+        long current = (now - startNanos) / tickNanos;
+        if (size == 0) {
+            // Nothing to sweep, skip straight to the present
+            tick = Math.max(tick, current + 1);
+            return 0;
+        }
+
+        int ran = 0;
+        while (tick <= current) {
+            Timeout expired = expireBucket((int) tick & mask);
+            tick++;
+            while (expired != null) {
+                Timeout next = expired.next;
+                expired.next = null;
+                ran++;
+                try {
+                    expired.task.run();
+                } catch (Exception e) {
+                    System.err.println("Error running timer task: " + e.getMessage());
+                }
+                expired = next;
+            }
+            if (size == 0) {
+                tick = Math.max(tick, current + 1);
+                break;
+            }
+            // Tasks may have rescheduled into ticks that are already due
+            transferAdded();
+        }
+        return ran;
+    }
+
+    /**
+     * Unlink the due and cancelled timeouts of a bucket.
+     * @return the due timeouts, in reverse scheduling order since buckets are prepended to
+     */
+    private Timeout expireBucket(int index) {
+        Timeout head = null;
+        Timeout tail = null;
+        Timeout previous = null;
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean cancelled = timeout.isCancelled();
+            if (cancelled || timeout.rounds <= 0) {
+                if (previous == null) {
+                    buckets[index] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                size--;
+                if (!cancelled && timeout.expire()) {
+                    if (tail == null) {
+                        head = timeout;
+                    } else {
+                        tail.next = timeout;
+                    }
+                    tail = timeout;
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+        return head;
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long deadlineTick = Math.max(ceilDiv(timeout.deadline - startNanos, tickNanos), tick);
+            timeout.rounds = (deadlineTick - tick) / buckets.length;
+            int index = (int) deadlineTick & mask;
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+            size++;
+        }
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+
+    /**
+     * Handle for a scheduled task.
+     */
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // Bucket chain, loop thread only
+        private long rounds;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task if it has not run yet. Safe from any thread, the wheel drops
+         * the timeout when its bucket is next swept.
+         * @return true if the task will not run
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED) || state.get() == CANCELLED;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private boolean expire() {
+            return state.compareAndSet(PENDING, EXPIRED);
+        }
+    }
+}
@@ -3,27 +3,95 @@ package com.netplay.shared;
 /**
  * Interface for network transport operations.
  * The Server implements this to allow Network to send messages.
+ * Messages are released by the caller once a method returns, implementations that
+ * use a message later, for example on another thread, must retain it first.
  */
 public interface Transport {
     /**
-     * Send data to a specific connection.
+     * Send a message to a specific connection.
      * @param connectionId the connection to send to
-     * @param data the data to send
+     * @param message the serialized message, framed per connection protocol version
      */
-    void send(String connectionId, byte[] data);
+    void send(String connectionId, WireMessage message);
 
     /**
-     * Broadcast data to all connections.
-     * @param data the data to broadcast
+     * Broadcast a message to all connections.
+     * @param message the serialized message, framed per connection protocol version
      */
-    void broadcast(byte[] data);
+    void broadcast(WireMessage message);
 
     /**
-     * Broadcast data to all connections except the specified ones.
+     * Broadcast a message to all connections except the specified ones.
      * @param excludeIds connection IDs to exclude
-     * @param data the data to broadcast
+     * @param message the serialized message, framed per connection protocol version
      */
-    void broadcastExcept(String[] excludeIds, byte[] data);
+    void broadcastExcept(String[] excludeIds, WireMessage message);
+
+    /**
+     * Broadcast a message to the members of a group.
+     * @param groupId the group ID
+     * @param message the serialized message, framed per connection protocol version
+     * @throws UnsupportedOperationException if the transport has no groups
+     */
+    default void broadcastToGroup(String groupId, WireMessage message) {
+        throw new UnsupportedOperationException("Groups are not supported by this transport");
+    }
+
+    /**
+     * Broadcast a message to the members of a group with a delivery mode.
+     * Transports without a datagram channel deliver every mode over the stream.
+     * @param groupId the group ID
+     * @param message the serialized message
+     * @param mode the delivery mode
+     */
+    default void broadcastToGroup(String groupId, WireMessage message, DeliveryMode mode) {
+        broadcastToGroup(groupId, message);
+    }
+
+    /**
+     * Broadcast a message to the connections positioned within a radius of a point.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param radius the radius, inclusive
+     * @param message the serialized message
+     */
+    default void broadcastNear(double x, double y, double radius, WireMessage message) {
+        throw new UnsupportedOperationException("Area of interest is not supported by this transport");
+    }
+
+    /**
+     * Broadcast a message to the connections positioned within a radius of a point with a delivery mode.
+     * Transports without a datagram channel deliver every mode over the stream.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param radius the radius, inclusive
+     * @param message the serialized message
+     * @param mode the delivery mode
+     */
+    default void broadcastNear(double x, double y, double radius, WireMessage message, DeliveryMode mode) {
+        broadcastNear(x, y, radius, message);
+    }
+
+    /**
+     * Send a message to a specific connection with a delivery mode.
+     * Transports without a datagram channel deliver every mode over the stream.
+     * @param connectionId the connection to send to
+     * @param message the serialized message
+     * @param mode the delivery mode
+     */
+    default void send(String connectionId, WireMessage message, DeliveryMode mode) {
+        send(connectionId, message);
+    }
+
+    /**
+     * Broadcast a message to all connections with a delivery mode.
+     * Transports without a datagram channel deliver every mode over the stream.
+     * @param message the serialized message
+     * @param mode the delivery mode
+     */
+    default void broadcast(WireMessage message, DeliveryMode mode) {
+        broadcast(message);
+    }
 
     /**
      * Disconnect a connection.
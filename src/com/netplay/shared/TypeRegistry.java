@@ -0,0 +1,145 @@
+package com.netplay.shared;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns small integer IDs to message classes.
+ * IDs start at 1 in registration order and never change for the life of the process.
+ * Version 2 frames carry the ID instead of the class name, and the server sends its
+ * table to each client during the handshake so both sides agree on the numbering.
+ *
+ * Types are identified on the wire by their simple class name, as in version 1, so two
+ * registered classes may not share a simple name.
+ */
+public final class TypeRegistry {
+    /** Upper bound on registered types, guards the handshake table against corrupt counts. */
+    public static final int MAX_TYPES = 65536;
+
+    private final Map<Class<?>, Integer> idsByClass = new ConcurrentHashMap<>();
+    private final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private volatile Class<?>[] classesById = new Class<?>[16];
+    private volatile int size = 1;
+
+    /**
+     * Register a message class, assigning it the next free ID.
+     * Registering a class again returns its existing ID.
+     * @param messageClass the message class
+     * @return the type ID
+     * @throws IllegalArgumentException if another class with the same simple name is registered
+     */
+    public int register(Class<?> messageClass) {
+        Integer existing = idsByClass.get(messageClass);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (this) {
+            existing = idsByClass.get(messageClass);
+            if (existing != null) {
+                return existing;
+            }
+
+            String name = messageClass.getSimpleName();
+            Integer clash = idsByName.get(name);
+            if (clash != null) {
+                throw new IllegalArgumentException("Message type name " + name + " is used by both "
+                    + classesById[clash].getName() + " and " + messageClass.getName());
+            }
+            if (size >= MAX_TYPES) {
+                throw new IllegalStateException("Too many message types registered");
+            }
+
+            int id = size;
+            Class<?>[] classes = classesById;
+            if (id >= classes.length) {
+                classes = Arrays.copyOf(classes, classes.length * 2);
+            }
+            classes[id] = messageClass;
+            classesById = classes;
+            idsByName.put(name, id);
+            idsByClass.put(messageClass, id);
+            size = id + 1;
+            return id;
+        }
+    }
+
+    /**
+     * Get the ID of a registered class.
+     * @param messageClass the message class
+     * @return the type ID, or {@link Protocol#TYPE_NAMED} if the class is not registered
+     */
+    public int getId(Class<?> messageClass) {
+        Integer id = idsByClass.get(messageClass);
+        return id == null ? Protocol.TYPE_NAMED : id;
+    }
+
+    /**
+     * Get the ID registered for a type name.
+     * @param name the simple class name
+     * @return the type ID, or {@link Protocol#TYPE_NAMED} if no class has the name
+     */
+    public int getId(String name) {
+        Integer id = idsByName.get(name);
+        return id == null ? Protocol.TYPE_NAMED : id;
+    }
+
+    /**
+     * Get one past the highest assigned ID.
+     * @return the table size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Encode the IDs below a limit as a handshake table: varint count, then the name of
+     * every type in ID order, each as varint length and UTF-8 bytes.
+     * @param limit one past the highest ID to include
+     * @return the table bytes
+     */
+    public byte[] encodeTable(int limit) {
+        Class<?>[] classes = classesById;
+        byte[][] names = new byte[limit - 1][];
+        int length = Protocol.varIntSize(names.length);
+        for (int i = 0; i < names.length; i++) {
+            names[i] = classes[i + 1].getSimpleName().getBytes(StandardCharsets.UTF_8);
+            length += Protocol.varIntSize(names[i].length) + names[i].length;
+        }
+
+        ByteBuffer table = ByteBuffer.allocate(length);
+        Protocol.writeVarInt(table, names.length);
+        for (byte[] name : names) {
+            Protocol.writeVarInt(table, name.length);
+            table.put(name);
+        }
+        return table.array();
+    }
+
+    /**
+     * Decode a handshake table.
+     * @param table the table bytes
+     * @return the type names indexed by ID, index 0 is unused
+     * @throws ProtocolException if the table is malformed
+     */
+    public static String[] decodeTable(ByteBuffer table) throws ProtocolException {
+        int count = Protocol.readVarInt(table);
+        if (count < 0 || count >= MAX_TYPES) {
+            throw new ProtocolException("Invalid type table size: " + count);
+        }
+        String[] names = new String[count + 1];
+        for (int id = 1; id <= count; id++) {
+            int length = Protocol.readVarInt(table);
+            if (length < 0 || length > table.remaining()) {
+                throw new ProtocolException("Invalid type name length: " + length);
+            }
+            byte[] name = new byte[length];
+            table.get(name);
+            names[id] = new String(name, StandardCharsets.UTF_8);
+        }
+        return names;
+    }
+}
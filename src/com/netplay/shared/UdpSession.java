@@ -0,0 +1,595 @@
+package com.netplay.shared;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One end of the UDP channel between a client and the server.
+ *
+ * Every datagram starts with token (8 bytes) | kind (1 byte). The token is issued by the
+ * server over the TCP connection, see {@link Protocol#UDP_SESSION}, and identifies the
+ * session, so the server follows a client whose address changes.
+ * {@link #HELLO} and {@link #HELLO_ACK} carry nothing else, the client repeats its hello
+ * until the server answers.
+ * {@link #DATA}: mode (1 byte) | varint sequence | varint fragmentIndex | varint fragmentCount | chunk,
+ * where the chunks of a message in order form one version 2 frame and sequences count
+ * messages per {@link DeliveryMode}.
+ * {@link #ACK}: varint count | count * (varint sequence, varint fragmentIndex), one per
+ * reliable datagram received.
+ *
+ * Messages larger than a datagram are split into fragments. Reliable fragments are
+ * acknowledged and resent individually, on a timeout derived from the measured round
+ * trip, and at most {@link #SEND_WINDOW} are in flight. An unreliable message is lost
+ * whole if any of its fragments is.
+ *
+ * Not thread-safe, a session is only used by the thread that reads its channel.
+ */
+public final class UdpSession {
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1200;
+    public static final int MIN_DATAGRAM_SIZE = 128;
+    /** Largest datagram a receive buffer needs to hold. */
+    public static final int MAX_RECEIVE_SIZE = 65536;
+
+    /** Length of the token and kind that start every datagram. */
+    public static final int HEADER_LENGTH = 9;
+    public static final int HELLO = 1;
+    public static final int HELLO_ACK = 2;
+    public static final int DATA = 3;
+    public static final int ACK = 4;
+
+    public static final int SEND_WINDOW = 512;
+
+    // Fragment indexes stay below 1024 so they fit a two byte varint
+    private static final int MAX_FRAGMENTS = 1024;
+    private static final int MAX_DATA_HEADER = HEADER_LENGTH + 1 + 5 + 2 + 2;
+    private static final int MAX_ACK_ENTRY = 5 + 2;
+
+    private static final int RECEIVE_WINDOW = 1024;
+    private static final int MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PARTIALS = 64;
+    private static final long PARTIAL_TIMEOUT_MILLIS = 2000;
+    private static final long INITIAL_ROUND_TRIP_MILLIS = 100;
+    private static final long MIN_RESEND_MILLIS = 50;
+    private static final long MAX_RESEND_MILLIS = 2000;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private static final DeliveryMode[] MODES = DeliveryMode.values();
+
+    private final long token;
+    private final DatagramChannel channel;
+    private final BufferAllocator allocator;
+    private final int maxDatagramSize;
+    private final ByteBuffer scratch;
+    private volatile SocketAddress remoteAddress;
+    private volatile boolean open = true;
+
+    // Sending
+    private final int[] sequences = new int[MODES.length];
+    private final LinkedHashMap<Long, Pending> unacknowledged = new LinkedHashMap<>();
+    private final ArrayDeque<Pending> backlog = new ArrayDeque<>();
+    private long roundTripMillis = INITIAL_ROUND_TRIP_MILLIS;
+    private long resent;
+
+    // Receiving
+    private int nextReliable;
+    private int lastSequenced;
+    private boolean sequencedReceived;
+    private final Map<Integer, ByteBuffer> reliableReady = new HashMap<>();
+    private final Map<Integer, Partial> reliablePartials = new HashMap<>();
+    private final LinkedHashMap<Long, Partial> partials = new LinkedHashMap<>();
+    private int bufferedBytes;
+    private long[] acks = new long[64];
+    private int ackCount;
+
+    /**
+     * Create a session.
+     * @param token the session token
+     * @param channel the channel to send on, non-blocking
+     * @param allocator the allocator for datagrams awaiting acknowledgement
+     * @param maxDatagramSize the largest datagram to send, keep it below the path MTU
+     */
+    public UdpSession(long token, DatagramChannel channel, BufferAllocator allocator, int maxDatagramSize) {
+        if (maxDatagramSize < MIN_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Datagram size must be at least " + MIN_DATAGRAM_SIZE);
+        }
+        this.token = token;
+        this.channel = channel;
+        this.allocator = allocator;
+        this.maxDatagramSize = maxDatagramSize;
+        this.scratch = ByteBuffer.allocateDirect(maxDatagramSize);
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Set where datagrams are sent. Once set the session can carry messages.
+     * @param remoteAddress the peer's address
+     */
+    public void setRemoteAddress(SocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Check if the session can carry messages. Safe to call from any thread.
+     * @return true once the peer's address is known, until the session fails or is closed
+     */
+    public boolean isOpen() {
+        return open && remoteAddress != null;
+    }
+
+    /**
+     * Check if a frame is small enough to send over this session.
+     * @param frameLength the frame length in bytes
+     * @return true if it fits the fragment limit
+     */
+    public boolean fits(int frameLength) {
+        return frameLength <= (long) (maxDatagramSize - MAX_DATA_HEADER) * MAX_FRAGMENTS;
+    }
+
+    /**
+     * Send a version 2 frame.
+     * @param frame the frame, from position to limit. Not modified
+     * @param mode the delivery mode, not {@link DeliveryMode#STREAM}
+     * @param now the current time in milliseconds
+     * @throws IOException if the channel fails
+     */
+    public void send(ByteBuffer frame, DeliveryMode mode, long now) throws IOException {
+        if (!mode.isDatagram()) {
+            throw new IllegalArgumentException("Not a datagram delivery mode: " + mode);
+        }
+        if (!fits(frame.remaining())) {
+            throw new IllegalArgumentException("Frame too large for a datagram session: " + frame.remaining());
+        }
+        if (!open) {
+            return;
+        }
+
+        int chunkSize = maxDatagramSize - MAX_DATA_HEADER;
+        int count = Math.max(1, (frame.remaining() + chunkSize - 1) / chunkSize);
+        int sequence = sequences[mode.ordinal()]++;
+        ByteBuffer source = frame.duplicate();
+        for (int index = 0; index < count; index++) {
+            int length = Math.min(chunkSize, source.remaining());
+            ByteBuffer datagram;
+            if (mode == DeliveryMode.RELIABLE_ORDERED) {
+                datagram = allocator.allocate(maxDatagramSize);
+            } else {
+                datagram = scratch;
+                datagram.clear();
+            }
+            datagram.putLong(token).put((byte) DATA).put((byte) mode.ordinal());
+            Protocol.writeVarInt(datagram, sequence);
+            Protocol.writeVarInt(datagram, index);
+            Protocol.writeVarInt(datagram, count);
+            int limit = source.limit();
+            source.limit(source.position() + length);
+            datagram.put(source);
+            source.limit(limit);
+            datagram.flip();
+
+            if (mode != DeliveryMode.RELIABLE_ORDERED) {
+                transmit(datagram);
+                continue;
+            }
+            Pending pending = new Pending(key(sequence, index), datagram);
+            if (unacknowledged.size() < SEND_WINDOW) {
+                unacknowledged.put(pending.key, pending);
+                transmit(pending, now);
+            } else {
+                backlog.add(pending);
+            }
+        }
+    }
+
+    /**
+     * Send a datagram that is only the header, {@link #HELLO} or {@link #HELLO_ACK}.
+     * @param kind the datagram kind
+     * @throws IOException if the channel fails
+     */
+    public void sendControl(int kind) throws IOException {
+        scratch.clear();
+        scratch.putLong(token).put((byte) kind).flip();
+        transmit(scratch);
+    }
+
+    /**
+     * Handle a received {@link #DATA} or {@link #ACK} datagram.
+     * Frames completed by it are passed to the listener, acknowledgements are collected
+     * until {@link #flushAcks()}.
+     * @param kind the datagram kind
+     * @param datagram the rest of the datagram after the kind
+     * @param now the current time in milliseconds
+     * @param listener the listener for completed frames
+     * @throws ProtocolException if the datagram or a frame in it is malformed
+     */
+    public void receive(int kind, ByteBuffer datagram, long now, FrameDecoder.Listener listener)
+            throws ProtocolException {
+        if (!open) {
+            return;
+        }
+        if (kind == ACK) {
+            receiveAcks(datagram, now);
+            return;
+        }
+        if (kind != DATA) {
+            throw new ProtocolException("Unknown datagram kind: " + kind);
+        }
+        if (!datagram.hasRemaining()) {
+            throw new ProtocolException("Missing delivery mode");
+        }
+        int modeIndex = datagram.get();
+        if (modeIndex <= DeliveryMode.STREAM.ordinal() || modeIndex >= MODES.length) {
+            throw new ProtocolException("Invalid delivery mode: " + modeIndex);
+        }
+        DeliveryMode mode = MODES[modeIndex];
+        int sequence = Protocol.readVarInt(datagram);
+        int index = Protocol.readVarInt(datagram);
+        int count = Protocol.readVarInt(datagram);
+        if (count < 1 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+            throw new ProtocolException("Invalid fragment " + index + " of " + count);
+        }
+
+        if (mode == DeliveryMode.RELIABLE_ORDERED) {
+            receiveReliable(sequence, index, count, datagram, listener);
+            return;
+        }
+        if (mode == DeliveryMode.UNRELIABLE_SEQUENCED && sequencedReceived && sequence - lastSequenced <= 0) {
+            // Stale, a newer message was already delivered
+            return;
+        }
+
+        ByteBuffer message = datagram;
+        if (count > 1) {
+            message = reassemble(((long) modeIndex << 32) | (sequence & 0xFFFFFFFFL), index, count, datagram, now);
+            if (message == null) {
+                return;
+            }
+        }
+        if (mode == DeliveryMode.UNRELIABLE_SEQUENCED) {
+            if (sequencedReceived && sequence - lastSequenced <= 0) {
+                return;
+            }
+            lastSequenced = sequence;
+            sequencedReceived = true;
+        }
+        FrameDecoder.decodeFrame(message, listener);
+    }
+
+    private void receiveReliable(int sequence, int index, int count, ByteBuffer chunk,
+            FrameDecoder.Listener listener) throws ProtocolException {
+        int ahead = sequence - nextReliable;
+        if (ahead < 0 || reliableReady.containsKey(sequence)) {
+            // Already have it, the acknowledgement must have been lost
+            queueAck(sequence, index);
+            return;
+        }
+        if (ahead >= RECEIVE_WINDOW) {
+            // Not acknowledged, so it is resent once the window has moved on
+            return;
+        }
+
+        ByteBuffer message;
+        if (count == 1) {
+            if (ahead > 0 && bufferedBytes + chunk.remaining() > MAX_BUFFERED_BYTES) {
+                return;
+            }
+            queueAck(sequence, index);
+            message = chunk;
+        } else {
+            Partial partial = reliablePartials.get(sequence);
+            if (partial == null) {
+                partial = new Partial(count, 0);
+                reliablePartials.put(sequence, partial);
+            } else if (partial.chunks.length != count) {
+                throw new ProtocolException("Fragment count changed for message " + sequence);
+            }
+            if (partial.chunks[index] != null) {
+                queueAck(sequence, index);
+                return;
+            }
+            if (bufferedBytes + chunk.remaining() > MAX_BUFFERED_BYTES) {
+                return;
+            }
+            queueAck(sequence, index);
+            bufferedBytes += chunk.remaining();
+            if (!partial.add(index, chunk)) {
+                return;
+            }
+            reliablePartials.remove(sequence);
+            bufferedBytes -= partial.bytes;
+            message = partial.assemble();
+        }
+
+        if (ahead > 0) {
+            if (message == chunk) {
+                ByteBuffer copy = ByteBuffer.allocate(chunk.remaining());
+                copy.put(chunk).flip();
+                message = copy;
+            }
+            bufferedBytes += message.remaining();
+            reliableReady.put(sequence, message);
+            return;
+        }
+
+        // Advance before delivering, so a bad frame does not stall the messages behind it
+        nextReliable++;
+        try {
+            FrameDecoder.decodeFrame(message, listener);
+        } finally {
+            ByteBuffer next;
+            while ((next = reliableReady.remove(nextReliable)) != null) {
+                bufferedBytes -= next.remaining();
+                nextReliable++;
+                FrameDecoder.decodeFrame(next, listener);
+            }
+        }
+    }
+
+    /**
+     * Collect an unreliable fragment.
+     * @return the whole message once its last fragment arrives, otherwise null
+     */
+    private ByteBuffer reassemble(long key, int index, int count, ByteBuffer chunk, long now)
+            throws ProtocolException {
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            if (partials.size() >= MAX_PARTIALS) {
+                // Drop the oldest, most likely missing a fragment
+                Iterator<Partial> oldest = partials.values().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            partial = new Partial(count, now);
+            partials.put(key, partial);
+        } else if (partial.chunks.length != count) {
+            throw new ProtocolException("Fragment count changed");
+        }
+        if (partial.chunks[index] != null || !partial.add(index, chunk)) {
+            return null;
+        }
+        partials.remove(key);
+        return partial.assemble();
+    }
+
+    private void receiveAcks(ByteBuffer datagram, long now) throws ProtocolException {
+        int count = Protocol.readVarInt(datagram);
+        if (count < 0 || count > datagram.remaining() / 2) {
+            throw new ProtocolException("Invalid acknowledgement count: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            int sequence = Protocol.readVarInt(datagram);
+            int index = Protocol.readVarInt(datagram);
+            Pending pending = unacknowledged.remove(key(sequence, index));
+            if (pending == null) {
+                continue;
+            }
+            if (pending.attempts == 1) {
+                // Only first transmissions give an unambiguous sample
+                roundTripMillis = (roundTripMillis * 7 + (now - pending.firstSent)) / 8;
+            }
+            allocator.release(pending.datagram);
+        }
+        try {
+            while (!backlog.isEmpty() && unacknowledged.size() < SEND_WINDOW) {
+                Pending pending = backlog.poll();
+                unacknowledged.put(pending.key, pending);
+                transmit(pending, now);
+            }
+        } catch (IOException e) {
+            // Resent from poll()
+        }
+    }
+
+    private void queueAck(int sequence, int index) {
+        if (ackCount == acks.length) {
+            acks = Arrays.copyOf(acks, ackCount * 2);
+        }
+        acks[ackCount++] = key(sequence, index);
+    }
+
+    /**
+     * Check if received reliable datagrams are waiting for {@link #flushAcks()}.
+     * @return true if acknowledgements are pending
+     */
+    public boolean hasPendingAcks() {
+        return ackCount > 0;
+    }
+
+    /**
+     * Send the collected acknowledgements, packed into as few datagrams as fit.
+     * @throws IOException if the channel fails
+     */
+    public void flushAcks() throws IOException {
+        int perDatagram = (maxDatagramSize - HEADER_LENGTH - 5) / MAX_ACK_ENTRY;
+        int sent = 0;
+        try {
+            while (sent < ackCount && open) {
+                int count = Math.min(perDatagram, ackCount - sent);
+                scratch.clear();
+                scratch.putLong(token).put((byte) ACK);
+                Protocol.writeVarInt(scratch, count);
+                for (int i = sent; i < sent + count; i++) {
+                    Protocol.writeVarInt(scratch, (int) (acks[i] >>> 32));
+                    Protocol.writeVarInt(scratch, (int) acks[i]);
+                }
+                scratch.flip();
+                transmit(scratch);
+                sent += count;
+            }
+        } finally {
+            ackCount = 0;
+        }
+    }
+
+    /**
+     * Resend reliable datagrams whose acknowledgement is overdue and drop stale fragments.
+     * The session fails if a datagram stays unacknowledged for too long.
+     * @param now the current time in milliseconds
+     * @return when this should next be called, or Long.MAX_VALUE if nothing is in flight
+     * @throws IOException if the channel fails
+     */
+    public long poll(long now) throws IOException {
+        if (!partials.isEmpty()) {
+            Iterator<Partial> iterator = partials.values().iterator();
+            while (iterator.hasNext() && now - iterator.next().started >= PARTIAL_TIMEOUT_MILLIS) {
+                iterator.remove();
+            }
+        }
+        if (!open) {
+            return Long.MAX_VALUE;
+        }
+
+        long next = Long.MAX_VALUE;
+        for (Pending pending : unacknowledged.values()) {
+            if (now - pending.firstSent >= TIMEOUT_MILLIS) {
+                close();
+                return Long.MAX_VALUE;
+            }
+            long due = pending.lastSent + resendDelay(pending.attempts);
+            if (due <= now) {
+                resent++;
+                transmit(pending, now);
+                due = now + resendDelay(pending.attempts);
+            }
+            next = Math.min(next, due);
+        }
+        return next;
+    }
+
+    private long resendDelay(int attempts) {
+        long delay = Math.max(MIN_RESEND_MILLIS, roundTripMillis * 2);
+        return Math.min(MAX_RESEND_MILLIS, delay << Math.min(attempts - 1, 5));
+    }
+
+    /**
+     * Check if reliable datagrams are waiting for acknowledgement.
+     * @return true if {@link #poll(long)} has work to do
+     */
+    public boolean hasUnacknowledged() {
+        return !unacknowledged.isEmpty() || !backlog.isEmpty();
+    }
+
+    /**
+     * Get the smoothed round trip time measured from acknowledgements.
+     * @return the round trip in milliseconds
+     */
+    public long getRoundTripMillis() {
+        return roundTripMillis;
+    }
+
+    /**
+     * Get the number of reliable datagrams sent again after their acknowledgement was overdue.
+     * @return the count
+     */
+    public long getResentCount() {
+        return resent;
+    }
+
+    /**
+     * Close the session and release the datagrams still waiting for acknowledgement.
+     * Does not close the channel, which the server shares between sessions.
+     */
+    public void close() {
+        open = false;
+        for (Pending pending : unacknowledged.values()) {
+            allocator.release(pending.datagram);
+        }
+        unacknowledged.clear();
+        for (Pending pending : backlog) {
+            allocator.release(pending.datagram);
+        }
+        backlog.clear();
+        reliableReady.clear();
+        reliablePartials.clear();
+        partials.clear();
+        bufferedBytes = 0;
+        ackCount = 0;
+    }
+
+    private void transmit(Pending pending, long now) throws IOException {
+        if (pending.attempts++ == 0) {
+            pending.firstSent = now;
+        }
+        pending.lastSent = now;
+        transmit(pending.datagram.duplicate());
+    }
+
+    private void transmit(ByteBuffer datagram) throws IOException {
+        SocketAddress address = remoteAddress;
+        if (address != null) {
+            // A full socket buffer drops the datagram, as the network might
+            channel.send(datagram, address);
+        }
+    }
+
+    private static long key(int sequence, int index) {
+        return ((long) sequence << 32) | index;
+    }
+
+    /**
+     * A reliable datagram waiting for acknowledgement.
+     */
+    private static final class Pending {
+        final long key;
+        final ByteBuffer datagram;
+        int attempts;
+        long firstSent;
+        long lastSent;
+
+        Pending(long key, ByteBuffer datagram) {
+            this.key = key;
+            this.datagram = datagram;
+        }
+    }
+
+    /**
+     * The fragments of a message received so far.
+     */
+    private static final class Partial {
+        final byte[][] chunks;
+        final long started;
+        int received;
+        int bytes;
+
+        Partial(int count, long started) {
+            this.chunks = new byte[count][];
+            this.started = started;
+        }
+
+        /**
+         * @return true once every fragment is in
+         */
+        boolean add(int index, ByteBuffer chunk) {
+            byte[] data = new byte[chunk.remaining()];
+            chunk.get(data);
+            chunks[index] = data;
+            received++;
+            bytes += data.length;
+            return received == chunks.length;
+        }
+
+        ByteBuffer assemble() {
+            ByteBuffer message = ByteBuffer.allocate(bytes);
+            for (byte[] chunk : chunks) {
+                message.put(chunk);
+            }
+            message.flip();
+            return message;
+        }
+    }
+}
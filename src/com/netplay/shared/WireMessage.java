@@ -0,0 +1,333 @@
+package com.netplay.shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A serialized message ready to be framed for any protocol version.
+ * The body is serialized once and each protocol version is framed at most once, into a
+ * {@link SharedFrame} that every recipient on that version shares. A broadcast therefore
+ * costs one serialization and one frame encoding regardless of the number of recipients.
+ *
+ * The creator owns one reference and must {@link #release()} it when done. Anyone handing
+ * the message to another thread must {@link #retain()} it first. Recipients keep the frames
+ * alive by retaining them, not the message.
+ *
+ * Version 2 frames carry a type ID when the recipient knows one for the type, and the
+ * type name otherwise. The body is serialized into an allocator buffer with room reserved
+ * in front of it, so the first version 2 frame with a type ID is built by writing its
+ * header into that room rather than copying the body.
+ *
+ * With {@link Network#setCompression compression} on, large bodies are compressed once
+ * when the first version 2 frame is built, and every version 2 frame shares the result.
+ * Version 1 frames always carry the plain body.
+ */
+public final class WireMessage {
+    /** Bytes reserved before the body: a 5 byte length, a 3 byte type ID and the flags. */
+    static final int HEADROOM = 9;
+
+    private final int typeId;
+    private final String typeName;
+    private final BufferAllocator allocator;
+    private final Compression compression;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    // Body bytes are [bodyStart, bodyEnd) of the buffer, owned by this message until
+    // they become the in-place frame
+    private final ByteBuffer buffer;
+    private final int bodyStart;
+    private final int bodyEnd;
+    private boolean bufferOwned = true;
+
+    // Version 2 payload, the body or its compressed form in a buffer of its own
+    private boolean payloadChosen;
+    private ByteBuffer compressed;
+    private boolean compressedOwned;
+
+    private SharedFrame version1;
+    private SharedFrame version2Named;
+    private SharedFrame version2;
+    private int version2TypeId;
+    private SharedFrame version2Other;
+    private int version2OtherTypeId;
+
+    public WireMessage(String typeName, byte[] body) {
+        this(Protocol.TYPE_NAMED, typeName, body);
+    }
+
+    /**
+     * Create a message from a serialized body.
+     * @param typeId the type ID from the local {@link TypeRegistry}, or {@link Protocol#TYPE_NAMED}
+     * @param typeName the simple class name
+     * @param body the serialized body
+     */
+    public WireMessage(int typeId, String typeName, byte[] body) {
+        this(typeId, typeName, copyWithHeadroom(body, Network.getBufferAllocator()), Network.getBufferAllocator());
+    }
+
+    /**
+     * Create a message around a body already serialized into an allocator buffer.
+     * @param buffer the body from position to limit, with at least {@link #HEADROOM} bytes
+     *               before the position. Owned by the message from now on
+     * @param allocator the allocator the buffer came from
+     */
+    WireMessage(int typeId, String typeName, ByteBuffer buffer, BufferAllocator allocator) {
+        this.typeId = typeId;
+        this.typeName = typeName;
+        this.buffer = buffer;
+        this.bodyStart = buffer.position();
+        this.bodyEnd = buffer.limit();
+        this.allocator = allocator;
+        this.compression = Network.getCompression();
+    }
+
+    private static ByteBuffer copyWithHeadroom(byte[] body, BufferAllocator allocator) {
+        ByteBuffer buffer = allocator.allocate(HEADROOM + body.length);
+        buffer.position(HEADROOM);
+        buffer.put(body);
+        buffer.flip().position(HEADROOM);
+        return buffer;
+    }
+
+    public int getTypeId() {
+        return typeId;
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * Get the length of the serialized body, before any compression.
+     * @return the body length in bytes
+     */
+    public int getBodyLength() {
+        return bodyEnd - bodyStart;
+    }
+
+    /**
+     * Get a copy of the serialized body.
+     * @return the body bytes
+     */
+    public synchronized byte[] getBody() {
+        checkReferenced();
+        byte[] data = new byte[bodyEnd - bodyStart];
+        body().get(data);
+        return data;
+    }
+
+    /**
+     * Get the shared frame for a protocol version, using the local type ID.
+     * @param version the protocol version
+     * @return the frame
+     */
+    public SharedFrame frame(int version) {
+        return frame(version, typeId);
+    }
+
+    /**
+     * Get the shared frame for a protocol version, encoding it on first use.
+     * The frame stays valid while this message is referenced, callers that keep it
+     * longer must retain the frame.
+     * @param version the protocol version
+     * @param wireTypeId the type ID the recipient knows this type by, or
+     *                   {@link Protocol#TYPE_NAMED} to send the name. Ignored for version 1
+     * @return the frame
+     */
+    public synchronized SharedFrame frame(int version, int wireTypeId) {
+        checkReferenced();
+        if (version < Protocol.VERSION_2) {
+            if (version1 == null) {
+                version1 = encodeVersion1();
+            }
+            return version1;
+        }
+        if (wireTypeId == Protocol.TYPE_NAMED) {
+            if (version2Named == null) {
+                version2Named = encodeVersion2(Protocol.TYPE_NAMED);
+            }
+            return version2Named;
+        }
+
+        choosePayload();
+        if (version2 == null && payloadOwned() && Protocol.varIntSize(wireTypeId) <= 3) {
+            version2 = frameInPlace(wireTypeId);
+            version2TypeId = wireTypeId;
+        }
+        if (version2 != null && version2TypeId == wireTypeId) {
+            return version2;
+        }
+
+        // Only happens if peers number the type differently, recipients retain what they use
+        if (version2Other != null && version2OtherTypeId != wireTypeId) {
+            version2Other.release();
+            version2Other = null;
+        }
+        if (version2Other == null) {
+            version2Other = encodeVersion2(wireTypeId);
+            version2OtherTypeId = wireTypeId;
+        }
+        return version2Other;
+    }
+
+    /**
+     * Get a copy of the framed bytes for a protocol version.
+     * @param version the protocol version
+     * @return the frame bytes
+     */
+    public byte[] encode(int version) {
+        ByteBuffer view = frame(version).view();
+        byte[] data = new byte[view.remaining()];
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * Take an additional reference.
+     * @return this message
+     */
+    public WireMessage retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            refCount.getAndDecrement();
+            throw new IllegalStateException("Message already released");
+        }
+        return this;
+    }
+
+    /**
+     * Drop a reference, the body and encoded frames are released once none remain.
+     */
+    public void release() {
+        if (refCount.decrementAndGet() != 0) {
+            return;
+        }
+        synchronized (this) {
+            version1 = release(version1);
+            version2Named = release(version2Named);
+            version2 = release(version2);
+            version2Other = release(version2Other);
+            if (bufferOwned) {
+                bufferOwned = false;
+                allocator.release(buffer);
+            }
+            if (compressedOwned) {
+                compressedOwned = false;
+                allocator.release(compressed);
+            }
+        }
+    }
+
+    private static SharedFrame release(SharedFrame frame) {
+        if (frame != null) {
+            frame.release();
+        }
+        return null;
+    }
+
+    private void checkReferenced() {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("Message already released");
+        }
+    }
+
+    private ByteBuffer body() {
+        ByteBuffer body = buffer.duplicate();
+        body.limit(bodyEnd).position(bodyStart);
+        return body;
+    }
+
+    /**
+     * Decide once whether version 2 frames carry the body or a compressed copy.
+     * Handshake frames are never compressed, peers read them before anything else.
+     */
+    private void choosePayload() {
+        if (payloadChosen) {
+            return;
+        }
+        payloadChosen = true;
+        if (compression != null && !Protocol.isHandshake(typeName)) {
+            compressed = compression.compress(body(), allocator, HEADROOM);
+            compressedOwned = compressed != null;
+        }
+    }
+
+    private boolean payloadOwned() {
+        return compressed != null ? compressedOwned : bufferOwned;
+    }
+
+    private ByteBuffer payload() {
+        return compressed != null ? compressed.duplicate() : body();
+    }
+
+    private int payloadFlags() {
+        return compressed != null ? Protocol.FLAG_COMPRESSED : 0;
+    }
+
+    /**
+     * Write the version 2 header into the headroom and hand the payload buffer to a frame.
+     * The frame keeps the payload alive for the other frames until this message is released.
+     */
+    private SharedFrame frameInPlace(int wireTypeId) {
+        ByteBuffer target = compressed != null ? compressed : buffer;
+        int payloadStart = target.position();
+        int payloadEnd = target.limit();
+        int length = Protocol.varIntSize(wireTypeId) + 1 + (payloadEnd - payloadStart);
+        int headerStart = payloadStart - Protocol.varIntSize(length) - Protocol.varIntSize(wireTypeId) - 1;
+        ByteBuffer header = target.duplicate();
+        header.limit(payloadStart).position(headerStart);
+        Protocol.writeVarInt(header, length);
+        Protocol.writeVarInt(header, wireTypeId);
+        header.put((byte) payloadFlags());
+
+        if (compressed != null) {
+            // Other frames still read the payload through duplicates positioned here
+            compressed = target.duplicate();
+            compressedOwned = false;
+        } else {
+            bufferOwned = false;
+        }
+        target.limit(payloadEnd).position(headerStart);
+        return new SharedFrame(target, allocator);
+    }
+
+    private SharedFrame encodeVersion1() {
+        for (int i = bodyStart; i < bodyEnd; i++) {
+            if (buffer.get(i) == '\n') {
+                // Would end the frame early and corrupt the stream for the recipient
+                throw new IllegalStateException("Message " + typeName
+                    + " contains a newline and cannot be sent with protocol version 1");
+            }
+        }
+
+        byte[] typeNameBytes = typeName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = allocator.allocate(typeNameBytes.length + (bodyEnd - bodyStart) + 2);
+        frame.put(typeNameBytes);
+        frame.put((byte) '\n');
+        frame.put(body());
+        frame.put((byte) '\n');
+        frame.flip();
+        return new SharedFrame(frame, allocator);
+    }
+
+    private SharedFrame encodeVersion2(int wireTypeId) {
+        choosePayload();
+        ByteBuffer payload = payload();
+        byte[] typeNameBytes = wireTypeId == Protocol.TYPE_NAMED ? typeName.getBytes(StandardCharsets.UTF_8) : null;
+        int length = Protocol.varIntSize(wireTypeId) + 1 + payload.remaining();
+        if (typeNameBytes != null) {
+            length += Protocol.varIntSize(typeNameBytes.length) + typeNameBytes.length;
+        }
+        ByteBuffer frame = allocator.allocate(Protocol.varIntSize(length) + length);
+        Protocol.writeVarInt(frame, length);
+        Protocol.writeVarInt(frame, wireTypeId);
+        frame.put((byte) payloadFlags());
+        if (typeNameBytes != null) {
+            Protocol.writeVarInt(frame, typeNameBytes.length);
+            frame.put(typeNameBytes);
+        }
+        frame.put(payload);
+        frame.flip();
+        return new SharedFrame(frame, allocator);
+    }
+}
@@ -0,0 +1,165 @@
+package com.netplay.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class ConnectionMapTest {
+    private final ConnectionMap map = new ConnectionMap();
+
+    private static NetworkConnection connection(long id) {
+        return new NetworkConnection(id, null);
+    }
+
+    @Test
+    void putGetAndRemove() {
+        NetworkConnection first = connection(1);
+        NetworkConnection second = connection(2);
+        map.put(1, first);
+        map.put(2, second);
+
+        assertSame(first, map.get(1));
+        assertSame(second, map.get(2));
+        assertNull(map.get(3));
+        assertEquals(2, map.size());
+
+        assertFalse(map.remove(1, second));
+        assertTrue(map.remove(1, first));
+        assertFalse(map.remove(1, first));
+        assertNull(map.get(1));
+        assertSame(second, map.get(2));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    void rejectsInvalidPuts() {
+        map.put(1, connection(1));
+        assertThrows(IllegalStateException.class, () -> map.put(1, connection(1)));
+        assertThrows(IllegalArgumentException.class, () -> map.put(0, connection(0)));
+        assertThrows(IllegalArgumentException.class, () -> map.put(2, connection(3)));
+        assertNull(map.get(0));
+        assertNull(map.get(-1));
+    }
+
+    @Test
+    void rehashKeepsEveryEntry() {
+        int count = 1000;
+        for (long id = 1; id <= count; id++) {
+            map.put(id, connection(id));
+        }
+        for (long id = 1; id <= count; id += 2) {
+            assertTrue(map.remove(id, map.get(id)));
+        }
+        // Growing again rehashes, dropping the removed slots
+        for (long id = count + 1; id <= 2 * count; id++) {
+            map.put(id, connection(id));
+        }
+
+        assertEquals(count / 2 + count, map.size());
+        for (long id = 1; id <= 2 * count; id++) {
+            NetworkConnection connection = map.get(id);
+            if (id <= count && id % 2 == 1) {
+                assertNull(connection);
+            } else {
+                assertEquals(id, connection.getNumericId());
+            }
+        }
+        Set<Long> iterated = new HashSet<>();
+        for (NetworkConnection connection : map.values()) {
+            assertTrue(iterated.add(connection.getNumericId()));
+        }
+        assertEquals(map.size(), iterated.size());
+    }
+
+    @Test
+    void removedSlotsAreReused() {
+        // Few enough entries that nothing is rehashed, the removed slots stay in the table
+        for (long id = 1; id <= 16; id++) {
+            map.put(id, connection(id));
+        }
+        for (long id = 1; id <= 16; id++) {
+            assertTrue(map.remove(id, map.get(id)));
+        }
+        NetworkConnection[] replacements = new NetworkConnection[9];
+        for (long id = 1; id <= 8; id++) {
+            replacements[(int) id] = connection(id);
+            map.put(id, replacements[(int) id]);
+        }
+        for (long id = 17; id <= 24; id++) {
+            map.put(id, connection(id));
+        }
+
+        for (long id = 1; id <= 8; id++) {
+            assertSame(replacements[(int) id], map.get(id));
+        }
+        for (long id = 9; id <= 16; id++) {
+            assertNull(map.get(id));
+        }
+        for (long id = 17; id <= 24; id++) {
+            assertEquals(id, map.get(id).getNumericId());
+        }
+        assertEquals(16, map.size());
+    }
+
+    @Test
+    void readersNeverSeeAnotherConnection() throws InterruptedException {
+        // Two IDs with the same home slot in the initial table, so each put reuses the
+        // slot the other was just removed from
+        long first = 1;
+        long second = first + 1;
+        while (homeSlot(second) != homeSlot(first)) {
+            second++;
+        }
+        long[] ids = {first, second};
+        NetworkConnection[] connections = {connection(first), connection(second)};
+        map.put(first, connections[0]);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> mismatch = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Thread reader = new Thread(() -> {
+                while (running.get() && mismatch.get() == null) {
+                    for (long id : ids) {
+                        NetworkConnection connection = map.get(id);
+                        if (connection != null && connection.getNumericId() != id) {
+                            mismatch.set("get(" + id + ") returned " + connection.getNumericId());
+                        }
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        long deadline = System.nanoTime() + 500_000_000L;
+        for (int i = 0; System.nanoTime() < deadline && mismatch.get() == null; i ^= 1) {
+            map.remove(ids[i], connections[i]);
+            map.put(ids[i ^ 1], connections[i ^ 1]);
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(mismatch.get(), mismatch.get());
+    }
+
+    /**
+     * The slot an ID hashes to in a table of the initial 64 slots, as ConnectionMap mixes it.
+     */
+    private static int homeSlot(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & 63;
+    }
+}
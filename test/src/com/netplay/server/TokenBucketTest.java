@@ -0,0 +1,72 @@
+package com.netplay.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Ten tokens per second with bursts of ten, on explicit times.
+ */
+class TokenBucketTest {
+    private static final long SECOND = 1_000_000_000L;
+    private static final long START = 1_000 * SECOND;
+
+    private final TokenBucket bucket = new TokenBucket(10, 10, START);
+
+    @Test
+    void startsFull() {
+        assertEquals(10, bucket.available(START));
+        assertFalse(bucket.isOverdrawn(START));
+        assertEquals(0, bucket.nanosUntilAvailable(10, START));
+    }
+
+    @Test
+    void overdrawingGoesIntoDebt() {
+        bucket.consume(15, START);
+
+        assertTrue(bucket.isOverdrawn(START));
+        assertEquals(0, bucket.available(START));
+        // Five tokens of debt at ten per second
+        assertNear(SECOND / 2, bucket.nanosUntilAvailable(0, START));
+        assertNear(SECOND * 6 / 10, bucket.nanosUntilAvailable(1, START));
+    }
+
+    @Test
+    void debtIsPaidBackBeforeTokensAreAvailable() {
+        bucket.consume(15, START);
+
+        assertTrue(bucket.isOverdrawn(START + SECOND * 4 / 10));
+        assertFalse(bucket.isOverdrawn(START + SECOND * 5 / 10 + 1000));
+        assertEquals(0, bucket.available(START + SECOND * 5 / 10 + 1000));
+        assertEquals(2, bucket.available(START + SECOND * 7 / 10 + 1000));
+    }
+
+    @Test
+    void refillIsCappedAtTheBurst() {
+        bucket.consume(10, START);
+        assertEquals(0, bucket.available(START));
+
+        assertEquals(5, bucket.available(START + SECOND / 2 + 1000));
+        assertEquals(10, bucket.available(START + 60 * SECOND));
+        // Waiting for more than the burst is the same as waiting for the burst
+        assertEquals(0, bucket.nanosUntilAvailable(100, START + 60 * SECOND));
+    }
+
+    @Test
+    void earlierTimesDoNotRefill() {
+        bucket.consume(10, START);
+        assertEquals(10, bucket.available(START + SECOND));
+
+        bucket.consume(10, START + SECOND);
+        // A caller with an older clock reading neither refills nor drains the bucket
+        assertEquals(0, bucket.available(START));
+        assertEquals(1, bucket.available(START + SECOND + SECOND / 10 + 1000));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        // The rate is held as a double, allow for rounding
+        assertTrue(Math.abs(expected - actual) <= 2, "expected " + expected + " but was " + actual);
+    }
+}
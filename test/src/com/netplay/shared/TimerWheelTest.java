@@ -0,0 +1,114 @@
+package com.netplay.shared;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The wheel is advanced with explicit times, so nothing here sleeps. Eight one
+ * millisecond buckets make every delay above 8ms wait for extra rounds.
+ */
+class TimerWheelTest {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 8);
+
+    @Test
+    void expiresInDeadlineOrderAcrossRounds() {
+        List<String> ran = new ArrayList<>();
+        List<Long> ranAfter = new ArrayList<>();
+        long before = System.nanoTime();
+        long[] delays = {20, 5, 13, 9};
+        String[] names = {"20ms", "5ms", "13ms", "9ms"};
+        long[] now = new long[1];
+        for (int i = 0; i < delays.length; i++) {
+            String name = names[i];
+            wheel.schedule(delays[i], TimeUnit.MILLISECONDS, () -> {
+                ran.add(name);
+                ranAfter.add(now[0] - before);
+            });
+        }
+        long after = System.nanoTime();
+
+        for (long step = 0; step <= 30; step++) {
+            now[0] = after + step * TICK_NANOS;
+            wheel.advance(now[0]);
+        }
+
+        assertEquals(List.of("5ms", "9ms", "13ms", "20ms"), ran);
+        long[] sorted = {5, 9, 13, 20};
+        for (int i = 0; i < sorted.length; i++) {
+            assertTrue(ranAfter.get(i) >= TimeUnit.MILLISECONDS.toNanos(sorted[i]), names[i] + " ran early");
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void doesNotRunBeforeTheDeadline() {
+        List<String> ran = new ArrayList<>();
+        long before = System.nanoTime();
+        wheel.schedule(12, TimeUnit.MILLISECONDS, () -> ran.add("task"));
+
+        // One full rotation in, the task's bucket has come round once already
+        wheel.advance(before + 10 * TICK_NANOS);
+        assertTrue(ran.isEmpty());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(System.nanoTime() + 14 * TICK_NANOS);
+        assertEquals(List.of("task"), ran);
+    }
+
+    @Test
+    void cancelledTasksDoNotRun() {
+        List<String> ran = new ArrayList<>();
+        TimerWheel.Timeout cancelled = wheel.schedule(3, TimeUnit.MILLISECONDS, () -> ran.add("cancelled"));
+        TimerWheel.Timeout kept = wheel.schedule(3, TimeUnit.MILLISECONDS, () -> ran.add("kept"));
+
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+
+        wheel.advance(System.nanoTime() + 5 * TICK_NANOS);
+        assertEquals(List.of("kept"), ran);
+        assertTrue(kept.isExpired());
+        assertFalse(kept.cancel());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void tasksMayRescheduleThemselves() {
+        List<Long> ran = new ArrayList<>();
+        Runnable[] task = new Runnable[1];
+        task[0] = () -> {
+            ran.add(System.nanoTime());
+            if (ran.size() < 3) {
+                wheel.schedule(2, TimeUnit.MILLISECONDS, task[0]);
+            }
+        };
+        wheel.schedule(2, TimeUnit.MILLISECONDS, task[0]);
+
+        long start = System.nanoTime();
+        for (long step = 0; step <= 40 && ran.size() < 3; step++) {
+            wheel.advance(start + step * TICK_NANOS);
+        }
+        assertEquals(3, ran.size());
+    }
+
+    @Test
+    void nextDelayFollowsTheEarliestBucket() {
+        long now = System.nanoTime();
+        assertEquals(0, wheel.nextDelayMillis(now));
+
+        wheel.schedule(4, TimeUnit.MILLISECONDS, () -> { });
+        // Newly scheduled tasks are only placed on the next advance
+        assertEquals(1, wheel.nextDelayMillis(now));
+        wheel.advance(now);
+        long delay = wheel.nextDelayMillis(now);
+        assertTrue(delay >= 1 && delay <= 6, "delay " + delay);
+    }
+}
@@ -0,0 +1,225 @@
+package com.netplay.shared;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A sender and a receiver session whose datagrams go to capture sockets instead of each
+ * other, so each test decides what is delivered, in which order and how often.
+ */
+class UdpSessionTest {
+    private static final long TOKEN = 42;
+    private static final int DATAGRAM_SIZE = UdpSession.MIN_DATAGRAM_SIZE;
+    private static final int TYPE_ID = 5;
+
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<byte[]> received = new ArrayList<>();
+    private final FrameDecoder.Listener listener = (typeId, typeName, flags, body) -> {
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        received.add(bytes);
+    };
+    private DatagramChannel senderWire;
+    private DatagramChannel receiverWire;
+    private UdpSession sender;
+    private UdpSession receiver;
+
+    @BeforeEach
+    void open() throws IOException {
+        BufferAllocator allocator = Network.getBufferAllocator();
+        senderWire = channel();
+        receiverWire = channel();
+        sender = new UdpSession(TOKEN, channel(), allocator, DATAGRAM_SIZE);
+        receiver = new UdpSession(TOKEN, channel(), allocator, DATAGRAM_SIZE);
+        sender.setRemoteAddress(senderWire.getLocalAddress());
+        receiver.setRemoteAddress(receiverWire.getLocalAddress());
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        sender.close();
+        receiver.close();
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    @Test
+    void reliableFragmentsReassembleInAnyOrder() throws IOException {
+        byte[] body = body(1000, 1);
+        sender.send(frame(body), DeliveryMode.RELIABLE_ORDERED, 0);
+        List<ByteBuffer> fragments = capture(senderWire, 10);
+
+        Collections.reverse(fragments);
+        for (ByteBuffer fragment : fragments) {
+            deliver(receiver, fragment, 0);
+        }
+
+        assertEquals(1, received.size());
+        assertArrayEquals(body, received.get(0));
+        assertTrue(receiver.hasPendingAcks());
+    }
+
+    @Test
+    void unreliableFragmentsReassembleOrAreLostWhole() throws IOException {
+        byte[] body = body(1000, 2);
+        sender.send(frame(body), DeliveryMode.UNRELIABLE, 0);
+        List<ByteBuffer> fragments = capture(senderWire, 10);
+        Collections.shuffle(fragments, new Random(2));
+        for (ByteBuffer fragment : fragments) {
+            deliver(receiver, fragment, 0);
+        }
+        assertEquals(1, received.size());
+        assertArrayEquals(body, received.get(0));
+        assertFalse(receiver.hasPendingAcks());
+
+        received.clear();
+        sender.send(frame(body(1000, 3)), DeliveryMode.UNRELIABLE, 0);
+        fragments = capture(senderWire, 10);
+        fragments.remove(4);
+        for (ByteBuffer fragment : fragments) {
+            deliver(receiver, fragment, 0);
+        }
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    void reliableMessagesAreDeliveredInSendOrder() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            sender.send(frame(body(10, i)), DeliveryMode.RELIABLE_ORDERED, 0);
+        }
+        List<ByteBuffer> datagrams = capture(senderWire, 3);
+
+        deliver(receiver, datagrams.get(2), 0);
+        deliver(receiver, datagrams.get(0), 0);
+        assertEquals(1, received.size());
+        deliver(receiver, datagrams.get(1), 0);
+
+        assertEquals(3, received.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(body(10, i), received.get(i));
+        }
+    }
+
+    @Test
+    void unacknowledgedDatagramsAreResent() throws IOException {
+        byte[] body = body(10, 4);
+        sender.send(frame(body), DeliveryMode.RELIABLE_ORDERED, 0);
+        // Lost on the way
+        capture(senderWire, 1);
+
+        long due = sender.poll(0);
+        assertTrue(due > 0 && due < Long.MAX_VALUE);
+        assertEquals(0, sender.getResentCount());
+
+        sender.poll(due);
+        assertEquals(1, sender.getResentCount());
+        deliver(receiver, capture(senderWire, 1).get(0), due);
+        assertEquals(1, received.size());
+        assertArrayEquals(body, received.get(0));
+
+        receiver.flushAcks();
+        deliver(sender, capture(receiverWire, 1).get(0), due);
+        assertFalse(sender.hasUnacknowledged());
+        assertEquals(Long.MAX_VALUE, sender.poll(due + 10_000));
+        assertTrue(sender.isOpen());
+    }
+
+    @Test
+    void duplicatesAreDeliveredOnceAndAcknowledgedAgain() throws IOException {
+        sender.send(frame(body(10, 5)), DeliveryMode.RELIABLE_ORDERED, 0);
+        ByteBuffer datagram = capture(senderWire, 1).get(0);
+
+        deliver(receiver, datagram, 0);
+        // The first acknowledgement was lost, so the sender resent it
+        deliver(receiver, datagram, 10);
+        assertEquals(1, received.size());
+
+        receiver.flushAcks();
+        ByteBuffer acks = capture(receiverWire, 1).get(0);
+        deliver(sender, acks, 20);
+        assertFalse(sender.hasUnacknowledged());
+        // A late duplicate acknowledgement is ignored
+        deliver(sender, acks, 30);
+        assertFalse(sender.hasUnacknowledged());
+        assertTrue(sender.isOpen());
+    }
+
+    @Test
+    void sessionFailsWhenNothingIsAcknowledged() throws IOException {
+        sender.send(frame(body(10, 6)), DeliveryMode.RELIABLE_ORDERED, 0);
+        capture(senderWire, 1);
+
+        sender.poll(60_000);
+        assertFalse(sender.isOpen());
+        assertFalse(sender.hasUnacknowledged());
+    }
+
+    private DatagramChannel channel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channels.add(channel);
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    private static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+
+    /**
+     * Wrap a body in a version 2 frame: varint length | varint typeId | flags | body.
+     */
+    private static ByteBuffer frame(byte[] body) {
+        ByteBuffer frame = ByteBuffer.allocate(body.length + 7);
+        Protocol.writeVarInt(frame, body.length + 2);
+        Protocol.writeVarInt(frame, TYPE_ID);
+        frame.put((byte) 0);
+        frame.put(body);
+        return frame.flip();
+    }
+
+    /**
+     * Receive the datagrams a session sent to a capture socket.
+     */
+    private static List<ByteBuffer> capture(DatagramChannel wire, int expected) throws IOException {
+        List<ByteBuffer> datagrams = new ArrayList<>();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        ByteBuffer buffer = ByteBuffer.allocate(UdpSession.MAX_RECEIVE_SIZE);
+        while (datagrams.size() < expected && System.nanoTime() < deadline) {
+            buffer.clear();
+            if (wire.receive(buffer) == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            buffer.flip();
+            datagrams.add(ByteBuffer.allocate(buffer.remaining()).put(buffer).flip());
+        }
+        assertEquals(expected, datagrams.size(), "datagrams captured");
+        return datagrams;
+    }
+
+    private void deliver(UdpSession session, ByteBuffer datagram, long now) throws IOException {
+        ByteBuffer copy = datagram.duplicate();
+        assertEquals(TOKEN, copy.getLong());
+        int kind = copy.get();
+        session.receive(kind, copy, now, listener);
+    }
+}